@@ -0,0 +1,83 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+// Picks which account the next benchmark/load operation hits.
+// uniform: every account equally often. zipf: a few hot accounts get most of the traffic
+// (rank k is picked with probability proportional to 1 / k^s), which is what real payment traffic looks like.
+public class AccountPicker {
+    private final int[] accounts;
+    private final double[] cumulative; // null for uniform
+
+    private AccountPicker(int[] accounts, double[] cumulative) {
+        this.accounts = accounts;
+        this.cumulative = cumulative;
+    }
+
+    public static AccountPicker uniform(int[] accounts) {
+        return new AccountPicker(accounts, null);
+    }
+
+    public static AccountPicker zipf(int[] accounts, double exponent) {
+        double[] cumulative = new double[accounts.length];
+        double sum = 0;
+        for (int k = 0; k < accounts.length; k++) {
+            sum += 1.0 / Math.pow(k + 1, exponent);
+            cumulative[k] = sum;
+        }
+        for (int k = 0; k < accounts.length; k++) {
+            cumulative[k] /= sum;
+        }
+        return new AccountPicker(accounts, cumulative);
+    }
+
+    // "uniform", "zipf" or "zipf:1.2"
+    public static AccountPicker of(String skew, int[] accounts) {
+        if (skew.equals("uniform")) {
+            return uniform(accounts);
+        }
+        if (skew.startsWith("zipf")) {
+            double exponent = skew.contains(":") ? Double.parseDouble(skew.substring(skew.indexOf(':') + 1)) : 1.0;
+            return zipf(accounts, exponent);
+        }
+        throw new IllegalArgumentException("Unknown skew: " + skew + " (use uniform or zipf[:s])");
+    }
+
+    public int next() {
+        return accounts[nextIndex()];
+    }
+
+    // a second account different from the first one (for transfers)
+    public int nextOtherThan(int account) {
+        if (accounts.length < 2) {
+            throw new IllegalStateException("Need at least two accounts");
+        }
+        while (true) {
+            int other = next();
+            if (other != account) {
+                return other;
+            }
+        }
+    }
+
+    public int size() {
+        return accounts.length;
+    }
+
+    private int nextIndex() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (cumulative == null) {
+            return random.nextInt(accounts.length);
+        }
+        double u = random.nextDouble();
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cumulative[mid] < u) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,735 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Compact in-memory accounts for tens of millions of holders, without one object per account.
+//   - balances: long paise in paged primitive arrays indexed by account number
+//   - holder text (name, email, PIN hash): UTF-8 in a byte arena, each account keeps one long reference into it
+//   - emails: an open-addressing int table of account numbers, for the duplicate check at registration;
+//     case-insensitive like the MySQL unique index (A@x.com and a@x.com are the same email)
+// Money moves under striped locks (a transfer takes both stripes, lowest first); balances are read without a lock.
+// snapshot() writes a consistent copy to one file, load() reads it back in one sequential pass.
+public class AccountStore {
+
+    // results of the money methods besides a new balance
+    public static final long NO_ACCOUNT = -1;
+    public static final long INSUFFICIENT_FUNDS = -2;
+    public static final long NO_RECEIVER = -3;
+
+    private static final int PAGE_BITS = 16;               // 65536 accounts per page
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int ARENA_CHUNK_BITS = 20;        // 1 MB arena chunks
+    private static final int ARENA_CHUNK = 1 << ARENA_CHUNK_BITS;
+    private static final int MAX_TEXT = 4095;              // the length has 12 bits in the reference
+    private static final int STRIPES = 1024;               // power of two
+    private static final int SNAPSHOT_MAGIC = 0x41435354;  // "ACST"
+    private static final int SNAPSHOT_VERSION = 2;         // 2: the email table hashes lowercased emails
+
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final LongPages balances = new LongPages(0);
+    // (arena chunk << 32) | (offset << 12) | length, 0 = no account
+    private final LongPages textRefs = new LongPages(0);
+
+    // everything below is guarded by `this` (registration, snapshots)
+    private volatile byte[][] arena = new byte[1][];
+    private int arenaChunk = 0;
+    private int arenaOffset = 0;
+    private int[] emailTable = new int[1024];
+    private int count = 0;
+    private volatile int highestAccount = 0;
+
+    private ScheduledExecutorService snapshotter;
+
+    public AccountStore() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        arena[0] = new byte[ARENA_CHUNK];
+    }
+
+    // REGISTRATION
+
+    // Next free account number, or NO_ACCOUNT if the email is already taken
+    public synchronized int create(String fullName, String email, String pin) {
+        if (findByEmail(email) > 0) {
+            return (int) NO_ACCOUNT;
+        }
+        int accountNumber = highestAccount + 1;
+        put(accountNumber, fullName, email, pin);
+        return accountNumber;
+    }
+
+    // For loading holders that already have a number (sidecar files, imports)
+    public synchronized void put(int accountNumber, String fullName, String email, String pin) {
+        if (accountNumber < 1) {
+            throw new IllegalArgumentException("Account numbers start at 1");
+        }
+        byte[] text = (fullName + '\0' + email + '\0' + pin).getBytes(StandardCharsets.UTF_8);
+        if (text.length > MAX_TEXT) {
+            throw new IllegalArgumentException("Name, email and PIN are too long");
+        }
+        boolean existed = exists(accountNumber);
+        if (existed) {
+            removeEmail(accountNumber);
+        }
+        balances.ensure(accountNumber);
+        textRefs.ensure(accountNumber);
+        textRefs.setRelease(accountNumber, appendText(text)); // the text is in place before the account shows up
+        if (!existed) {
+            count++;
+        }
+        highestAccount = Math.max(highestAccount, accountNumber);
+        addEmail(accountNumber, email);
+    }
+
+    public boolean exists(int accountNumber) {
+        return accountNumber > 0 && accountNumber <= highestAccount && textRefs.getAcquire(accountNumber) != 0;
+    }
+
+    // READS
+
+    // Balance in paise, NO_ACCOUNT if there is no such account
+    public long balance(int accountNumber) {
+        return exists(accountNumber) ? balances.getAcquire(accountNumber) : NO_ACCOUNT;
+    }
+
+    public String fullName(int accountNumber) {
+        return field(accountNumber, 0);
+    }
+
+    public String email(int accountNumber) {
+        return field(accountNumber, 1);
+    }
+
+    // what was stored for the PIN: a PinHasher hash, or a plaintext PIN from an older sidecar
+    public String pin(int accountNumber) {
+        return field(accountNumber, 2);
+    }
+
+    public synchronized int findByEmail(String email) {
+        String key = emailKey(email);
+        int mask = emailTable.length - 1;
+        for (int i = mix(key.hashCode()) & mask; emailTable[i] != 0; i = (i + 1) & mask) {
+            if (key.equals(emailKey(email(emailTable[i])))) {
+                return emailTable[i];
+            }
+        }
+        return (int) NO_ACCOUNT;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public int getHighestAccount() {
+        return highestAccount;
+    }
+
+    // MONEY (paise; the new balance, or one of the negative results above)
+
+    public long deposit(int accountNumber, long paise) {
+        if (!exists(accountNumber)) {
+            return NO_ACCOUNT;
+        }
+        ReentrantLock lock = stripe(accountNumber);
+        lock.lock();
+        try {
+            long balance = balances.getAcquire(accountNumber) + paise;
+            balances.setRelease(accountNumber, balance);
+            return balance;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long withdraw(int accountNumber, long paise) {
+        if (!exists(accountNumber)) {
+            return NO_ACCOUNT;
+        }
+        ReentrantLock lock = stripe(accountNumber);
+        lock.lock();
+        try {
+            long balance = balances.getAcquire(accountNumber);
+            if (balance < paise) {
+                return INSUFFICIENT_FUNDS;
+            }
+            balances.setRelease(accountNumber, balance - paise);
+            return balance - paise;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the sender's new balance
+    public long transfer(int fromAccount, int toAccount, long paise) {
+        if (!exists(fromAccount)) {
+            return NO_ACCOUNT;
+        }
+        if (!exists(toAccount)) {
+            return NO_RECEIVER;
+        }
+        int a = stripeIndex(fromAccount);
+        int b = stripeIndex(toAccount);
+        ReentrantLock first = stripes[Math.min(a, b)];
+        ReentrantLock second = stripes[Math.max(a, b)];
+        first.lock();
+        second.lock(); // the same lock twice when both accounts share a stripe, it is reentrant
+        try {
+            long from = balances.getAcquire(fromAccount);
+            if (from < paise) {
+                return INSUFFICIENT_FUNDS;
+            }
+            balances.setRelease(fromAccount, from - paise);
+            balances.setRelease(toAccount, balances.getAcquire(toAccount) + paise);
+            return from - paise;
+        } finally {
+            second.unlock();
+            first.unlock();
+        }
+    }
+
+    // Unconditional change, for replaying a log that already checked everything
+    public void adjust(int accountNumber, long deltaPaise) {
+        ReentrantLock lock = stripe(accountNumber);
+        lock.lock();
+        try {
+            balances.setRelease(accountNumber, balances.getAcquire(accountNumber) + deltaPaise);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // SNAPSHOTS
+
+    // Writes a consistent copy: every stripe is held while the balances are copied, so no transfer is half in it.
+    // The file is written next to the target and renamed over it at the end.
+    public void snapshot(Path file) throws IOException {
+        int highest;
+        long[][] balanceCopy;
+        long[][] refCopy;
+        byte[][] arenaCopy;
+        int arenaUsed;
+        int[] emailCopy;
+        int countCopy;
+        synchronized (this) {
+            lockAllStripes();
+            try {
+                highest = highestAccount;
+                balanceCopy = balances.copy(highest);
+                refCopy = textRefs.copy(highest);
+            } finally {
+                unlockAllStripes();
+            }
+            arenaCopy = Arrays.copyOf(arena, arenaChunk + 1); // chunks are only appended to, never changed
+            arenaUsed = arenaOffset;
+            emailCopy = emailTable.clone(); // saved as it is, so load() doesn't have to hash every email again
+            countCopy = count;
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(8 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putInt(highest).putInt(countCopy)
+                    .putInt(arenaCopy.length).putInt(arenaUsed).putInt(emailCopy.length);
+            writePages(channel, buffer, balanceCopy, highest);
+            writePages(channel, buffer, refCopy, highest);
+            writeInts(channel, buffer, emailCopy);
+            for (int c = 0; c < arenaCopy.length; c++) {
+                int length = c == arenaCopy.length - 1 ? arenaUsed : ARENA_CHUNK;
+                for (int off = 0; off < length; ) {
+                    int n = Math.min(buffer.remaining(), length - off);
+                    buffer.put(arenaCopy[c], off, n);
+                    off += n;
+                    if (!buffer.hasRemaining()) {
+                        drain(channel, buffer);
+                    }
+                }
+            }
+            drain(channel, buffer);
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Reads a snapshot back front to back
+    public static AccountStore load(Path file) throws IOException {
+        AccountStore store = new AccountStore();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(8 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.limit(0); // nothing read yet
+            fill(channel, buffer, 28);
+            if (buffer.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException(file + " is not an account snapshot");
+            }
+            int version = buffer.getInt();
+            if (version < 1 || version > SNAPSHOT_VERSION) {
+                throw new IOException(file + " is an account snapshot of unknown version " + version);
+            }
+            int highest = buffer.getInt();
+            int count = buffer.getInt();
+            int chunks = buffer.getInt();
+            int arenaUsed = buffer.getInt();
+            int[] emailTable = new int[buffer.getInt()];
+
+            store.balances.ensure(highest);
+            store.textRefs.ensure(highest);
+            readPages(channel, buffer, store.balances, highest);
+            readPages(channel, buffer, store.textRefs, highest);
+            readInts(channel, buffer, emailTable);
+            store.arena = new byte[chunks][];
+            for (int c = 0; c < chunks; c++) {
+                store.arena[c] = new byte[ARENA_CHUNK];
+                int length = c == chunks - 1 ? arenaUsed : ARENA_CHUNK;
+                for (int off = 0; off < length; ) {
+                    if (!buffer.hasRemaining()) {
+                        fill(channel, buffer, 1);
+                    }
+                    int n = Math.min(buffer.remaining(), length - off);
+                    buffer.get(store.arena[c], off, n);
+                    off += n;
+                }
+            }
+            synchronized (store) {
+                store.arenaChunk = chunks - 1;
+                store.arenaOffset = arenaUsed;
+                store.count = count;
+                store.emailTable = emailTable;
+                store.highestAccount = highest;
+                if (version < 2) {
+                    store.rehashEmails(); // version 1 hashed the emails as they were typed
+                }
+            }
+        }
+        return store;
+    }
+
+    // Takes a snapshot every intervalMillis on a background thread
+    public synchronized void startSnapshots(Path file, long intervalMillis) {
+        if (snapshotter != null) {
+            return;
+        }
+        snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "account-snapshots");
+            t.setDaemon(true);
+            return t;
+        });
+        snapshotter.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot(file);
+            } catch (IOException e) {
+                System.out.println("Account snapshot failed: " + e.getMessage());
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopSnapshots() {
+        if (snapshotter != null) {
+            snapshotter.shutdown();
+            snapshotter = null;
+        }
+    }
+
+    // Bytes held for the accounts: both page arrays, the used arena and the email table
+    public synchronized long memoryBytes() {
+        return balances.capacity() * 8L + textRefs.capacity() * 8L
+                + (long) arenaChunk * ARENA_CHUNK + ARENA_CHUNK + emailTable.length * 4L;
+    }
+
+    // Memory and throughput on this machine, optionally next to the MySQL path:
+    //   java AccountStore --accounts 10000000 --threads 8 --seconds 10 --snapshot /tmp/accounts.snap [--mysql]
+    public static void main(String[] args) throws Exception {
+        int accountCount = 1_000_000;
+        int threads = 4;
+        int seconds = 10;
+        Path snapshotFile = null;
+        boolean mysql = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--accounts": accountCount = Integer.parseInt(args[++i]); break;
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--seconds": seconds = Integer.parseInt(args[++i]); break;
+                case "--snapshot": snapshotFile = Path.of(args[++i]); break;
+                case "--mysql": mysql = true; break;
+                default:
+                    System.out.println("Usage: java AccountStore [--accounts N] [--threads N] [--seconds N] [--snapshot FILE] [--mysql]");
+                    return;
+            }
+        }
+
+        // MEMORY: the store against one User object per account
+        long before = usedHeap();
+        AccountStore store = new AccountStore();
+        for (int i = 1; i <= accountCount; i++) {
+            store.create("Holder " + i, "holder-" + i + "@test.local", TestAccounts.pinHash());
+            store.deposit(i, 1_000_000);
+        }
+        long storeBytes = usedHeap() - before;
+
+        int userCount = Math.min(accountCount, 1_000_000);
+        before = usedHeap();
+        User[] users = new User[userCount];
+        for (int i = 0; i < userCount; i++) {
+            users[i] = new User(i + 1, "Holder " + (i + 1), "holder-" + (i + 1) + "@test.local", Money.ofRupees(10_000));
+        }
+        long userBytes = usedHeap() - before;
+        System.out.printf("accounts=%d  AccountStore: %.1f bytes/account (%.1f MB)  User objects: %.1f bytes/account%n",
+                accountCount, (double) storeBytes / accountCount, storeBytes / 1e6, (double) userBytes / users.length);
+        users = null;
+
+        // THROUGHPUT
+        int[] accounts = new int[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            accounts[i] = i + 1;
+        }
+        double opsPerSecond = run(threads, seconds, accounts, (op, from, to) -> {
+            switch (op) {
+                case 0: store.deposit(from, 100); break;
+                case 1: store.withdraw(from, 100); break;
+                default: store.transfer(from, to, 100);
+            }
+        });
+        System.out.printf("AccountStore: %,.0f ops/s with %d threads (deposit/withdraw/transfer)%n", opsPerSecond, threads);
+
+        // SNAPSHOT
+        if (snapshotFile != null) {
+            long start = System.nanoTime();
+            store.snapshot(snapshotFile);
+            double writeMillis = (System.nanoTime() - start) / 1e6;
+            start = System.nanoTime();
+            AccountStore loaded = AccountStore.load(snapshotFile);
+            double loadMillis = (System.nanoTime() - start) / 1e6;
+            boolean same = loaded.size() == store.size();
+            for (int i = 1; same && i <= accountCount; i++) {
+                same = loaded.balance(i) == store.balance(i);
+            }
+            System.out.printf("snapshot: %.1f MB written in %.0f ms, loaded in %.0f ms, %s%n",
+                    Files.size(snapshotFile) / 1e6, writeMillis, loadMillis, same ? "balances match" : "BALANCES DIFFER");
+        }
+
+        // THE SAME MIX THROUGH MYSQL
+        if (mysql) {
+            String tag = "store" + System.currentTimeMillis();
+            int[] seeded = TestAccounts.seed(tag, Math.min(accountCount, 1000), Money.ofRupees(10_000));
+            BankingServices service = new BankingServices();
+            try {
+                double mysqlOps = run(threads, seconds, seeded, (op, from, to) -> {
+                    switch (op) {
+                        case 0: service.depositWithResult(from, 100); break;
+                        case 1: service.withdrawWithResult(from, 100); break;
+                        default: service.transferWithResult(from, to, 100);
+                    }
+                });
+                System.out.printf("MySQL path:   %,.0f ops/s with %d threads (%.0fx slower)%n", mysqlOps, threads, opsPerSecond / mysqlOps);
+            } finally {
+                TestAccounts.remove(tag);
+                DatabaseConnection.shutdown();
+            }
+        }
+    }
+
+    private interface MixedOp {
+        void run(int op, int from, int to) throws Exception;
+    }
+
+    private static double run(int threads, int seconds, int[] accounts, MixedOp mixedOp) throws InterruptedException {
+        LongAdder done = new LongAdder();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long local = 0;
+                while ((local & 255) != 0 || System.nanoTime() < deadline) {
+                    try {
+                        mixedOp.run(random.nextInt(3), accounts[random.nextInt(accounts.length)], accounts[random.nextInt(accounts.length)]);
+                    } catch (Exception e) {
+                        // counted like any other call, the numbers are about throughput
+                    }
+                    local++;
+                }
+                done.add(local);
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return done.sum() / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // INTERNALS
+
+    private String field(int accountNumber, int index) {
+        if (!exists(accountNumber)) {
+            return null;
+        }
+        long ref = textRefs.getAcquire(accountNumber);
+        byte[] chunk = arena[(int) (ref >>> 32)];
+        int start = (int) (ref >>> 12) & (ARENA_CHUNK - 1);
+        int end = start + (int) (ref & MAX_TEXT);
+        for (int i = 0; i < index; i++) {
+            while (chunk[start] != 0) {
+                start++;
+            }
+            start++;
+        }
+        int stop = start;
+        while (stop < end && chunk[stop] != 0) {
+            stop++;
+        }
+        return new String(chunk, start, stop - start, StandardCharsets.UTF_8);
+    }
+
+    // caller holds `this`
+    private long appendText(byte[] text) {
+        if (arenaOffset + text.length > ARENA_CHUNK) {
+            byte[][] grown = Arrays.copyOf(arena, arenaChunk + 2);
+            grown[arenaChunk + 1] = new byte[ARENA_CHUNK];
+            arena = grown;
+            arenaChunk++;
+            arenaOffset = 0;
+        }
+        System.arraycopy(text, 0, arena[arenaChunk], arenaOffset, text.length);
+        long ref = ((long) arenaChunk << 32) | ((long) arenaOffset << 12) | text.length;
+        arenaOffset += text.length;
+        return ref;
+    }
+
+    // caller holds `this`; the table stays at most half full
+    private void addEmail(int accountNumber, String email) {
+        if ((count + 1) * 2 > emailTable.length) {
+            int[] old = emailTable;
+            emailTable = new int[old.length * 2];
+            for (int account : old) {
+                if (account != 0) {
+                    insertEmail(account, email(account));
+                }
+            }
+        }
+        insertEmail(accountNumber, email);
+    }
+
+    private void insertEmail(int accountNumber, String email) {
+        int mask = emailTable.length - 1;
+        int i = mix(emailKey(email).hashCode()) & mask;
+        while (emailTable[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        emailTable[i] = accountNumber;
+    }
+
+    // caller holds `this`
+    private void rehashEmails() {
+        emailTable = new int[emailTable.length];
+        for (int account = 1; account <= highestAccount; account++) {
+            if (exists(account)) {
+                insertEmail(account, email(account));
+            }
+        }
+    }
+
+    // caller holds `this`; rebuilt without the account, removals are rare (re-registration of a number)
+    private void removeEmail(int accountNumber) {
+        int[] old = emailTable;
+        emailTable = new int[old.length];
+        for (int account : old) {
+            if (account != 0 && account != accountNumber) {
+                insertEmail(account, email(account));
+            }
+        }
+    }
+
+    // what two emails must share to be the same one, as in DatabaseConnection.shardForEmail
+    private static String emailKey(String email) {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private ReentrantLock stripe(int accountNumber) {
+        return stripes[stripeIndex(accountNumber)];
+    }
+
+    private static int stripeIndex(int accountNumber) {
+        return mix(accountNumber) & (STRIPES - 1);
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // every stripe, in index order like the transfers take them
+    private void lockAllStripes() {
+        for (ReentrantLock lock : stripes) {
+            lock.lock();
+        }
+    }
+
+    private void unlockAllStripes() {
+        for (int i = STRIPES - 1; i >= 0; i--) {
+            stripes[i].unlock();
+        }
+    }
+
+    // bulk copies through a LongBuffer view, a page at a time
+    private static void writePages(FileChannel channel, ByteBuffer buffer, long[][] pages, int highest) throws IOException {
+        for (int p = 0; p < pages.length; p++) {
+            int n = Math.min(PAGE_SIZE, highest + 1 - p * PAGE_SIZE);
+            for (int off = 0; off < n; ) {
+                if (buffer.remaining() < 8) {
+                    drain(channel, buffer);
+                }
+                int k = Math.min(buffer.remaining() / 8, n - off);
+                buffer.asLongBuffer().put(pages[p], off, k);
+                buffer.position(buffer.position() + k * 8);
+                off += k;
+            }
+        }
+    }
+
+    private static void readPages(FileChannel channel, ByteBuffer buffer, LongPages pages, int highest) throws IOException {
+        long[][] target = pages.pages;
+        for (int p = 0; p * PAGE_SIZE <= highest; p++) {
+            int n = Math.min(PAGE_SIZE, highest + 1 - p * PAGE_SIZE);
+            for (int off = 0; off < n; ) {
+                if (buffer.remaining() < 8) {
+                    fill(channel, buffer, 8);
+                }
+                int k = Math.min(buffer.remaining() / 8, n - off);
+                buffer.asLongBuffer().get(target[p], off, k);
+                buffer.position(buffer.position() + k * 8);
+                off += k;
+            }
+        }
+    }
+
+    private static void writeInts(FileChannel channel, ByteBuffer buffer, int[] values) throws IOException {
+        for (int off = 0; off < values.length; ) {
+            if (buffer.remaining() < 4) {
+                drain(channel, buffer);
+            }
+            int k = Math.min(buffer.remaining() / 4, values.length - off);
+            buffer.asIntBuffer().put(values, off, k);
+            buffer.position(buffer.position() + k * 4);
+            off += k;
+        }
+    }
+
+    private static void readInts(FileChannel channel, ByteBuffer buffer, int[] values) throws IOException {
+        for (int off = 0; off < values.length; ) {
+            if (buffer.remaining() < 4) {
+                fill(channel, buffer, 4);
+            }
+            int k = Math.min(buffer.remaining() / 4, values.length - off);
+            buffer.asIntBuffer().get(values, off, k);
+            buffer.position(buffer.position() + k * 4);
+            off += k;
+        }
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // keeps what is left in the buffer and reads until at least `needed` bytes are there
+    private static void fill(FileChannel channel, ByteBuffer buffer, int needed) throws IOException {
+        buffer.compact();
+        while (buffer.position() < needed) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Snapshot ends early");
+            }
+        }
+        buffer.flip();
+    }
+
+    // long values indexed by account number, in pages so growing never copies the values
+    static final class LongPages {
+        private volatile long[][] pages = new long[0][];
+        private final long empty;
+
+        LongPages(long empty) {
+            this.empty = empty;
+        }
+
+        // makes room up to this index; callers serialize growth themselves
+        void ensure(int index) {
+            int page = index >>> PAGE_BITS;
+            long[][] current = pages;
+            if (page < current.length) {
+                return;
+            }
+            long[][] grown = Arrays.copyOf(current, page + 1);
+            for (int p = current.length; p <= page; p++) {
+                grown[p] = new long[PAGE_SIZE];
+                if (empty != 0) {
+                    Arrays.fill(grown[p], empty);
+                }
+            }
+            pages = grown;
+        }
+
+        long getAcquire(int index) {
+            long[][] current = pages;
+            int page = index >>> PAGE_BITS;
+            return page < current.length ? (long) LONGS.getAcquire(current[page], index & (PAGE_SIZE - 1)) : empty;
+        }
+
+        void setRelease(int index, long value) {
+            LONGS.setRelease(pages[index >>> PAGE_BITS], index & (PAGE_SIZE - 1), value);
+        }
+
+        long capacity() {
+            return (long) pages.length * PAGE_SIZE;
+        }
+
+        // plain copy of the pages up to `highest`; always at least page 0, even for an empty store, since the
+        // snapshot holds highest + 1 values
+        long[][] copy(int highest) {
+            long[][] current = pages;
+            long[][] copy = new long[(highest >>> PAGE_BITS) + 1][];
+            for (int p = 0; p < copy.length; p++) {
+                if (p < current.length) {
+                    copy[p] = current[p].clone();
+                } else {
+                    copy[p] = new long[PAGE_SIZE];
+                    if (empty != 0) {
+                        Arrays.fill(copy[p], empty);
+                    }
+                }
+            }
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Non-blocking front of a BankingStorage: every call returns a CompletableFuture right away, so callers can
+// overlap independent work (balance + history together, many balance checks at once, ...).
+//
+// Money movements complete with a TransactionResult; its status says why it didn't go through.
+// Everything else completes exceptionally with a BankingException and its Reason:
+//   TIMEOUT (the per-call timeout passed), CANCELLED, ACCOUNT_NOT_FOUND, INVALID_CREDENTIALS,
+//   UNAVAILABLE (database problem), REJECTED (executor shut down)
+//
+// Calls run on virtual threads unless another executor is given. Cancelling a future (or a timeout)
+// interrupts a read; if it is still waiting for a pooled connection it gives up right there.
+// A money movement is never interrupted once it has started, it may be about to commit. Cancel and timeout
+// only stop it if it hasn't started yet; otherwise it runs to the end in the background. So for a deposit,
+// withdrawal or transfer, TIMEOUT (and CANCELLED) means the outcome is unknown: the money may or may not
+// have moved. Send those with an idempotency key and retry with the same key, which gives the first
+// call's result instead of moving the money twice (IdempotencyStore).
+public class AsyncBankingService implements AutoCloseable {
+
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "async-banking-timeouts");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        TIMER.setRemoveOnCancelPolicy(true); // finished calls don't leave their timeout behind
+    }
+
+    private final BankingStorage service;
+    private final ExecutorService executor;
+    private final Duration defaultTimeout;
+    private final SessionStore sessions;
+
+    public AsyncBankingService(BankingStorage service) {
+        this(service, Executors.newVirtualThreadPerTaskExecutor(),
+                Duration.ofMillis(Long.getLong("bank.async.timeoutMillis", 10_000)));
+    }
+
+    public AsyncBankingService(BankingStorage service, ExecutorService executor, Duration defaultTimeout) {
+        this(service, executor, defaultTimeout, new SessionStore(Long.getLong("bank.async.sessionTtlMillis", 15 * 60 * 1000)));
+    }
+
+    // pass the server's SessionStore to share logins with it
+    public AsyncBankingService(BankingStorage service, ExecutorService executor, Duration defaultTimeout, SessionStore sessions) {
+        this.service = service;
+        this.executor = executor;
+        this.defaultTimeout = defaultTimeout;
+        this.sessions = sessions;
+    }
+
+    // MONEY MOVEMENTS
+
+    public CompletableFuture<TransactionResult> depositAsync(int accountNumber, long amountPaise) {
+        return depositAsync(accountNumber, amountPaise, defaultTimeout);
+    }
+
+    public CompletableFuture<TransactionResult> depositAsync(int accountNumber, long amountPaise, Duration timeout) {
+        return submitMovement(() -> service.depositWithResult(accountNumber, amountPaise), timeout);
+    }
+
+    // With an idempotency key: after a timeout the caller can send the same call again without paying twice
+    public CompletableFuture<TransactionResult> depositAsync(int accountNumber, long amountPaise, String idempotencyKey) {
+        return submitMovement(() -> service.depositWithResult(accountNumber, amountPaise, idempotencyKey), defaultTimeout);
+    }
+
+    public CompletableFuture<TransactionResult> withdrawAsync(int accountNumber, long amountPaise) {
+        return withdrawAsync(accountNumber, amountPaise, defaultTimeout);
+    }
+
+    public CompletableFuture<TransactionResult> withdrawAsync(int accountNumber, long amountPaise, Duration timeout) {
+        return submitMovement(() -> service.withdrawWithResult(accountNumber, amountPaise), timeout);
+    }
+
+    public CompletableFuture<TransactionResult> withdrawAsync(int accountNumber, long amountPaise, String idempotencyKey) {
+        return submitMovement(() -> service.withdrawWithResult(accountNumber, amountPaise, idempotencyKey), defaultTimeout);
+    }
+
+    public CompletableFuture<TransactionResult> transferAsync(int fromAccount, int toAccount, long amountPaise) {
+        return transferAsync(fromAccount, toAccount, amountPaise, defaultTimeout);
+    }
+
+    public CompletableFuture<TransactionResult> transferAsync(int fromAccount, int toAccount, long amountPaise, Duration timeout) {
+        return submitMovement(() -> service.transferWithResult(fromAccount, toAccount, amountPaise), timeout);
+    }
+
+    public CompletableFuture<TransactionResult> transferAsync(int fromAccount, int toAccount, long amountPaise, String idempotencyKey) {
+        return submitMovement(() -> service.transferWithResult(fromAccount, toAccount, amountPaise, idempotencyKey), defaultTimeout);
+    }
+
+    // READS
+
+    public CompletableFuture<Long> getBalanceAsync(int accountNumber) {
+        return getBalanceAsync(accountNumber, defaultTimeout);
+    }
+
+    public CompletableFuture<Long> getBalanceAsync(int accountNumber, Duration timeout) {
+        return submit(() -> {
+            TransactionResult result = service.getBalanceWithResult(accountNumber);
+            if (result.getStatus() == TransactionStatus.ACCOUNT_NOT_FOUND) {
+                throw new BankingException(BankingException.Reason.ACCOUNT_NOT_FOUND, "Account #" + accountNumber + " not found");
+            }
+            if (!result.isSuccess()) {
+                throw new BankingException(BankingException.Reason.UNAVAILABLE, "Balance of #" + accountNumber + " unavailable");
+            }
+            return result.getNewBalancePaise();
+        }, timeout);
+    }
+
+    // Fan-out: all balances at once, completes when the last one is in (or the first one fails)
+    public CompletableFuture<Map<Integer, Long>> getBalancesAsync(List<Integer> accountNumbers) {
+        Map<Integer, CompletableFuture<Long>> futures = new HashMap<>();
+        for (int account : accountNumbers) {
+            futures.put(account, getBalanceAsync(account));
+        }
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> {
+                    Map<Integer, Long> balances = new HashMap<>();
+                    futures.forEach((account, future) -> balances.put(account, future.join()));
+                    return balances;
+                });
+    }
+
+    public CompletableFuture<HistoryPage> historyAsync(int accountNumber, HistoryPage.Cursor after, int limit) {
+        return historyAsync(accountNumber, after, limit, defaultTimeout);
+    }
+
+    public CompletableFuture<HistoryPage> historyAsync(int accountNumber, HistoryPage.Cursor after, int limit, Duration timeout) {
+        return submit(() -> {
+            HistoryPage page = service.getTransactionHistory(accountNumber, after, limit);
+            if (page == null) {
+                throw new BankingException(BankingException.Reason.UNAVAILABLE, "History of #" + accountNumber + " unavailable");
+            }
+            return page;
+        }, timeout);
+    }
+
+    public CompletableFuture<User> loginAsync(int accountNumber, String pin) {
+        return submit(() -> {
+            User user = service.login(accountNumber, pin);
+            if (user == null) {
+                throw new BankingException(BankingException.Reason.INVALID_CREDENTIALS, "Invalid account number or PIN");
+            }
+            return user;
+        }, defaultTimeout);
+    }
+
+    // SESSIONS
+
+    // Logs in once (that is where the PIN hash is paid) and hands back a session; later calls only need its token
+    public CompletableFuture<SessionStore.Session> openSessionAsync(int accountNumber, String pin) {
+        return loginAsync(accountNumber, pin).thenApply(sessions::create);
+    }
+
+    // The live session for this token, a map lookup with no hashing and no database
+    public SessionStore.Session session(String token) {
+        SessionStore.Session session = sessions.get(token);
+        if (session == null) {
+            throw new BankingException(BankingException.Reason.INVALID_CREDENTIALS, "Session expired, log in again");
+        }
+        return session;
+    }
+
+    public void closeSession(String token) {
+        sessions.remove(token);
+    }
+
+    public SessionStore getSessions() {
+        return sessions;
+    }
+
+    // Money moves: cancel() and the timeout only stop it before it starts, never in the middle of its transaction
+    private CompletableFuture<TransactionResult> submitMovement(Callable<TransactionResult> call, Duration timeout) {
+        return submit(call, timeout, false);
+    }
+
+    private <T> CompletableFuture<T> submit(Callable<T> call, Duration timeout) {
+        return submit(call, timeout, true);
+    }
+
+    // Running the call on the executor; cancel() and the timeout both reach the task, and interrupt it
+    // while it runs only if interruptible
+    private <T> CompletableFuture<T> submit(Callable<T> call, Duration timeout, boolean interruptible) {
+        AtomicReference<Future<?>> task = new AtomicReference<>();
+        CompletableFuture<T> result = new CompletableFuture<>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean cancelled = super.cancel(mayInterruptIfRunning);
+                Future<?> running = task.get();
+                if (cancelled && running != null) {
+                    running.cancel(interruptible);
+                }
+                return cancelled;
+            }
+        };
+
+        try {
+            task.set(executor.submit(() -> {
+                if (result.isDone()) {
+                    return; // cancelled or timed out before it even started
+                }
+                try {
+                    result.complete(call.call());
+                } catch (BankingException e) {
+                    result.completeExceptionally(e);
+                } catch (InterruptedException | CancellationException e) {
+                    result.completeExceptionally(new BankingException(BankingException.Reason.CANCELLED, "Call was cancelled", e));
+                } catch (Exception e) {
+                    result.completeExceptionally(new BankingException(BankingException.Reason.UNAVAILABLE, e.getMessage(), e));
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new BankingException(BankingException.Reason.REJECTED, "Executor is shut down", e));
+            return result;
+        }
+
+        if (timeout != null && !timeout.isZero() && !timeout.isNegative()) {
+            ScheduledFuture<?> timer = TIMER.schedule(() -> {
+                if (result.completeExceptionally(new BankingException(BankingException.Reason.TIMEOUT,
+                        "No result after " + timeout.toMillis() + " ms"))) {
+                    Future<?> running = task.get();
+                    if (running != null) {
+                        running.cancel(interruptible); // not interruptible: it only keeps a queued one from starting
+                    }
+                }
+            }, timeout.toNanos(), TimeUnit.NANOSECONDS);
+            result.whenComplete((value, error) -> timer.cancel(false));
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,161 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Small in-process cache in front of getBalanceWithResult().
+// Bounded (LRU) and every entry expires after ttlMillis, so a write from another process is seen after at most that long.
+//
+// Writers in this JVM keep it exact: they take a stamp before touching the row and hand the committed balance
+// back with that stamp. If anyone else wrote or cached the same account in between, the stamps don't match and
+// the entry is dropped instead of being overwritten with a value that might be older.
+public class BalanceCache {
+
+    private static final int STRIPES = 1024; // power of two
+
+    private static final BalanceCache SHARED = new BalanceCache(
+            Boolean.parseBoolean(System.getProperty("bank.balanceCache.enabled", "true")),
+            Integer.getInteger("bank.balanceCache.maxSize", 10_000),
+            Long.getLong("bank.balanceCache.ttlMillis", 5_000));
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private volatile boolean enabled;
+
+    private final LinkedHashMap<Integer, Entry> entries;
+    // generation per stripe of accounts, bumped on every write and every store
+    private final long[] generations = new long[STRIPES];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public BalanceCache(boolean enabled, int maxSize, long ttlMillis) {
+        this.enabled = enabled;
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                return size() > BalanceCache.this.maxSize;
+            }
+        };
+    }
+
+    // the one every BankingServices uses unless it is given its own
+    public static BalanceCache shared() {
+        return SHARED;
+    }
+
+    // Cached balance in paise, or -1 when it has to come from the database
+    public long get(int accountNumber) {
+        if (!enabled) {
+            return -1;
+        }
+        synchronized (this) {
+            Entry entry = entries.get(accountNumber);
+            if (entry != null && entry.expiresAt > System.currentTimeMillis()) {
+                hits.increment();
+                return entry.balance;
+            }
+            if (entry != null) {
+                entries.remove(accountNumber);
+            }
+        }
+        misses.increment();
+        return -1;
+    }
+
+    // Taken by a reader before it queries the balance
+    public synchronized long stamp(int accountNumber) {
+        return generations[stripe(accountNumber)];
+    }
+
+    // Taken by a writer before it updates the row
+    public synchronized long beginWrite(int accountNumber) {
+        return ++generations[stripe(accountNumber)];
+    }
+
+    // Storing the balance read or committed under this stamp; dropped if something else happened to the account since
+    public synchronized void complete(int accountNumber, long stamp, long balance) {
+        if (!enabled) {
+            return;
+        }
+        int stripe = stripe(accountNumber);
+        if (generations[stripe] == stamp && balance >= 0) {
+            entries.put(accountNumber, new Entry(balance, System.currentTimeMillis() + ttlMillis));
+        } else {
+            entries.remove(accountNumber);
+            invalidations.increment();
+        }
+        generations[stripe]++;
+    }
+
+    // After a rollback (or any write whose result we don't know) the entry simply goes away
+    public synchronized void invalidate(int accountNumber) {
+        if (entries.remove(accountNumber) != null) {
+            invalidations.increment();
+        }
+        generations[stripe(accountNumber)]++;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        for (int i = 0; i < STRIPES; i++) {
+            generations[i]++;
+        }
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            clear();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("enabled=%b size=%d/%d hits=%d misses=%d hitRate=%.1f%% invalidations=%d",
+                enabled, size(), maxSize, getHits(), getMisses(), getHitRate() * 100, getInvalidations());
+    }
+
+    private static int stripe(int accountNumber) {
+        int h = accountNumber * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    private static class Entry {
+        final long balance;
+        final long expiresAt;
+
+        Entry(long balance, long expiresAt) {
+            this.balance = balance;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
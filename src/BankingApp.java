@@ -1,3 +1,4 @@
+import java.io.IOException;
 import java.util.Scanner;
 import java.sql.*;
 
@@ -10,8 +11,9 @@ import java.sql.*;
 
 public class BankingApp {
     private static Scanner scanner = new Scanner(System.in);
-    private static BankingServices service = new BankingServices();
+    private static BankingStorage service = BankingStorage.open(); // MySQL unless -Dbank.storage=journal
     private static User currentUser = null;//If it is null, it means nobody is logged in (show the Main Menu)
+    private static final int HISTORY_PAGE_SIZE = 10;
 
     // first :- welcome menus and banners
 
@@ -30,6 +32,15 @@ public class BankingApp {
         System.out.println("╔════════════════════════════════════════╗");
         System.out.println("║                                        ║");
 
+        if (service instanceof JournalStorage) {
+            JournalStorage journal = (JournalStorage) service;
+            System.out.println("║ [✓] Storage: local journal (no MySQL)  ║");
+            System.out.println("║ [✓] Fsync: " + String.format("%-28s", journal.getFsyncPolicy()) + "║");
+            System.out.println("║                                        ║");
+            System.out.println("╚════════════════════════════════════════╝\n");
+            return;
+        }
+
         // Testing the database connection
         Connection testConn = DatabaseConnection.getConnection();
         if (testConn != null) {
@@ -131,12 +142,12 @@ public class BankingApp {
 
         switch (aMenuChoice) {
             case 1:
-                double balance = service.getBalance(currentUser.getAccountNumber());
+                long balance = service.getBalancePaise(currentUser.getAccountNumber());
                 System.out.println("\n┌─────────────────────────────────────┐");
                 System.out.println("│       BALANCE INQUIRY               │");
                 System.out.println("├─────────────────────────────────────┤");
                 System.out.println("│  Account: " + currentUser.getAccountNumber());
-                System.out.println("│  Balance: ₹" + String.format("%.2f", balance));
+                System.out.println("│  Balance: ₹" + Money.format(balance));
                 System.out.println("└─────────────────────────────────────┘");
                 break;
 
@@ -145,19 +156,21 @@ public class BankingApp {
                 System.out.println("│       DEPOSIT TRANSACTION           │");
                 System.out.println("└─────────────────────────────────────┘");
                 System.out.print("→ Enter amount to deposit: ₹");
-                if (scanner.hasNextDouble()) {
-                    double depositAmount = scanner.nextDouble();
-                    if (service.deposit(currentUser.getAccountNumber(), depositAmount)) {
-                        double newBal = service.getBalance(currentUser.getAccountNumber());
+                long depositAmount = Money.parse(scanner.next()); // paise, exact to the last digit typed
+                if (depositAmount != Money.INVALID) {
+                    TransactionResult deposit = service.depositWithResult(currentUser.getAccountNumber(), depositAmount);
+                    if (deposit.isSuccess()) {
+                        long newBal = deposit.getNewBalancePaise(); // comes back from the same transaction
                         System.out.println("\n Deposit Successful!");
-                        System.out.println("   Amount Deposited: ₹" + String.format("%.2f", depositAmount));
-                        System.out.println("   New Balance: ₹" + String.format("%.2f", newBal));
-                    } else {
+                        System.out.println("   Amount Deposited: ₹" + Money.format(depositAmount));
+                        System.out.println("   New Balance: ₹" + Money.format(newBal));
+                    } else if (deposit.getStatus() == TransactionStatus.INVALID_AMOUNT) {
                         System.out.println(" Deposit failed! Amount must be positive.");
+                    } else {
+                        System.out.println(" Deposit failed! Please try again later.");
                     }
                 } else {
                     System.out.println(" Invalid amount!");
-                    scanner.next();
                 }
                 break;
 
@@ -166,19 +179,23 @@ public class BankingApp {
                 System.out.println("│       WITHDRAWAL TRANSACTION        │");
                 System.out.println("└─────────────────────────────────────┘");
                 System.out.print("→ Enter amount to withdraw: ₹");
-                if (scanner.hasNextDouble()) {
-                    double withdrawAmount = scanner.nextDouble();
-                    if (service.withdraw(currentUser.getAccountNumber(), withdrawAmount)) {
-                        double newBal = service.getBalance(currentUser.getAccountNumber());
+                long withdrawAmount = Money.parse(scanner.next());
+                if (withdrawAmount != Money.INVALID) {
+                    TransactionResult withdrawal = service.withdrawWithResult(currentUser.getAccountNumber(), withdrawAmount);
+                    if (withdrawal.isSuccess()) {
+                        long newBal = withdrawal.getNewBalancePaise();
                         System.out.println("\n Withdrawal Successful!");
-                        System.out.println("   Amount Withdrawn: ₹" + String.format("%.2f", withdrawAmount));
-                        System.out.println("   New Balance: ₹" + String.format("%.2f", newBal));
+                        System.out.println("   Amount Withdrawn: ₹" + Money.format(withdrawAmount));
+                        System.out.println("   New Balance: ₹" + Money.format(newBal));
+                    } else if (withdrawal.getStatus() == TransactionStatus.INSUFFICIENT_FUNDS) {
+                        System.out.println(" Withdrawal failed! Insufficient balance.");
+                    } else if (withdrawal.getStatus() == TransactionStatus.INVALID_AMOUNT) {
+                        System.out.println(" Withdrawal failed! Amount must be positive.");
                     } else {
-                        System.out.println(" Withdrawal failed! Check balance or amount.");
+                        System.out.println(" Withdrawal failed! Please try again later.");
                     }
                 } else {
                     System.out.println(" Invalid amount!");
-                    scanner.next();
                 }
                 break;
                 // For transfer options
@@ -187,7 +204,7 @@ public class BankingApp {
                 break;
             case 5:  // Transaction History
                 loadingEffect("\n⏳ Fetching your transaction history.");
-                service.showTransactionHistory(currentUser.getAccountNumber());
+                handleTransactionHistory();
                 break;
 
             case 6:
@@ -287,8 +304,8 @@ public class BankingApp {
         System.out.println("└─────────────────────────────────────┘");
 
         //showing the current balance
-        double currentBalance = service.getBalance(currentUser.getAccountNumber());
-        System.out.println("Your Current Balance: ₹" + String.format("%.2f", currentBalance));
+        long currentBalance = service.getBalancePaise(currentUser.getAccountNumber());
+        System.out.println("Your Current Balance: ₹" + Money.format(currentBalance));
         System.out.println();
 
         //getting the receiver's account
@@ -308,19 +325,18 @@ public class BankingApp {
 
         //getting the amt.
         System.out.print("→ Enter Amount to Transfer: ₹");
-        if (!scanner.hasNextDouble()) {
+        long transferAmount = Money.parse(scanner.next());
+        if (transferAmount == Money.INVALID) {
             System.out.println("Invalid amount!");
-            scanner.next();
             return;
         }
-        double transferAmount = scanner.nextDouble();
 
         //just confirming the transaction like actual one's
         System.out.println("\n!!!!!! TRANSFER CONFIRMATION !!!!!!");
         System.out.println("─────────────────────────────────────");
         System.out.println("From Account: " + currentUser.getAccountNumber());
         System.out.println("To Account: " + receiverAccount);
-        System.out.println("Amount: ₹" + String.format("%.2f", transferAmount));
+        System.out.println("Amount: ₹" + Money.format(transferAmount));
         System.out.println("─────────────────────────────────────");
         System.out.print("Confirm transfer? (y/n): ");
 
@@ -333,18 +349,98 @@ public class BankingApp {
         //Processing transfer with the loading effect
         loadingEffect("\n⏳ Processing transfer");
 
-        if (service.transfer(currentUser.getAccountNumber(), receiverAccount, transferAmount)) {
-            double newBalance = service.getBalance(currentUser.getAccountNumber());
+        TransactionResult result = service.transferWithResult(currentUser.getAccountNumber(), receiverAccount, transferAmount);
+        if (result.isSuccess()) {
+            long newBalance = result.getNewBalancePaise();
 
             System.out.println("\n┌─────────────────────────────────────┐");
             System.out.println("│       TRANSFER SUCCESSFUL           │");
             System.out.println("├─────────────────────────────────────┤");
-            System.out.println("│  Amount Transferred: ₹" + String.format("%.2f", transferAmount));
+            System.out.println("│  Amount Transferred: ₹" + Money.format(transferAmount));
             System.out.println("│  To Account: " + receiverAccount);
-            System.out.println("│  Your New Balance: ₹" + String.format("%.2f", newBalance));
+            System.out.println("│  Your New Balance: ₹" + Money.format(newBalance));
             System.out.println("└─────────────────────────────────────┘");
+        } else {
+            printTransferFailure(result.getStatus(), receiverAccount);
+        }
+    }
+
+    // the service tells us why a transfer didn't go through, so the user gets the right message
+    private static void printTransferFailure(TransactionStatus status, int receiverAccount) {
+        switch (status) {
+            case INVALID_AMOUNT:
+                System.out.println("Transfer amount must be positive!");
+                break;
+            case SAME_ACCOUNT:
+                System.out.println("You cannot transfer money to yourself!");
+                break;
+            case INSUFFICIENT_FUNDS:
+                System.out.println("Insufficient balance! Available: ₹"
+                        + Money.format(service.getBalancePaise(currentUser.getAccountNumber())));
+                break;
+            case RECEIVER_NOT_FOUND:
+                System.out.println("Receiver account #" + receiverAccount + " not found!");
+                break;
+            default:
+                System.out.println("Oh Sheesh!! Transfer failed! Transaction rolled back.");
+        }
+    }
+
+    // Showing the history 10 at a time, newest first, and older pages only if the user asks for them
+    private static void handleTransactionHistory() {
+        System.out.println("\n╔════════════════════════════════════════╗");
+        System.out.println("║      TRANSACTION HISTORY               ║");
+        System.out.println("╚════════════════════════════════════════╝");
+
+        HistoryPage.Cursor cursor = null;
+        int count = 1;
+        while (true) {
+            HistoryPage page = service.getTransactionHistory(currentUser.getAccountNumber(), cursor, HISTORY_PAGE_SIZE);
+            if (page == null) {
+                return; // the service already said it couldn't fetch it
+            }
+            if (page.isEmpty() && count == 1) {
+                System.out.println("\nNo transactions found.");
+            }
+
+            for (TransactionRecord record : page.getRecords()) {
+                System.out.println("\n[" + count + "] ────────────────────────────────");
+                System.out.println("Type: " + record.getTransactionType());
+                System.out.println("Amount: ₹" + Money.format(record.getAmountPaise()));
+                System.out.println("Date: " + record.getTransactionDate());
+                count++;
+            }
+
+            if (!page.hasMore()) {
+                break;
+            }
+            System.out.print("\n Show older transactions? (y/n): ");
+            if (!scanner.next().equalsIgnoreCase("y")) {
+                break;
+            }
+            cursor = page.getNextCursor();
+        }
+
+        System.out.println("\n═════════════════════════════════════════\n");
+    }
+
+    // when the storage engine or the PIN hasher gives up on a call instead of answering it
+    private static void printServiceError(BankingException e) {
+        switch (e.getReason()) {
+            case UNAVAILABLE:
+                System.out.println("\n [!] Service unavailable: " + e.getMessage());
+                System.out.println("     If you just moved money, check your balance before trying again.");
+                break;
+            case REJECTED:
+                System.out.println("\n [!] The system is busy right now, please try again in a moment.");
+                break;
+            case CANCELLED:
+            case TIMEOUT:
+                System.out.println("\n [!] The request didn't finish: " + e.getMessage());
+                break;
+            default:
+                System.out.println("\n [!] " + e.getReason() + ": " + e.getMessage());
         }
-        //error messages are already handled in the service method so need here
     }
 
     // for a quick loading Effect
@@ -362,15 +458,54 @@ public class BankingApp {
 
     // MAIN method
     public static void main(String[] args) {
+        // --batch: commands from a file or stdin, results on stdout, no menus and no pauses (see BatchRunner)
+        boolean batch = args.length > 0 && args[0].equals("--batch");
+        if (batch) {
+            System.setOut(System.err); // stdout is for the results only
+        }
+
+        // Creating / upgrading the tables before anything touches them
+        if (service instanceof BankingServices) {
+            try {
+                SchemaManager.migrate();
+            } catch (SQLException e) {
+                System.out.println(" [!] Schema migration failed: " + e.getMessage());
+            }
+        }
+        if (service instanceof JournalStorage) {
+            // INTERVAL fsync only writes every few ms, so the last records are forced on the way out
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    ((JournalStorage) service).close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "journal-close"));
+        }
+
+        if (batch) {
+            try {
+                BatchRunner.run(service, args);
+                System.exit(0);
+            } catch (IOException | RuntimeException e) {
+                System.err.println(" [!] Batch failed: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
         // Show welcome banner once
         welcomeBanner();
 
         // Main application loop
         while (true) {
-            if (currentUser == null) {
-                showMainMenu();
-            } else {
-                accountMenu();
+            try {
+                if (currentUser == null) {
+                    showMainMenu();
+                } else {
+                    accountMenu();
+                }
+            } catch (BankingException e) {
+                printServiceError(e); // storage or PIN check trouble: say so and back to the menu, no crash
             }
         }
     }
@@ -0,0 +1,242 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Benchmarks for the storage operations, against a local MySQL or a throwaway journal.
+// Works like a small JMH run: per operation a warmup, then a measured phase where `threads` threads
+// call the operation in a loop. It reports throughput (ops/s) and the sampled latency distribution,
+// or with --mode alloc the bytes every call allocates (from the JVM's per-thread allocation counter).
+// It seeds its own accounts first and removes them again at the end (unless --keep).
+//
+//   java BankingBenchmark --threads 8 --accounts 1000 --skew zipf:1.1 --warmup 5 --measure 15 --ops getBalance,transfer
+//
+// Options:
+//   --threads N        caller threads (also raise -Dbank.pool.max if N is above the pool size)
+//   --accounts M       number of seeded accounts
+//   --skew S           uniform | zipf | zipf:<exponent>   (hot-account skew)
+//   --warmup SEC       warmup seconds per operation
+//   --measure SEC      measured seconds per operation
+//   --mode MODE        thrpt (count only) | sample (also time every call) | alloc (bytes per call), default sample
+//   --storage S        mysql | journal (a temp directory, no database needed), default mysql
+//   --ops LIST         comma separated, default all: registerAccount,login,getBalance,deposit,withdraw,transfer,history
+//   --keep             leave the seeded accounts in the database
+public class BankingBenchmark {
+
+    private static final String ALL_OPS = "registerAccount,login,getBalance,deposit,withdraw,transfer,history";
+    private static final long OPENING_BALANCE = Money.ofRupees(1_000_000);
+    private static final long AMOUNT = Money.ofRupees(1);
+
+    private interface Operation {
+        void run(BankingStorage service, AccountPicker picker) throws Exception;
+    }
+
+    private static final Map<String, Operation> OPERATIONS = new LinkedHashMap<>();
+    private static final AtomicInteger REGISTERED = new AtomicInteger();
+    private static String runTag;
+
+    static {
+        OPERATIONS.put("registerAccount", (service, picker) -> {
+            int n = REGISTERED.incrementAndGet();
+            service.registerAccount("Bench User " + n, runTag + "-r" + n + "@test.local", TestAccounts.PIN);
+        });
+        OPERATIONS.put("login", (service, picker) -> service.login(picker.next(), TestAccounts.PIN));
+        OPERATIONS.put("getBalance", (service, picker) -> service.getBalanceWithResult(picker.next()));
+        OPERATIONS.put("deposit", (service, picker) -> service.depositWithResult(picker.next(), AMOUNT));
+        OPERATIONS.put("withdraw", (service, picker) -> service.withdrawWithResult(picker.next(), AMOUNT));
+        OPERATIONS.put("transfer", (service, picker) -> {
+            int from = picker.next();
+            service.transferWithResult(from, picker.nextOtherThan(from), AMOUNT);
+        });
+        OPERATIONS.put("history", (service, picker) -> service.getTransactionHistory(picker.next(), null, 10));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = 4;
+        int accountCount = 1000;
+        String skew = "uniform";
+        int warmupSeconds = 5;
+        int measureSeconds = 10;
+        String mode = "sample";
+        String storage = "mysql";
+        String ops = ALL_OPS;
+        boolean keep = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--accounts": accountCount = Integer.parseInt(args[++i]); break;
+                case "--skew": skew = args[++i]; break;
+                case "--warmup": warmupSeconds = Integer.parseInt(args[++i]); break;
+                case "--measure": measureSeconds = Integer.parseInt(args[++i]); break;
+                case "--mode": mode = args[++i]; break;
+                case "--storage": storage = args[++i]; break;
+                case "--ops": ops = args[++i]; break;
+                case "--keep": keep = true; break;
+                default:
+                    System.out.println("Unknown option " + args[i] + ", see the comment at the top of BankingBenchmark.java");
+                    return;
+            }
+        }
+
+        if (!mode.equals("sample") && !mode.equals("thrpt") && !mode.equals("alloc")) {
+            System.out.println("Unknown mode " + mode + " (sample, thrpt or alloc)");
+            return;
+        }
+        boolean sample = mode.equals("sample");
+        boolean alloc = mode.equals("alloc");
+
+        runTag = "bench" + System.currentTimeMillis();
+        System.out.println("Seeding " + accountCount + " accounts (" + runTag + ", " + storage + ")...");
+        BankingStorage service;
+        int[] accounts;
+        if (storage.equals("journal")) {
+            JournalStorage journal = new JournalStorage(Files.createTempDirectory("bench-journal"));
+            accounts = seedJournal(journal, accountCount);
+            service = journal;
+        } else {
+            accounts = TestAccounts.seed(runTag, accountCount, OPENING_BALANCE);
+            service = new BankingServices();
+        }
+        AccountPicker picker = AccountPicker.of(skew, accounts);
+
+        System.out.printf("threads=%d accounts=%d skew=%s warmup=%ds measure=%ds mode=%s%n",
+                threads, accountCount, skew, warmupSeconds, measureSeconds, mode);
+        System.out.printf("%-16s %12s  %s%n", "Benchmark", "ops/s", alloc ? "allocated" : "latency");
+
+        try {
+            for (String name : ops.split(",")) {
+                Operation operation = OPERATIONS.get(name.trim());
+                if (operation == null) {
+                    System.out.println("Unknown operation " + name + " (known: " + ALL_OPS + ")");
+                    continue;
+                }
+                run(service, picker, operation, threads, warmupSeconds, false, false);
+                Result result = run(service, picker, operation, threads, measureSeconds, sample, alloc);
+                String detail = "-";
+                if (sample) {
+                    detail = result.latency.summary();
+                } else if (alloc) {
+                    detail = String.format("%.1f B/op", result.bytesPerOp);
+                }
+                System.out.printf("%-16s %12.1f  %s%s%n", name.trim(), result.opsPerSecond, detail,
+                        result.errors > 0 ? "  errors=" + result.errors : "");
+            }
+            if (service instanceof BankingServices) {
+                BankingServices mysql = (BankingServices) service;
+                System.out.println("\nPool: " + DatabaseConnection.getPoolStats());
+                System.out.println("Reads: " + DatabaseConnection.getReadRoutingStats());
+                System.out.println("Balance cache: " + mysql.getBalanceCache());
+                System.out.println("Transfers: " + mysql.getTransferEngine());
+            }
+        } finally {
+            if (service instanceof JournalStorage) {
+                ((JournalStorage) service).close();
+            } else {
+                if (!keep) {
+                    TestAccounts.remove(runTag);
+                }
+                DatabaseConnection.shutdown();
+            }
+        }
+    }
+
+    // registerAccount + opening deposit, with the registration banners kept off the console
+    private static int[] seedJournal(JournalStorage journal, int count) {
+        int[] accounts = new int[count];
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for (int i = 0; i < count; i++) {
+                accounts[i] = journal.registerHashedAccount("Bench User " + i, runTag + "-" + i + "@test.local", TestAccounts.pinHash());
+                journal.depositWithResult(accounts[i], OPENING_BALANCE);
+            }
+        } finally {
+            System.setOut(console);
+        }
+        return accounts;
+    }
+
+    private static class Result {
+        final double opsPerSecond;
+        final LatencyHistogram latency;
+        final long errors;
+        final double bytesPerOp;
+
+        Result(double opsPerSecond, LatencyHistogram latency, long errors, double bytesPerOp) {
+            this.opsPerSecond = opsPerSecond;
+            this.latency = latency;
+            this.errors = errors;
+            this.bytesPerOp = bytesPerOp;
+        }
+    }
+
+    // Running one phase: all threads start together and stop at the same deadline
+    private static Result run(BankingStorage service, AccountPicker picker, Operation operation,
+                              int threads, int seconds, boolean sample, boolean alloc) throws InterruptedException {
+        LatencyHistogram latency = new LatencyHistogram();
+        LongAdder completed = new LongAdder();
+        LongAdder errors = new LongAdder();
+        LongAdder allocated = new LongAdder();
+        // HotSpot's bean also counts the bytes each thread allocated so far
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        long[] deadline = new long[1];
+
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long allocatedBefore = alloc ? threadBean.getCurrentThreadAllocatedBytes() : 0;
+                long calls = 0;
+                while (System.nanoTime() < deadline[0]) {
+                    long begin = sample ? System.nanoTime() : 0;
+                    try {
+                        operation.run(service, picker);
+                    } catch (Exception e) {
+                        errors.increment();
+                    }
+                    if (sample) {
+                        latency.record(System.nanoTime() - begin);
+                    }
+                    calls++;
+                }
+                // counted once per thread at the end, so the counters themselves don't show up in B/op
+                completed.add(calls);
+                if (alloc) {
+                    allocated.add(threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore);
+                }
+            }, "bench-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+
+        // the services print to the console (registration banner, error messages), keep that out of the numbers
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long begin = System.nanoTime();
+        deadline[0] = begin + seconds * 1_000_000_000L;
+        start.countDown();
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } finally {
+            System.setOut(console);
+        }
+        double elapsed = (System.nanoTime() - begin) / 1_000_000_000.0;
+        long calls = completed.sum();
+        return new Result(calls / elapsed, latency, errors.sum(), calls == 0 ? 0 : (double) allocated.sum() / calls);
+    }
+}
@@ -0,0 +1,30 @@
+// Why an async banking call did not produce a result (see AsyncBankingService)
+public class BankingException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Reason {
+        TIMEOUT,
+        CANCELLED,
+        ACCOUNT_NOT_FOUND,
+        INVALID_CREDENTIALS,
+        UNAVAILABLE,
+        REJECTED
+    }
+
+    private final Reason reason;
+
+    public BankingException(Reason reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    public BankingException(Reason reason, String message, Throwable cause) {
+        super(message, cause);
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+}
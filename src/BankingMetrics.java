@@ -0,0 +1,238 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Where the time goes: one LatencyHistogram per service operation plus the JDBC steps underneath it
+// (waiting for a pooled connection, executing a statement, commit, rollback), and a counter per outcome.
+// Recording is a nanoTime() pair and a few uncontended atomic adds, so it stays on in production;
+// -Dbank.metrics.enabled=false turns every call into a no-op.
+// Readable through JMX (BankingMetricsMBean) and, with -Dbank.metrics.dumpSeconds=N, as a text dump
+// every N seconds to stderr or to -Dbank.metrics.dumpFile=...
+public class BankingMetrics implements BankingMetricsMBean {
+
+    public enum Timer {
+        REGISTER("registerAccount"),
+        LOGIN("login"),
+        BALANCE("getBalance"),
+        BALANCE_AS_OF("getBalanceAsOf"),
+        DEPOSIT("deposit"),
+        WITHDRAW("withdraw"),
+        TRANSFER("transfer"),
+        BATCH_TRANSFER("transferBatch"),
+        HISTORY("history"),
+        ACQUIRE("connection.acquire"),
+        STATEMENT("statement.execute"),
+        COMMIT("commit"),
+        ROLLBACK("rollback");
+
+        final String label;
+
+        Timer(String label) {
+            this.label = label;
+        }
+
+        static Timer byLabel(String label) {
+            for (Timer timer : values()) {
+                if (timer.label.equals(label) || timer.name().equalsIgnoreCase(label)) {
+                    return timer;
+                }
+            }
+            throw new IllegalArgumentException("Unknown timer " + label);
+        }
+    }
+
+    private static BankingMetrics shared;
+
+    private final boolean enabled;
+    private final LatencyHistogram[] timers = new LatencyHistogram[Timer.values().length];
+    private final LongAdder[] outcomes = new LongAdder[TransactionStatus.values().length];
+    private ScheduledExecutorService dumper;
+
+    public BankingMetrics(boolean enabled) {
+        this.enabled = enabled;
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < outcomes.length; i++) {
+            outcomes[i] = new LongAdder();
+        }
+    }
+
+    // The instance the services and the pool record into; registered with JMX the first time it's asked for
+    public static synchronized BankingMetrics shared() {
+        if (shared == null) {
+            shared = new BankingMetrics(Boolean.parseBoolean(System.getProperty("bank.metrics.enabled", "true")));
+            if (shared.enabled) {
+                shared.register("bank:type=BankingMetrics");
+                long dumpSeconds = Long.getLong("bank.metrics.dumpSeconds", 0);
+                if (dumpSeconds > 0) {
+                    shared.startDump(dumpSeconds, System.getProperty("bank.metrics.dumpFile"));
+                }
+            }
+        }
+        return shared;
+    }
+
+    // RECORDING
+
+    // 0 when disabled, so a disabled run doesn't even read the clock
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    public void record(Timer timer, long start) {
+        if (enabled) {
+            timers[timer.ordinal()].record(System.nanoTime() - start);
+        }
+    }
+
+    // Times the call and counts its outcome; hands the result back so callers can return it directly
+    public TransactionResult record(Timer timer, long start, TransactionResult result) {
+        if (enabled) {
+            timers[timer.ordinal()].record(System.nanoTime() - start);
+            outcomes[result.getStatus().ordinal()].increment();
+        }
+        return result;
+    }
+
+    // for places that measured the time themselves (the pool already times every acquire)
+    public void recordNanos(Timer timer, long nanos) {
+        if (enabled) {
+            timers[timer.ordinal()].record(nanos);
+        }
+    }
+
+    public LatencyHistogram getHistogram(Timer timer) {
+        return timers[timer.ordinal()];
+    }
+
+    public long getOutcomes(TransactionStatus status) {
+        return outcomes[status.ordinal()].sum();
+    }
+
+    // JMX
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public long getCommits() {
+        return getHistogram(Timer.COMMIT).getCount();
+    }
+
+    @Override
+    public long getRollbacks() {
+        return getHistogram(Timer.ROLLBACK).getCount();
+    }
+
+    @Override
+    public long getInsufficientFunds() {
+        return getOutcomes(TransactionStatus.INSUFFICIENT_FUNDS);
+    }
+
+    @Override
+    public long getNotFound() {
+        return getOutcomes(TransactionStatus.ACCOUNT_NOT_FOUND) + getOutcomes(TransactionStatus.RECEIVER_NOT_FOUND);
+    }
+
+    @Override
+    public long getFailures() {
+        return getOutcomes(TransactionStatus.FAILED);
+    }
+
+    @Override
+    public long count(String timer) {
+        return getHistogram(Timer.byLabel(timer)).getCount();
+    }
+
+    @Override
+    public double meanMicros(String timer) {
+        return getHistogram(Timer.byLabel(timer)).getMeanNanos() / 1000.0;
+    }
+
+    @Override
+    public double percentileMicros(String timer, double percentile) {
+        return getHistogram(Timer.byLabel(timer)).getPercentileNanos(percentile) / 1000.0;
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : timers) {
+            histogram.reset();
+        }
+        for (LongAdder outcome : outcomes) {
+            outcome.reset();
+        }
+    }
+
+    // One line per timer that saw any calls, then the outcome counts
+    @Override
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (Timer timer : Timer.values()) {
+            LatencyHistogram histogram = timers[timer.ordinal()];
+            if (histogram.getCount() > 0) {
+                sb.append(String.format("%-20s %s%n", timer.label, histogram.summary()));
+            }
+        }
+        sb.append("outcomes:");
+        for (TransactionStatus status : TransactionStatus.values()) {
+            sb.append(' ').append(status).append('=').append(getOutcomes(status));
+        }
+        return sb.append(System.lineSeparator()).toString();
+    }
+
+    @Override
+    public String toString() {
+        return getSummary();
+    }
+
+    private void register(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+        } catch (JMException e) {
+            System.out.println(" [!] Metrics are not available over JMX: " + e.getMessage());
+        }
+    }
+
+    // PERIODIC DUMP
+
+    public synchronized void startDump(long periodSeconds, String file) {
+        if (dumper != null) {
+            return;
+        }
+        PrintStream out = System.err;
+        if (file != null) {
+            try {
+                out = new PrintStream(new FileOutputStream(file, true), true);
+            } catch (IOException e) {
+                System.out.println(" [!] Can't write metrics to " + file + ", using stderr: " + e.getMessage());
+            }
+        }
+        PrintStream target = out;
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> target.print("---- metrics " + LocalDateTime.now() + " ----"
+                + System.lineSeparator() + getSummary()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stopDump() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+        }
+    }
+}
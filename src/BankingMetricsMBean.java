@@ -0,0 +1,27 @@
+// What BankingMetrics shows in JConsole / VisualVM under bank:type=BankingMetrics.
+// Timer names for the operations are the ones in BankingMetrics.Timer, e.g. "deposit" or "commit".
+public interface BankingMetricsMBean {
+
+    boolean isEnabled();
+
+    // the same text as the periodic dump
+    String getSummary();
+
+    long getCommits();
+
+    long getRollbacks();
+
+    long getInsufficientFunds();
+
+    long getNotFound();
+
+    long getFailures();
+
+    long count(String timer);
+
+    double meanMicros(String timer);
+
+    double percentileMicros(String timer, double percentile);
+
+    void reset();
+}
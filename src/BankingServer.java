@@ -0,0 +1,424 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Server mode: the same BankingStorage (MySQL or the local journal) over HTTP, so one JVM can serve many customers at once.
+// Every request runs on its own virtual thread, so a request blocked in JDBC costs almost nothing;
+// the real limit is the connection pool, and maxConcurrency keeps the queue in front of it bounded.
+//
+//   java BankingServer --port 8080 --max-concurrency 2000 --drain-seconds 10
+//
+// Endpoints (form parameters in the body or the query string, JSON back):
+//   POST /login      account, pin          -> token
+//   POST /logout
+//   GET  /balance
+//   POST /deposit    amount
+//   POST /withdraw   amount
+//   POST /transfer   to, amount
+//   GET  /history    limit, cursor
+// Everything except /login needs the header "Authorization: Bearer <token>".
+// Only /login checks the PIN (a PBKDF2 hash, see PinHasher); later requests just look their token up.
+// Too many wrong PINs get a 429 with Retry-After (LoginThrottle).
+// /deposit, /withdraw and /transfer take an optional "Idempotency-Key: <1-64 printable ASCII>" header: a retry
+// with the same key gets the first response again instead of moving the money twice, and the same key with
+// different parameters gets a 422 (IdempotencyStore).
+public class BankingServer {
+
+    private static final long SESSION_TTL_MILLIS = Long.getLong("bank.server.sessionTtlMillis", 15 * 60 * 1000);
+    private static final long ADMISSION_WAIT_MILLIS = 100;
+    private static final int MAX_HISTORY_PAGE = 100;
+
+    private final BankingStorage service;
+    private final SessionStore sessions;
+    private final int maxConcurrency;
+    private final Semaphore inFlight;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final ScheduledExecutorService janitor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "session-janitor");
+        t.setDaemon(true);
+        return t;
+    });
+    private HttpServer server;
+    private volatile boolean draining = false;
+
+    public BankingServer(BankingStorage service, int maxConcurrency) {
+        this(service, maxConcurrency, new SessionStore(SESSION_TTL_MILLIS));
+    }
+
+    // the same SessionStore can be handed to an AsyncBankingService, so a token works on both
+    public BankingServer(BankingStorage service, int maxConcurrency, SessionStore sessions) {
+        this.service = service;
+        this.sessions = sessions;
+        this.maxConcurrency = maxConcurrency;
+        this.inFlight = new Semaphore(maxConcurrency);
+    }
+
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 1024);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        janitor.scheduleWithFixedDelay(sessions::purgeExpired, 1, 1, TimeUnit.MINUTES);
+        System.out.println("Banking server listening on port " + port + " (max " + maxConcurrency + " concurrent requests)");
+    }
+
+    // Graceful drain: stop taking new requests, let the running ones finish (up to drainSeconds), then close
+    public void stop(int drainSeconds) {
+        draining = true;
+        System.out.println("Draining " + (maxConcurrency - inFlight.availablePermits()) + " in-flight request(s)...");
+        try {
+            if (inFlight.tryAcquire(maxConcurrency, drainSeconds, TimeUnit.SECONDS)) {
+                inFlight.release(maxConcurrency);
+            } else {
+                System.out.println("Drain timed out, closing anyway.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        server.stop(0);
+        executor.shutdown();
+        janitor.shutdownNow();
+        DatabaseConnection.shutdown();
+        System.out.println("Banking server stopped.");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (draining) {
+                exchange.getResponseHeaders().add("Connection", "close");
+                send(exchange, 503, "{\"error\":\"server is shutting down\"}");
+                return;
+            }
+            boolean admitted;
+            try {
+                admitted = inFlight.tryAcquire(ADMISSION_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                admitted = false;
+            }
+            if (!admitted) {
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                send(exchange, 503, "{\"error\":\"too many concurrent requests\"}");
+                return;
+            }
+            try {
+                route(exchange);
+            } finally {
+                inFlight.release();
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            send(exchange, 500, "{\"error\":\"internal error\"}");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void route(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        Map<String, String> params = params(exchange);
+
+        if (path.equals("/login")) {
+            if (requirePost(exchange)) {
+                login(exchange, params);
+            }
+            return;
+        }
+
+        SessionStore.Session session = sessions.get(bearerToken(exchange));
+        if (session == null) {
+            send(exchange, 401, "{\"error\":\"login required\"}");
+            return;
+        }
+        int account = session.getAccountNumber();
+        String idempotencyKey = exchange.getRequestHeaders().getFirst("Idempotency-Key");
+        if (idempotencyKey != null && !IdempotencyStore.isValidKey(idempotencyKey)) {
+            send(exchange, 400, "{\"error\":\"Idempotency-Key must be 1-" + IdempotencyStore.MAX_KEY_LENGTH + " printable ASCII characters\"}");
+            return;
+        }
+
+        switch (path) {
+            case "/logout":
+                if (requirePost(exchange)) {
+                    sessions.remove(session.getToken());
+                    send(exchange, 200, "{\"status\":\"LOGGED_OUT\"}");
+                }
+                break;
+            case "/balance":
+                long balance = service.getBalancePaise(account);
+                if (balance < 0) {
+                    send(exchange, 500, "{\"error\":\"balance unavailable\"}");
+                } else {
+                    send(exchange, 200, "{\"accountNumber\":" + account + ",\"balance\":" + money(balance) + "}");
+                }
+                break;
+            case "/deposit":
+                if (requirePost(exchange)) {
+                    long amount = parseAmount(exchange, params);
+                    if (amount != Money.INVALID) {
+                        sendResult(exchange, service.depositWithResult(account, amount, idempotencyKey));
+                    }
+                }
+                break;
+            case "/withdraw":
+                if (requirePost(exchange)) {
+                    long amount = parseAmount(exchange, params);
+                    if (amount != Money.INVALID) {
+                        sendResult(exchange, service.withdrawWithResult(account, amount, idempotencyKey));
+                    }
+                }
+                break;
+            case "/transfer":
+                if (requirePost(exchange)) {
+                    long amount = parseAmount(exchange, params);
+                    Integer to = parseInt(params.get("to"));
+                    if (to == null) {
+                        send(exchange, 400, "{\"error\":\"to must be an account number\"}");
+                    } else if (amount != Money.INVALID) {
+                        sendResult(exchange, service.transferWithResult(account, to, amount, idempotencyKey));
+                    }
+                }
+                break;
+            case "/history":
+                history(exchange, account, params);
+                break;
+            default:
+                send(exchange, 404, "{\"error\":\"no such endpoint\"}");
+        }
+    }
+
+    private void login(HttpExchange exchange, Map<String, String> params) throws IOException {
+        Integer account = parseInt(params.get("account"));
+        String pin = params.get("pin");
+        if (account == null || pin == null) {
+            send(exchange, 400, "{\"error\":\"account and pin are required\"}");
+            return;
+        }
+        long retryAfter = LoginThrottle.shared().retryAfterMillis(account);
+        if (retryAfter > 0) {
+            exchange.getResponseHeaders().add("Retry-After", Long.toString((retryAfter + 999) / 1000));
+            send(exchange, 429, "{\"error\":\"too many wrong PINs\"}");
+            return;
+        }
+        User user;
+        try {
+            user = service.login(account, pin);
+        } catch (BankingException e) {
+            // the PIN hashing pool is full, same answer as a full server
+            exchange.getResponseHeaders().add("Retry-After", "1");
+            send(exchange, 503, "{\"error\":\"too many logins in progress\"}");
+            return;
+        }
+        if (user == null) {
+            send(exchange, 401, "{\"error\":\"invalid credentials\"}");
+            return;
+        }
+        SessionStore.Session session = sessions.create(user);
+        send(exchange, 200, "{\"token\":\"" + session.getToken() + "\",\"accountNumber\":" + user.getAccountNumber()
+                + ",\"fullName\":" + quote(user.getFullName()) + "}");
+    }
+
+    // cursor is "<epochMillis>:<transactionId>" as returned in nextCursor
+    private void history(HttpExchange exchange, int account, Map<String, String> params) throws IOException {
+        Integer limit = params.containsKey("limit") ? parseInt(params.get("limit")) : Integer.valueOf(10);
+        if (limit == null || limit < 1 || limit > MAX_HISTORY_PAGE) {
+            send(exchange, 400, "{\"error\":\"limit must be 1-" + MAX_HISTORY_PAGE + "\"}");
+            return;
+        }
+        HistoryPage.Cursor cursor = null;
+        String rawCursor = params.get("cursor");
+        if (rawCursor != null && !rawCursor.isEmpty()) {
+            try {
+                String[] parts = rawCursor.split(":");
+                cursor = new HistoryPage.Cursor(new Timestamp(Long.parseLong(parts[0])), Long.parseLong(parts[1]));
+            } catch (RuntimeException e) {
+                send(exchange, 400, "{\"error\":\"bad cursor\"}");
+                return;
+            }
+        }
+
+        HistoryPage page = service.getTransactionHistory(account, cursor, limit);
+        if (page == null) {
+            send(exchange, 500, "{\"error\":\"history unavailable\"}");
+            return;
+        }
+        StringBuilder json = new StringBuilder("{\"transactions\":[");
+        boolean first = true;
+        for (TransactionRecord record : page.getRecords()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append("{\"id\":").append(record.getTransactionId())
+                    .append(",\"type\":\"").append(record.getTransactionType())
+                    .append("\",\"amount\":").append(money(record.getAmountPaise()))
+                    .append(",\"date\":").append(quote(String.valueOf(record.getTransactionDate())))
+                    .append('}');
+        }
+        json.append("],\"nextCursor\":");
+        if (page.hasMore()) {
+            HistoryPage.Cursor next = page.getNextCursor();
+            json.append('"').append(next.getTransactionDate().getTime()).append(':').append(next.getTransactionId()).append('"');
+        } else {
+            json.append("null");
+        }
+        json.append('}');
+        send(exchange, 200, json.toString());
+    }
+
+    private void sendResult(HttpExchange exchange, TransactionResult result) throws IOException {
+        int code;
+        switch (result.getStatus()) {
+            case SUCCESS: code = 200; break;
+            case INVALID_AMOUNT:
+            case SAME_ACCOUNT: code = 400; break;
+            case ACCOUNT_NOT_FOUND:
+            case RECEIVER_NOT_FOUND: code = 404; break;
+            case INSUFFICIENT_FUNDS: code = 409; break;
+            case KEY_REUSED: code = 422; break;
+            default: code = 500;
+        }
+        String body = "{\"status\":\"" + result.getStatus() + "\""
+                + (result.isSuccess() ? ",\"balance\":" + money(result.getNewBalancePaise()) : "") + "}";
+        send(exchange, code, body);
+    }
+
+    // HELPERS
+
+    private static boolean requirePost(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+            exchange.getResponseHeaders().add("Allow", "POST");
+            send(exchange, 405, "{\"error\":\"use POST\"}");
+            return false;
+        }
+        return true;
+    }
+
+    // paise, or Money.INVALID after the 400 has been sent
+    private static long parseAmount(HttpExchange exchange, Map<String, String> params) throws IOException {
+        String text = params.get("amount");
+        long amount = text == null ? Money.INVALID : Money.parse(text);
+        if (amount == Money.INVALID) {
+            send(exchange, 400, "{\"error\":\"amount must be a number with at most two decimals\"}");
+        }
+        return amount;
+    }
+
+    private static Integer parseInt(String value) {
+        try {
+            return value == null ? null : Integer.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String bearerToken(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header == null || !header.startsWith("Bearer ")) {
+            return null;
+        }
+        return header.substring("Bearer ".length()).trim();
+    }
+
+    // query string and url-encoded body together
+    private static Map<String, String> params(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        parseForm(exchange.getRequestURI().getRawQuery(), params);
+        try (InputStream body = exchange.getRequestBody()) {
+            byte[] bytes = body.readNBytes(8192); // forms here are tiny
+            if (bytes.length > 0) {
+                parseForm(new String(bytes, StandardCharsets.UTF_8), params);
+            }
+        }
+        return params;
+    }
+
+    private static void parseForm(String form, Map<String, String> into) {
+        if (form == null || form.isEmpty()) {
+            return;
+        }
+        for (String pair : form.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            into.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String money(long paise) {
+        return Money.format(paise);
+    }
+
+    private static String quote(String text) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static void send(HttpExchange exchange, int code, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = 8080;
+        int maxConcurrency = 1000;
+        int drainSeconds = 10;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port": port = Integer.parseInt(args[++i]); break;
+                case "--max-concurrency": maxConcurrency = Integer.parseInt(args[++i]); break;
+                case "--drain-seconds": drainSeconds = Integer.parseInt(args[++i]); break;
+                default:
+                    System.out.println("Usage: java BankingServer [--port N] [--max-concurrency N] [--drain-seconds N]");
+                    return;
+            }
+        }
+
+        BankingStorage storage = BankingStorage.open();
+        if (storage instanceof BankingServices) {
+            SchemaManager.migrate();
+        }
+        BankingServer server = new BankingServer(storage, maxConcurrency);
+        server.start(port);
+
+        int drain = drainSeconds;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(drain);
+            if (storage instanceof JournalStorage) {
+                try {
+                    ((JournalStorage) storage).close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "server-drain"));
+    }
+}
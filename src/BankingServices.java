@@ -1,9 +1,86 @@
+import java.math.BigDecimal;
 import java.sql.*;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+public class BankingServices implements BankingStorage {
+
+    // Same SQL text everywhere, so every method hits the same cached prepared statement on a connection
+    private static final String CREDIT_SQL = "UPDATE users SET balance = balance + ? WHERE account_number = ?";
+    private static final String DEBIT_SQL = "UPDATE users SET balance = balance - ? WHERE account_number = ?";
+    private static final String GUARDED_DEBIT_SQL = "UPDATE users SET balance = balance - ? WHERE account_number = ? AND balance >= ?";
+    private static final String LOG_SQL = "INSERT INTO transactions (account_number, transaction_type, amount) VALUES (?, ?, ?)";
+    private static final String BALANCE_SQL = "SELECT balance FROM users WHERE account_number = ?";
+
+    // history reads seek on (transaction_date, transaction_id) instead of using OFFSET
+    private static final String HISTORY_COLUMNS = "SELECT transaction_id, account_number, transaction_type, amount, transaction_date FROM transactions ";
+    private static final String HISTORY_FIRST_PAGE_SQL = HISTORY_COLUMNS
+            + "WHERE account_number = ? ORDER BY transaction_date DESC, transaction_id DESC LIMIT ?";
+    private static final String HISTORY_NEXT_PAGE_SQL = HISTORY_COLUMNS
+            + "WHERE account_number = ? AND (transaction_date < ? OR (transaction_date = ? AND transaction_id < ?)) "
+            + "ORDER BY transaction_date DESC, transaction_id DESC LIMIT ?";
+    private static final String HISTORY_STREAM_SQL = HISTORY_COLUMNS
+            + "WHERE account_number = ? ORDER BY transaction_date, transaction_id";
+    private static final int HISTORY_FETCH_SIZE = Integer.getInteger("bank.history.fetchSize", 500);
+
+    // how many transfers go into one commit of transferBatch(), -Dbank.batch.chunkSize=...
+    private static final int DEFAULT_BATCH_CHUNK_SIZE = Integer.getInteger("bank.batch.chunkSize", 500);
+
+    // balances read or committed through this service, see BalanceCache
+    private final BalanceCache balanceCache;
+    private final TransferEngine transferEngine;
+    // when set, deposits and withdrawals share commits with whatever else arrives at the same time
+    private final GroupCommitter groupCommitter;
+    // per-operation latency and outcomes, see BankingMetrics
+    private final BankingMetrics metrics = BankingMetrics.shared();
+    // wrong PINs per account, checked before the database is asked anything
+    private final LoginThrottle throttle = LoginThrottle.shared();
+    // recent idempotency keys and their results, in front of the idempotency_keys table
+    private final IdempotencyStore idempotency = IdempotencyStore.shared();
+
+    public BankingServices() {
+        this(BalanceCache.shared(), GroupCommitter.sharedIfEnabled());
+    }
+
+    public BankingServices(BalanceCache balanceCache) {
+        this(balanceCache, null);
+    }
 
-public class BankingServices {
+    public BankingServices(BalanceCache balanceCache, GroupCommitter groupCommitter) {
+        this.balanceCache = balanceCache;
+        this.transferEngine = new TransferEngine(balanceCache);
+        this.groupCommitter = groupCommitter;
+    }
+
+    public BalanceCache getBalanceCache() {
+        return balanceCache;
+    }
+
+    // retry / give-up counters for transfers
+    public TransferEngine getTransferEngine() {
+        return transferEngine;
+    }
+
+    // null unless group commit is on
+    public GroupCommitter getGroupCommitter() {
+        return groupCommitter;
+    }
 
     //REGISTRATION
     public int registerAccount(String fullName, String email, String pin) {
+        long start = metrics.start();
+        int accountNumber = insertAccount(fullName, email, pin);
+        metrics.record(BankingMetrics.Timer.REGISTER, start);
+        return accountNumber;
+    }
+
+    private int insertAccount(String fullName, String email, String pin) {
         // Just to make sure that user is entering the right input for the pin
         if (fullName.trim().isEmpty() || email.trim().isEmpty() || pin.length() < 4) {
             //trim() will clear the spaces
@@ -12,13 +89,14 @@ public class BankingServices {
         }
 
         String query = "INSERT INTO users (full_name, email, security_pin, balance) VALUES (?, ?, ?, 0.00)";
+        String pinHash = PinHasher.hash(pin); // before taking a connection, the hash takes a while
 
-        try (Connection conn = DatabaseConnection.getConnection();
+        try (Connection conn = DatabaseConnection.getShardConnection(DatabaseConnection.shardForEmail(email));
              PreparedStatement pstmt = conn.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) //RET..keys will return the acc. no.
         {
             pstmt.setString(1, fullName);
             pstmt.setString(2, email);
-            pstmt.setString(3, pin);
+            pstmt.setString(3, pinHash);
 
             int affectedRows = pstmt.executeUpdate();
 
@@ -27,16 +105,8 @@ public class BankingServices {
                 ResultSet generatedKeys = pstmt.getGeneratedKeys();
                 if (generatedKeys.next()) {
                     int newAccountNumber = generatedKeys.getInt(1);
-                    System.out.println("\n===========================================");
-                    System.out.println("{  *** Account Created Successfully! ***  }");
-                    System.out.println("===========================================");
-                    System.out.println(" Account Holder : " + fullName);
-                    System.out.println(" Email : " + email);
-                    System.out.println(" Your Account Number : " + newAccountNumber);
-                    System.out.println(" Initial Balance : ₹0.00");
-                    System.out.println("============================================");
-                    System.out.println(" IMPORTANT: Please save your account number!");
-                    System.out.println("============================================\n");
+                    DatabaseConnection.wrote(newAccountNumber); // so the first login doesn't miss it on a replica
+                    printAccountCreated(fullName, email, newAccountNumber);
                     return newAccountNumber;
                 }
             }
@@ -55,86 +125,253 @@ public class BankingServices {
     }
 
 
+    // shared with the other storage engines so a new account looks the same everywhere
+    static void printAccountCreated(String fullName, String email, int accountNumber) {
+        System.out.println("\n===========================================");
+        System.out.println("{  *** Account Created Successfully! ***  }");
+        System.out.println("===========================================");
+        System.out.println(" Account Holder : " + fullName);
+        System.out.println(" Email : " + email);
+        System.out.println(" Your Account Number : " + accountNumber);
+        System.out.println(" Initial Balance : ₹0.00");
+        System.out.println("============================================");
+        System.out.println(" IMPORTANT: Please save your account number!");
+        System.out.println("============================================\n");
+    }
+
+
     // LOGIN
     public User login(int accountNumber, String pin) {
-        String query = "SELECT * FROM users WHERE account_number = ? AND security_pin = ?";
+        long start = metrics.start();
+        User user = authenticate(accountNumber, pin);
+        metrics.record(BankingMetrics.Timer.LOGIN, start);
+        return user;
+    }
 
-        try (Connection conn = DatabaseConnection.getConnection();
+    // The row is read and the connection handed back before the PIN is hashed, so a slow hash never holds
+    // a pooled connection. Plaintext or cheaper hashes are upgraded here, after a successful check.
+    private User authenticate(int accountNumber, String pin) {
+        long retryAfter = throttle.retryAfterMillis(accountNumber);
+        if (retryAfter > 0) {
+            System.out.println("Too many wrong PINs! Try again in " + (retryAfter + 999) / 1000 + " seconds.");
+            return null;
+        }
+        String query = "SELECT account_number, full_name, email, balance, security_pin FROM users WHERE account_number = ?";
+        long stamp = balanceCache.stamp(accountNumber);
+        User user = null;
+        String stored = null;
+
+        try (Connection conn = DatabaseConnection.getReadConnection(accountNumber);
              PreparedStatement pstmt = conn.prepareStatement(query)) {
 
             pstmt.setInt(1, accountNumber);
-            pstmt.setString(2, pin);
-
 
             ResultSet rs = pstmt.executeQuery();
 
             if (rs.next()) {
-                return new User(
+                user = new User(
                         rs.getInt("account_number"),
                         rs.getString("full_name"),
                         rs.getString("email"),
-                        rs.getDouble("balance")
+                        Money.fromBigDecimal(rs.getBigDecimal("balance"))
                 );
+                stored = rs.getString("security_pin");
             }
 
-
         } catch (SQLException e) {
             e.printStackTrace();
+            return null;
         }
-        return null;
+
+        if (user == null || !PinHasher.verify(pin, stored)) {
+            throttle.recordFailure(accountNumber);
+            return null;
+        }
+        throttle.recordSuccess(accountNumber);
+        // the balance comes along for free, so the first balance check after login is a cache hit
+        balanceCache.complete(accountNumber, stamp, user.getBalancePaise());
+        if (PinHasher.needsRehash(stored)) {
+            rehashPin(accountNumber, pin, stored);
+        }
+        return user;
     }
 
-    // CHECKING BALANCE
-    public double getBalance(int accountNumber) {
-        String query = "SELECT balance FROM users WHERE account_number = ?";
+    // Only replaces the PIN we verified, so a PIN changed in the meantime is left alone
+    private void rehashPin(int accountNumber, String pin, String stored) {
+        String pinHash = PinHasher.hash(pin);
+        try (Connection conn = DatabaseConnection.getConnection(accountNumber);
+             PreparedStatement pstmt = conn.prepareStatement(
+                     "UPDATE users SET security_pin = ? WHERE account_number = ? AND security_pin = ?")) {
+            pstmt.setString(1, pinHash);
+            pstmt.setInt(2, accountNumber);
+            pstmt.setString(3, stored);
+            pstmt.executeUpdate();
+            DatabaseConnection.wrote(accountNumber); // a replica would still hand out the old PIN for a moment
+        } catch (SQLException e) {
+            e.printStackTrace(); // the old PIN still works, we'll try again at the next login
+        }
+    }
 
-        try (Connection conn = DatabaseConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(query)) {
+    // CHECKING BALANCE (read-through the balance cache)
+    // Unlike getBalancePaise() a missing account and a database problem are told apart
+    public TransactionResult getBalanceWithResult(int accountNumber) {
+        long start = metrics.start();
+        return metrics.record(BankingMetrics.Timer.BALANCE, start, readBalanceWithResult(accountNumber));
+    }
 
-            pstmt.setInt(1, accountNumber);
-            ResultSet rs = pstmt.executeQuery();
+    private TransactionResult readBalanceWithResult(int accountNumber) {
+        long cached = balanceCache.get(accountNumber);
+        if (cached >= 0) {
+            return new TransactionResult(TransactionStatus.SUCCESS, cached);
+        }
+        long stamp = balanceCache.stamp(accountNumber);
 
-            if (rs.next()) {
-                return rs.getDouble("balance");
+        try (Connection conn = DatabaseConnection.getReadConnection(accountNumber)) {
+            if (conn == null) {
+                return TransactionResult.of(TransactionStatus.FAILED);
+            }
+            long balance = readBalance(conn, accountNumber);
+            if (balance < 0) {
+                return TransactionResult.of(TransactionStatus.ACCOUNT_NOT_FOUND);
             }
+            balanceCache.complete(accountNumber, stamp, balance);
+            return new TransactionResult(TransactionStatus.SUCCESS, balance);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return TransactionResult.of(TransactionStatus.FAILED);
+    }
+
+    // BALANCE AS OF A PAST INSTANT
+    // Last daily_balances snapshot before that day plus one day of rows (see DailyBalanceJob),
+    // so a date years back costs the same as yesterday
+    public TransactionResult getBalanceAsOf(int accountNumber, Instant instant) {
+        long start = metrics.start();
+        return metrics.record(BankingMetrics.Timer.BALANCE_AS_OF, start, readBalanceAsOf(accountNumber, instant));
+    }
 
+    private TransactionResult readBalanceAsOf(int accountNumber, Instant instant) {
+        try (Connection conn = DatabaseConnection.getReadConnection(accountNumber)) {
+            if (conn == null) {
+                return TransactionResult.of(TransactionStatus.FAILED);
+            }
+            // one REPEATABLE READ snapshot for all the reads, even if the job commits a chunk in between
+            conn.setAutoCommit(false);
+            try {
+                if (readBalance(conn, accountNumber) < 0) {
+                    return TransactionResult.of(TransactionStatus.ACCOUNT_NOT_FOUND);
+                }
+                return new TransactionResult(TransactionStatus.SUCCESS, DailyBalanceJob.balanceAsOf(conn, accountNumber, instant));
+            } finally {
+                conn.rollback(); // read only, nothing to keep
+            }
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        return TransactionResult.of(TransactionStatus.FAILED);
+    }
+
+    // balance as this connection sees it (inside a transaction that is the value about to be committed)
+    private long readBalance(Connection conn, int accountNumber) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(BALANCE_SQL)) {
+            pstmt.setInt(1, accountNumber);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return Money.fromBigDecimal(rs.getBigDecimal("balance"));
+                }
+            }
+        }
         return -1;
     }
 
     //DEPOSITING MONEY
-    public boolean deposit(int accountNumber, double amount) {
-        if (amount <= 0) {
+    public boolean deposit(int accountNumber, long amount) {
+        TransactionResult result = depositWithResult(accountNumber, amount);
+        if (result.getStatus() == TransactionStatus.INVALID_AMOUNT) {
             System.out.println("Amount must be positive!");
-            return false;
+        } else if (result.getStatus() == TransactionStatus.ACCOUNT_NOT_FOUND) {
+            System.out.println("Account #" + accountNumber + " not found!");
+        }
+        return result.isSuccess();
+    }
+
+    // Same as deposit() but tells what happened and hands back the new balance
+    public TransactionResult depositWithResult(int accountNumber, long amount) {
+        long start = metrics.start();
+        return metrics.record(BankingMetrics.Timer.DEPOSIT, start, applyDeposit(accountNumber, amount, null));
+    }
+
+    // A retry with the same key gets the first deposit's result (from memory, or from idempotency_keys)
+    @Override
+    public TransactionResult depositWithResult(int accountNumber, long amount, String idempotencyKey) {
+        return idempotency.execute(accountNumber, idempotencyKey, IdempotencyStore.request("DEPOSIT", amount, 0), () -> {
+            long start = metrics.start();
+            return metrics.record(BankingMetrics.Timer.DEPOSIT, start, applyDeposit(accountNumber, amount, idempotencyKey));
+        });
+    }
+
+    // the group commit's result; an outcome it can't know comes out as its BankingException, not wrapped
+    private static TransactionResult await(CompletableFuture<TransactionResult> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof BankingException) {
+                throw (BankingException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private TransactionResult applyDeposit(int accountNumber, long amount, String idempotencyKey) {
+        if (amount <= 0) {
+            return TransactionResult.of(TransactionStatus.INVALID_AMOUNT);
+        }
+        if (groupCommitter != null) {
+            return await(groupCommitter.deposit(accountNumber, amount, idempotencyKey)); // returns once the shared commit is done
         }
 
+        long stamp = balanceCache.beginWrite(accountNumber);
         Connection conn = null;
         try {
-            conn = DatabaseConnection.getConnection();
+            conn = DatabaseConnection.getConnection(accountNumber);
+            if (conn == null) {
+                return TransactionResult.of(TransactionStatus.FAILED);
+            }
             conn.setAutoCommit(false); //Starting  the transaction
 
             // Updating balance
-            String updateQuery = "UPDATE users SET balance = balance + ? WHERE account_number = ?";
-            PreparedStatement pstmt1 = conn.prepareStatement(updateQuery);
-            pstmt1.setDouble(1, amount);
-            pstmt1.setInt(2, accountNumber);
-            pstmt1.executeUpdate();
+            int rowsAffected;
+            try (PreparedStatement pstmt1 = conn.prepareStatement(CREDIT_SQL)) {
+                pstmt1.setBigDecimal(1, Money.toBigDecimal(amount));
+                pstmt1.setInt(2, accountNumber);
+                rowsAffected = pstmt1.executeUpdate();
+            }
+            if (rowsAffected == 0) {
+                conn.rollback();
+                balanceCache.invalidate(accountNumber);
+                return TransactionResult.of(TransactionStatus.ACCOUNT_NOT_FOUND);
+            }
 
             //For updating the Log transactions
-            String logQuery = "INSERT INTO transactions (account_number, transaction_type, amount) VALUES (?, 'DEPOSIT', ?)";
-            PreparedStatement pstmt2 = conn.prepareStatement(logQuery);
-            pstmt2.setInt(1, accountNumber);
-            pstmt2.setDouble(2, amount);
-            pstmt2.executeUpdate();
+            try (PreparedStatement pstmt2 = conn.prepareStatement(LOG_SQL)) {
+                pstmt2.setInt(1, accountNumber);
+                pstmt2.setString(2, "DEPOSIT");
+                pstmt2.setBigDecimal(3, Money.toBigDecimal(amount));
+                pstmt2.executeUpdate();
+            }
 
+            long newBalance = readBalance(conn, accountNumber); // our row is locked, so this is exact
+            if (idempotencyKey != null) {
+                IdempotencyStore.record(conn, accountNumber, idempotencyKey, IdempotencyStore.request("DEPOSIT", amount, 0), newBalance);
+            }
             conn.commit(); // Commiting transaction
+            DatabaseConnection.wrote(accountNumber);
+            balanceCache.complete(accountNumber, stamp, newBalance);
 
-            return true;
+            return new TransactionResult(TransactionStatus.SUCCESS, newBalance);
 
         } catch (SQLException e) {
+            balanceCache.invalidate(accountNumber);
             if (conn != null) {
                 try {
                     conn.rollback(); //Will do a Rollback on any type of error
@@ -142,8 +379,10 @@ public class BankingServices {
                     ex.printStackTrace();
                 }
             }
-            e.printStackTrace();
-            return false;
+            if (idempotencyKey == null || !IdempotencyStore.isDuplicate(e)) {
+                e.printStackTrace();
+                return TransactionResult.of(TransactionStatus.FAILED);
+            }
         } finally {
             // This block will run no matter the upper blocks returns true or false
             try {
@@ -154,45 +393,81 @@ public class BankingServices {
                 e.printStackTrace();
             }
         }
-
+        // the key was already used (another server, or before a restart): that deposit's result
+        return IdempotencyStore.replay(accountNumber, idempotencyKey, IdempotencyStore.request("DEPOSIT", amount, 0));
     }
 
     // FOR WITHDRAWING
-    public boolean withdraw(int accountNumber, double amount) {
-        //If -ve value
-        if (amount <= 0) {
+    public boolean withdraw(int accountNumber, long amount) {
+        TransactionResult result = withdrawWithResult(accountNumber, amount);
+        if (result.getStatus() == TransactionStatus.INVALID_AMOUNT) {
             System.out.println("Amount must be positive!");
-            return false;
+        } else if (result.getStatus() == TransactionStatus.INSUFFICIENT_FUNDS) {
+            System.out.println("Insufficient balance!");
+        } else if (result.getStatus() == TransactionStatus.ACCOUNT_NOT_FOUND) {
+            System.out.println("Account #" + accountNumber + " not found!");
         }
+        return result.isSuccess();
+    }
 
-        // Checking balance first
-        double currentBalance = getBalance(accountNumber);
-        if (currentBalance < amount) {
-            System.out.println("Insufficient balance!");
-            return false;
+    // Withdrawal with a guarded debit: the UPDATE itself checks the balance, so there is no separate
+    // balance read before it and two withdrawals at the same time can't both pass the check
+    public TransactionResult withdrawWithResult(int accountNumber, long amount) {
+        long start = metrics.start();
+        return metrics.record(BankingMetrics.Timer.WITHDRAW, start, applyWithdrawal(accountNumber, amount, null));
+    }
+
+    @Override
+    public TransactionResult withdrawWithResult(int accountNumber, long amount, String idempotencyKey) {
+        return idempotency.execute(accountNumber, idempotencyKey, IdempotencyStore.request("WITHDRAWAL", amount, 0), () -> {
+            long start = metrics.start();
+            return metrics.record(BankingMetrics.Timer.WITHDRAW, start, applyWithdrawal(accountNumber, amount, idempotencyKey));
+        });
+    }
+
+    private TransactionResult applyWithdrawal(int accountNumber, long amount, String idempotencyKey) {
+        //If -ve value
+        if (amount <= 0) {
+            return TransactionResult.of(TransactionStatus.INVALID_AMOUNT);
+        }
+        if (groupCommitter != null) {
+            return await(groupCommitter.withdraw(accountNumber, amount, idempotencyKey));
         }
 
+        long stamp = balanceCache.beginWrite(accountNumber);
         Connection conn = null;
         try {
-            conn = DatabaseConnection.getConnection();
+            conn = DatabaseConnection.getConnection(accountNumber);
+            if (conn == null) {
+                return TransactionResult.of(TransactionStatus.FAILED);
+            }
             conn.setAutoCommit(false);
 
-            String updateQuery = "UPDATE users SET balance = balance - ? WHERE account_number = ?";
-            PreparedStatement pstmt1 = conn.prepareStatement(updateQuery);
-            pstmt1.setDouble(1, amount);
-            pstmt1.setInt(2, accountNumber);
-            pstmt1.executeUpdate();
+            TransactionStatus debitStatus = guardedDebit(conn, accountNumber, amount);
+            if (debitStatus != TransactionStatus.SUCCESS) {
+                conn.rollback(); // nothing was changed, this just ends the transaction
+                balanceCache.invalidate(accountNumber);
+                return TransactionResult.of(debitStatus);
+            }
 
-            String logQuery = "INSERT INTO transactions (account_number, transaction_type, amount) VALUES (?, 'WITHDRAWAL', ?)";
-            PreparedStatement pstmt2 = conn.prepareStatement(logQuery);
-            pstmt2.setInt(1, accountNumber);
-            pstmt2.setDouble(2, amount);
-            pstmt2.executeUpdate();
+            try (PreparedStatement pstmt2 = conn.prepareStatement(LOG_SQL)) {
+                pstmt2.setInt(1, accountNumber);
+                pstmt2.setString(2, "WITHDRAWAL");
+                pstmt2.setBigDecimal(3, Money.toBigDecimal(amount));
+                pstmt2.executeUpdate();
+            }
 
+            long newBalance = readBalance(conn, accountNumber);
+            if (idempotencyKey != null) {
+                IdempotencyStore.record(conn, accountNumber, idempotencyKey, IdempotencyStore.request("WITHDRAWAL", amount, 0), newBalance);
+            }
             conn.commit();
-            return true;
+            DatabaseConnection.wrote(accountNumber);
+            balanceCache.complete(accountNumber, stamp, newBalance);
+            return new TransactionResult(TransactionStatus.SUCCESS, newBalance);
 
         } catch (SQLException e) {
+            balanceCache.invalidate(accountNumber);
             if (conn != null) {
                 try {
                     conn.rollback();
@@ -200,142 +475,382 @@ public class BankingServices {
                     ex.printStackTrace();
                 }
             }
-            e.printStackTrace();
-            return false;
+            if (idempotencyKey == null || !IdempotencyStore.isDuplicate(e)) {
+                e.printStackTrace();
+                return TransactionResult.of(TransactionStatus.FAILED);
+            }
+        } finally {
+            // giving the connection back, otherwise every withdrawal would keep one forever
+            try {
+                if (conn != null) {
+                    conn.close();
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
         }
+        return IdempotencyStore.replay(accountNumber, idempotencyKey, IdempotencyStore.request("WITHDRAWAL", amount, 0));
+    }
+
+    // UPDATE ... AND balance >= ? : one row means the money was there and is now taken,
+    // zero rows means either no money or no account (only then we look which one it was)
+    private TransactionStatus guardedDebit(Connection conn, int accountNumber, long amount) throws SQLException {
+        int rowsAffected;
+        try (PreparedStatement pstmt = conn.prepareStatement(GUARDED_DEBIT_SQL)) {
+            BigDecimal amountDecimal = Money.toBigDecimal(amount);
+            pstmt.setBigDecimal(1, amountDecimal);
+            pstmt.setInt(2, accountNumber);
+            pstmt.setBigDecimal(3, amountDecimal);
+            rowsAffected = pstmt.executeUpdate();
+        }
+        if (rowsAffected > 0) {
+            return TransactionStatus.SUCCESS;
+        }
+        return readBalance(conn, accountNumber) < 0 ? TransactionStatus.ACCOUNT_NOT_FOUND : TransactionStatus.INSUFFICIENT_FUNDS;
     }
 
     //FOR TRANSFERRING
-    public boolean transfer(int fromAccount, int toAccount, double amount) {
-        // before starting the transaction , ensuring for positive amt. , no self transfers , and checking funds
+    public boolean transfer(int fromAccount, int toAccount, long amount) {
+        TransactionResult result = transferWithResult(fromAccount, toAccount, amount);
+        switch (result.getStatus()) {
+            case INVALID_AMOUNT:
+                System.out.println("Transfer amount must be positive!");
+                break;
+            case SAME_ACCOUNT:
+                System.out.println("Cannot transfer to the same account!");
+                break;
+            case INSUFFICIENT_FUNDS:
+                System.out.println("Insufficient balance!");
+                break;
+            case ACCOUNT_NOT_FOUND:
+                System.out.println("Account #" + fromAccount + " not found!");
+                break;
+            case RECEIVER_NOT_FOUND:
+                System.out.println("Receiver account #" + toAccount + " not found!");
+                break;
+            case FAILED:
+                System.out.println("Oh Sheesh!! Transfer failed! Transaction rolled back.");
+                break;
+            default:
+                break;
+        }
+        return result.isSuccess();
+    }
+
+    // Transfer result without the printing, getBalance() is not called before it any more
+    public TransactionResult transferWithResult(int fromAccount, int toAccount, long amount) {
+        long start = metrics.start();
+        return metrics.record(BankingMetrics.Timer.TRANSFER, start, applyTransfer(fromAccount, toAccount, amount, null));
+    }
+
+    // the key belongs to the sender, and its row is written on the sender's side of the transfer
+    @Override
+    public TransactionResult transferWithResult(int fromAccount, int toAccount, long amount, String idempotencyKey) {
+        return idempotency.execute(fromAccount, idempotencyKey, IdempotencyStore.request("TRANSFER", amount, toAccount), () -> {
+            long start = metrics.start();
+            return metrics.record(BankingMetrics.Timer.TRANSFER, start, applyTransfer(fromAccount, toAccount, amount, idempotencyKey));
+        });
+    }
+
+    private TransactionResult applyTransfer(int fromAccount, int toAccount, long amount, String idempotencyKey) {
+        // before starting the transaction , ensuring for positive amt. and no self transfers
 
         // amount must be +ve
         if (amount <= 0) {
-            System.out.println("Transfer amount must be positive!");
-            return false;
+            return TransactionResult.of(TransactionStatus.INVALID_AMOUNT);
         }
 
         // ensuring the amount is not transferring to the same account
         if (fromAccount == toAccount) {
-            System.out.println("Cannot transfer to the same account!");
-            return false;
+            return TransactionResult.of(TransactionStatus.SAME_ACCOUNT);
         }
 
-        // Checking sender's balance first
-        double senderBalance = getBalance(fromAccount);
-        if (senderBalance < amount) {
-            System.out.println("Insufficient balance! Available: ₹" + String.format("%.2f", senderBalance));
+        // row locking in account order and deadlock retries live in the engine
+        return transferEngine.transfer(fromAccount, toAccount, amount, idempotencyKey);
+    }
+
+    // BATCH TRANSFERS (payroll, settlement runs)
+    // Every chunk is one transaction: the rows get locked once, the debits/credits/logs go out
+    // with addBatch()/executeBatch(), and the whole chunk commits or rolls back together.
+    // With shards a chunk can't be one transaction, so the transfers go one by one instead: every transfer is
+    // then a chunk of its own, committed if it went through and rolled back otherwise (declined ones included).
+    public BatchTransferReport transferBatch(List<TransferRequest> requests) {
+        return transferBatch(requests, DEFAULT_BATCH_CHUNK_SIZE);
+    }
+
+    public BatchTransferReport transferBatch(List<TransferRequest> requests, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be at least 1");
+        }
+        long start = System.nanoTime();
+        List<TransactionResult> results = new ArrayList<>(requests.size());
+        int committed = 0;
+        int rolledBack = 0;
+
+        if (DatabaseConnection.isSharded()) {
+            // a chunk would span databases: every transfer is its own transaction (XA when it crosses shards)
+            for (TransferRequest request : requests) {
+                TransactionResult result = applyTransfer(request.getFromAccount(), request.getToAccount(), request.getAmountPaise(), null);
+                results.add(result);
+                if (result.isSuccess()) {
+                    committed++;
+                } else {
+                    rolledBack++; // declined or failed, nothing of it was committed
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            metrics.recordNanos(BankingMetrics.Timer.BATCH_TRANSFER, elapsed);
+            return new BatchTransferReport(results, committed, rolledBack, elapsed);
+        }
+
+        for (int from = 0; from < requests.size(); from += chunkSize) {
+            List<TransferRequest> chunk = requests.subList(from, Math.min(from + chunkSize, requests.size()));
+            if (settleChunk(chunk, results)) {
+                committed++;
+            } else {
+                rolledBack++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        metrics.recordNanos(BankingMetrics.Timer.BATCH_TRANSFER, elapsed);
+        return new BatchTransferReport(results, committed, rolledBack, elapsed);
+    }
+
+    // Settling one chunk and appending one result per request; false if the chunk was rolled back
+    private boolean settleChunk(List<TransferRequest> chunk, List<TransactionResult> results) {
+        Connection conn = DatabaseConnection.getConnection();
+        if (conn == null) {
+            for (int i = 0; i < chunk.size(); i++) {
+                results.add(TransactionResult.of(TransactionStatus.FAILED));
+            }
             return false;
         }
 
-        Connection conn = null;
+        Map<Integer, Long> stamps = new HashMap<>();
         try {
-            conn = DatabaseConnection.getConnection();
-            //turning off autosave now
-            conn.setAutoCommit(false);   // starting transaction
-
-            //Step 1: First deducing the amount from sender
-            String debitQuery = "UPDATE users SET balance = balance - ? WHERE account_number = ?";
-            PreparedStatement pstmt1 = conn.prepareStatement(debitQuery);
-            pstmt1.setDouble(1, amount);
-            pstmt1.setInt(2, fromAccount);
-            pstmt1.executeUpdate();
-
-            //Step 2: adding to the receiver's account
-            String creditQuery = "UPDATE users SET balance = balance + ? WHERE account_number = ?";
-            PreparedStatement pstmt2 = conn.prepareStatement(creditQuery);
-            pstmt2.setDouble(1, amount);
-            pstmt2.setInt(2, toAccount);
-            int rowsAffected = pstmt2.executeUpdate();
-
-            // checking if receiver account actually exists
-            if (rowsAffected == 0) {
-                conn.rollback();
-                System.out.println("Receiver account #" + toAccount + " not found!");
-                return false;
-            }
+            conn.setAutoCommit(false);
 
-            //Step 3: let's prepare log transactions for both accounts
-            String logQuery = "INSERT INTO transactions (account_number, transaction_type, amount) VALUES (?, ?, ?)";
+            // locking every account of the chunk once, in account order, and keeping balances in paise
+            Map<Integer, Long> balances = lockBalances(conn, chunk);
+            for (int account : balances.keySet()) {
+                stamps.put(account, balanceCache.beginWrite(account));
+            }
 
-            //log for sender's transaction
-            PreparedStatement pstmt3 = conn.prepareStatement(logQuery);
-            pstmt3.setInt(1, fromAccount);
-            pstmt3.setString(2, "TRANSFER_OUT");
-            pstmt3.setDouble(3, amount);
-            pstmt3.executeUpdate();
+            List<TransactionResult> chunkResults = new ArrayList<>(chunk.size());
+            try (PreparedStatement debit = conn.prepareStatement(DEBIT_SQL);
+                 PreparedStatement credit = conn.prepareStatement(CREDIT_SQL);
+                 PreparedStatement log = conn.prepareStatement(LOG_SQL)) {
+
+                int queued = 0;
+                for (TransferRequest request : chunk) {
+                    TransactionStatus status = applyInMemory(request, balances);
+                    if (status != TransactionStatus.SUCCESS) {
+                        chunkResults.add(TransactionResult.of(status));
+                        continue;
+                    }
+                    BigDecimal amount = Money.toBigDecimal(request.getAmountPaise());
+                    debit.setBigDecimal(1, amount);
+                    debit.setInt(2, request.getFromAccount());
+                    debit.addBatch();
+
+                    credit.setBigDecimal(1, amount);
+                    credit.setInt(2, request.getToAccount());
+                    credit.addBatch();
+
+                    log.setInt(1, request.getFromAccount());
+                    log.setString(2, "TRANSFER_OUT");
+                    log.setBigDecimal(3, amount);
+                    log.addBatch();
+                    log.setInt(1, request.getToAccount());
+                    log.setString(2, "TRANSFER_IN");
+                    log.setBigDecimal(3, amount);
+                    log.addBatch();
+
+                    chunkResults.add(new TransactionResult(TransactionStatus.SUCCESS,
+                            balances.get(request.getFromAccount())));
+                    queued++;
+                }
 
-            //log for receiver's transaction
-            pstmt3.setInt(1, toAccount);
-            pstmt3.setString(2, "TRANSFER_IN");
-            pstmt3.setDouble(3, amount);
-            pstmt3.executeUpdate();
+                if (queued > 0) {
+                    debit.executeBatch();
+                    credit.executeBatch();
+                    log.executeBatch();
+                }
+            }
 
-            //at last committing everything
             conn.commit();
+            // the locked rows now hold exactly the balances we computed
+            for (Map.Entry<Integer, Long> entry : balances.entrySet()) {
+                DatabaseConnection.wrote(entry.getKey());
+                balanceCache.complete(entry.getKey(), stamps.get(entry.getKey()), entry.getValue());
+            }
+            results.addAll(chunkResults);
             return true;
 
         } catch (SQLException e) {
-            //If anything fails, rolling back everything
-            if (conn != null) {
-                try {
-                    conn.rollback();
-                    System.out.println("Oh Sheesh!! Transfer failed! Transaction rolled back.");
-                } catch (SQLException ex) {
-                    ex.printStackTrace();
-                }
+            // all or nothing: nothing of this chunk was applied
+            for (int account : stamps.keySet()) {
+                balanceCache.invalidate(account);
             }
+            try {
+                conn.rollback();
+            } catch (SQLException ex) {
+                ex.printStackTrace();
+            }
+            System.out.println("Batch chunk of " + chunk.size() + " transfers failed and was rolled back.");
             e.printStackTrace();
+            for (int i = 0; i < chunk.size(); i++) {
+                results.add(TransactionResult.of(TransactionStatus.FAILED));
+            }
             return false;
         } finally {
-            //resetting the auto-commit
-            if (conn != null) {
-                try {
-                    conn.setAutoCommit(true);
-                    conn.close();
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                }
+            try {
+                conn.setAutoCommit(true);
+                conn.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
             }
         }
+    }
 
+    // Checking one request against the running balances of the chunk and applying it if it is valid
+    private TransactionStatus applyInMemory(TransferRequest request, Map<Integer, Long> balances) {
+        long amount = request.getAmountPaise();
+        if (amount <= 0) {
+            return TransactionStatus.INVALID_AMOUNT;
+        }
+        if (request.getFromAccount() == request.getToAccount()) {
+            return TransactionStatus.SAME_ACCOUNT;
+        }
+        Long senderBalance = balances.get(request.getFromAccount());
+        if (senderBalance == null) {
+            return TransactionStatus.ACCOUNT_NOT_FOUND;
+        }
+        Long receiverBalance = balances.get(request.getToAccount());
+        if (receiverBalance == null) {
+            return TransactionStatus.RECEIVER_NOT_FOUND;
+        }
+        if (senderBalance < amount) {
+            return TransactionStatus.INSUFFICIENT_FUNDS;
+        }
+        balances.put(request.getFromAccount(), senderBalance - amount);
+        balances.put(request.getToAccount(), receiverBalance + amount);
+        return TransactionStatus.SUCCESS;
     }
 
-    // For Displaying last 10 transactions history
-    public void showTransactionHistory(int accountNumber) {
-        String query = "SELECT * FROM transactions WHERE account_number = ? ORDER BY transaction_date DESC LIMIT 10";
+    // SELECT ... FOR UPDATE over all accounts of the chunk, sorted so two chunks never wait on each other in a cycle.
+    // The IN list is padded to a power of two so only a handful of distinct SQL texts end up in the statement cache.
+    private Map<Integer, Long> lockBalances(Connection conn, List<TransferRequest> chunk) throws SQLException {
+        TreeSet<Integer> accounts = new TreeSet<>();
+        for (TransferRequest request : chunk) {
+            accounts.add(request.getFromAccount());
+            accounts.add(request.getToAccount());
+        }
+        int slots = Integer.highestOneBit(accounts.size());
+        if (slots < accounts.size()) {
+            slots <<= 1;
+        }
 
-        try (Connection conn = DatabaseConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(query)) {
+        StringBuilder sql = new StringBuilder("SELECT account_number, balance FROM users WHERE account_number IN (");
+        for (int i = 0; i < slots; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(") ORDER BY account_number FOR UPDATE");
 
-            pstmt.setInt(1, accountNumber);
-            ResultSet rs = pstmt.executeQuery();
+        Map<Integer, Long> balances = new HashMap<>(accounts.size() * 2);
+        try (PreparedStatement pstmt = conn.prepareStatement(sql.toString())) {
+            int index = 1;
+            for (int account : accounts) {
+                pstmt.setInt(index++, account);
+            }
+            while (index <= slots) {
+                pstmt.setInt(index++, accounts.last()); // padding repeats the last account
+            }
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    balances.put(rs.getInt("account_number"), Money.fromBigDecimal(rs.getBigDecimal("balance")));
+                }
+            }
+        }
+        return balances;
+    }
 
-            System.out.println("\n╔════════════════════════════════════════╗");
-            System.out.println("║      TRANSACTION HISTORY               ║");
-            System.out.println("╚════════════════════════════════════════╝");
+    // TRANSACTION HISTORY
+    // Newest first, `limit` rows at a time. Pass null for the first page and page.getNextCursor() after that.
+    // Uses the (account_number, transaction_date) index, so MySQL reads just the rows of the page.
+    public HistoryPage getTransactionHistory(int accountNumber, HistoryPage.Cursor after, int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be at least 1");
+        }
+        long start = metrics.start();
+        HistoryPage page = readHistoryPage(accountNumber, after, limit);
+        metrics.record(BankingMetrics.Timer.HISTORY, start);
+        return page;
+    }
 
-            boolean hasTransactions = false;//to have a track of transactions
-            int count = 1;
+    private HistoryPage readHistoryPage(int accountNumber, HistoryPage.Cursor after, int limit) {
+        String query = after == null ? HISTORY_FIRST_PAGE_SQL : HISTORY_NEXT_PAGE_SQL;
 
-            while (rs.next()) {
-                hasTransactions = true;
-                System.out.println("\n[" + count + "] ────────────────────────────────");
-                System.out.println("Type: " + rs.getString("transaction_type"));
-                System.out.println("Amount: ₹" + String.format("%.2f", rs.getDouble("amount")));
-                System.out.println("Date: " + rs.getTimestamp("transaction_date"));
-                count++;
-            }
+        try (Connection conn = DatabaseConnection.getReadConnection(accountNumber);
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
 
-            if (!hasTransactions) {
-                System.out.println("\nNo transactions found.");
+            int index = 1;
+            pstmt.setInt(index++, accountNumber);
+            if (after != null) {
+                pstmt.setTimestamp(index++, after.getTransactionDate());
+                pstmt.setTimestamp(index++, after.getTransactionDate());
+                pstmt.setLong(index++, after.getTransactionId());
             }
-
-            System.out.println("\n═════════════════════════════════════════\n");
+            pstmt.setInt(index, limit + 1); // one extra row tells us if there is another page
+
+            List<TransactionRecord> records = new ArrayList<>(limit);
+            boolean more = false;
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    if (records.size() == limit) {
+                        more = true;
+                        break;
+                    }
+                    records.add(toRecord(rs));
+                }
+            }
+            HistoryPage.Cursor next = more ? HistoryPage.Cursor.after(records.get(records.size() - 1)) : null;
+            return new HistoryPage(records, next);
 
         } catch (SQLException e) {
             System.out.println("Unable to fetch transaction history.");
             e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Whole history of the account, oldest first, read through a server-side cursor (see HistoryStream)
+    public HistoryStream streamTransactionHistory(int accountNumber) throws SQLException {
+        Connection conn = DatabaseConnection.getReadConnection(accountNumber);
+        if (conn == null) {
+            throw new SQLException("No database connection available");
+        }
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = conn.prepareStatement(HISTORY_STREAM_SQL);
+            pstmt.setFetchSize(HISTORY_FETCH_SIZE);
+            pstmt.setInt(1, accountNumber);
+            return new HistoryStream(conn, pstmt, pstmt.executeQuery());
+        } catch (SQLException e) {
+            if (pstmt != null) {
+                pstmt.close();
+            }
+            conn.close();
+            throw e;
         }
     }
-}
\ No newline at end of file
+
+    static TransactionRecord toRecord(ResultSet rs) throws SQLException {
+        return new TransactionRecord(
+                rs.getLong("transaction_id"),
+                rs.getInt("account_number"),
+                rs.getString("transaction_type"),
+                Money.fromBigDecimal(rs.getBigDecimal("amount")),
+                rs.getTimestamp("transaction_date"));
+    }
+}
@@ -0,0 +1,67 @@
+import java.io.IOException;
+import java.nio.file.Path;
+
+// What the app, the server and the async front need from a storage engine.
+// BankingServices keeps everything in MySQL; JournalStorage keeps balances in memory and appends every
+// money movement to a memory-mapped journal, for machines without a database.
+public interface BankingStorage {
+
+    // new account number, -1 if it couldn't be created (the engine prints why)
+    int registerAccount(String fullName, String email, String pin);
+
+    // null if the account number or PIN is wrong
+    User login(int accountNumber, String pin);
+
+    TransactionResult getBalanceWithResult(int accountNumber);
+
+    // amounts and balances are paise, see Money
+    TransactionResult depositWithResult(int accountNumber, long amountPaise);
+
+    TransactionResult withdrawWithResult(int accountNumber, long amountPaise);
+
+    TransactionResult transferWithResult(int senderAccount, int receiverAccount, long amountPaise);
+
+    // The same with a client-chosen idempotency key (null for none): a retry with the key gets the first call's
+    // result instead of moving the money again. By default the keys are only remembered in memory
+    // (IdempotencyStore); BankingServices also stores them with the transaction.
+    default TransactionResult depositWithResult(int accountNumber, long amountPaise, String idempotencyKey) {
+        return IdempotencyStore.shared().execute(accountNumber, idempotencyKey, IdempotencyStore.request("DEPOSIT", amountPaise, 0),
+                () -> depositWithResult(accountNumber, amountPaise));
+    }
+
+    default TransactionResult withdrawWithResult(int accountNumber, long amountPaise, String idempotencyKey) {
+        return IdempotencyStore.shared().execute(accountNumber, idempotencyKey, IdempotencyStore.request("WITHDRAWAL", amountPaise, 0),
+                () -> withdrawWithResult(accountNumber, amountPaise));
+    }
+
+    default TransactionResult transferWithResult(int senderAccount, int receiverAccount, long amountPaise, String idempotencyKey) {
+        return IdempotencyStore.shared().execute(senderAccount, idempotencyKey, IdempotencyStore.request("TRANSFER", amountPaise, receiverAccount),
+                () -> transferWithResult(senderAccount, receiverAccount, amountPaise));
+    }
+
+    // newest first, starting after the cursor (null for the first page); null if it couldn't be read
+    HistoryPage getTransactionHistory(int accountNumber, HistoryPage.Cursor after, int limit);
+
+    // -1 if the balance couldn't be read
+    default long getBalancePaise(int accountNumber) {
+        TransactionResult result = getBalanceWithResult(accountNumber);
+        return result.isSuccess() ? result.getNewBalancePaise() : -1;
+    }
+
+    // The engine picked with -Dbank.storage=mysql (default) or -Dbank.storage=journal (-Dbank.journal.dir=...)
+    static BankingStorage open() {
+        String engine = System.getProperty("bank.storage", "mysql");
+        switch (engine) {
+            case "mysql":
+                return new BankingServices();
+            case "journal":
+                try {
+                    return new JournalStorage(Path.of(System.getProperty("bank.journal.dir", "ledger")));
+                } catch (IOException e) {
+                    throw new IllegalStateException("Could not open the journal: " + e.getMessage(), e);
+                }
+            default:
+                throw new IllegalArgumentException("Unknown bank.storage " + engine + " (mysql or journal)");
+        }
+    }
+}
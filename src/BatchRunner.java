@@ -0,0 +1,320 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Headless BankingApp: runs a script of commands (a file or stdin) with no banners, menus or pauses,
+// for end-of-day jobs and replays.
+//
+//   java BankingApp --batch commands.txt [--out results.tsv] [--threads 4]
+//   some-job | java BankingApp --batch - > results.tsv
+//
+// One command per line, fields split on whitespace, '#' starts a comment. <s> names a session, so one
+// script can act for many customers; register logs its session in right away.
+//   register <s> <pin> <email> <full name...>
+//   login    <s> <account> <pin>
+//   balance  <s>
+//   deposit  <s> <amount> [idempotency key]
+//   withdraw <s> <amount> [idempotency key]
+//   transfer <s> <to account> <amount> [idempotency key]
+//   history  <s> [limit]
+//   logout   <s>
+// With keys a replayed script doesn't move the money a second time (IdempotencyStore).
+//
+// The output is one tab-separated line per command, in input order:
+//   line, command, status, account, balance (or account count / history rows), message
+// followed by one "transaction" line per row for history. Anything the storage engine prints goes to stderr.
+//
+// With --threads N the sessions are spread over N lanes: the commands of one session run in order on its
+// lane, different sessions run at the same time. Only use it when the sessions don't depend on each other
+// (a transfer and the receiver's balance check in another session may then run in either order).
+public class BatchRunner {
+
+    private static final int MAX_HISTORY_LIMIT = 100;
+    // commands read ahead of the output at most, so a long stdin stream never piles up in memory
+    private static final int MAX_PENDING = 4096;
+
+    private final BankingStorage service;
+    private final Map<String, User> sessions = new ConcurrentHashMap<>();
+    private final Map<TransactionStatus, Integer> outcomes = new EnumMap<>(TransactionStatus.class);
+    private int errors;
+
+    public BatchRunner(BankingStorage service) {
+        this.service = service;
+    }
+
+    // Runs every command from in and writes its result to out; returns how many commands ran
+    public long run(BufferedReader in, Writer out, int threads) throws IOException {
+        if (threads <= 1) {
+            long line = 0;
+            String text;
+            while ((text = in.readLine()) != null) {
+                line++;
+                String result = execute(line, text);
+                if (result != null) {
+                    out.write(result);
+                }
+            }
+            out.flush();
+            return line;
+        }
+
+        ExecutorService[] lanes = new ExecutorService[threads];
+        for (int i = 0; i < threads; i++) {
+            lanes[i] = Executors.newSingleThreadExecutor();
+        }
+        // results in input order: the writer waits for each one in turn, the reader blocks when it is too far ahead
+        BlockingQueue<CompletableFuture<String>> pending = new ArrayBlockingQueue<>(MAX_PENDING);
+        CompletableFuture<String> end = CompletableFuture.completedFuture(null);
+        AtomicReference<IOException> writeFailure = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try {
+                for (CompletableFuture<String> next = pending.take(); next != end; next = pending.take()) {
+                    String result = next.join();
+                    if (result != null && writeFailure.get() == null) {
+                        try {
+                            out.write(result);
+                        } catch (IOException e) {
+                            writeFailure.set(e); // keeps taking, so the reader never blocks on a full queue
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "batch-writer");
+        writer.start();
+
+        long line = 0;
+        try {
+            String text;
+            while ((text = in.readLine()) != null) {
+                long number = ++line;
+                String command = text;
+                String[] fields = fields(text);
+                ExecutorService lane = fields.length < 2 ? lanes[0]
+                        : lanes[Math.floorMod(fields[1].hashCode(), threads)]; // a session always gets the same lane
+                pending.put(CompletableFuture.supplyAsync(() -> execute(number, command), lane));
+            }
+            pending.put(end);
+            writer.join();
+        } catch (InterruptedException e) {
+            writer.interrupt();
+            Thread.currentThread().interrupt();
+        } finally {
+            for (ExecutorService lane : lanes) {
+                lane.shutdown();
+            }
+        }
+        if (writeFailure.get() != null) {
+            throw writeFailure.get();
+        }
+        out.flush();
+        return line;
+    }
+
+    // One command; the output lines for it, or null for blank lines and comments
+    String execute(long line, String text) {
+        String[] f = fields(text);
+        if (f.length == 0) {
+            return null;
+        }
+        String command = f[0].toLowerCase(Locale.ROOT);
+        try {
+            if (f.length < 2) {
+                return error(line, command, "missing session name");
+            }
+            String session = f[1];
+            switch (command) {
+                case "register":
+                    return register(line, f);
+                case "login":
+                    need(f, 4, "login <session> <account> <pin>");
+                    int account = account(f[2]);
+                    User user = service.login(account, f[3]);
+                    if (user == null) {
+                        sessions.remove(session);
+                        return row(line, command, "INVALID_CREDENTIALS", account, "", "wrong account number or PIN");
+                    }
+                    sessions.put(session, user);
+                    return row(line, command, "SUCCESS", account, "", user.getFullName());
+                case "logout":
+                    User gone = sessions.remove(session);
+                    return row(line, command, gone == null ? "NOT_LOGGED_IN" : "SUCCESS", gone == null ? 0 : gone.getAccountNumber(), "", "");
+                default:
+                    break;
+            }
+
+            User user = sessions.get(session);
+            if (user == null) {
+                return row(line, command, "NOT_LOGGED_IN", 0, "", "session " + session + " is not logged in");
+            }
+            int account = user.getAccountNumber();
+            switch (command) {
+                case "balance":
+                    return result(line, command, account, service.getBalanceWithResult(account));
+                case "deposit":
+                    need(f, 3, "deposit <session> <amount> [key]");
+                    return result(line, command, account, service.depositWithResult(account, amount(f[2]), key(f, 3)));
+                case "withdraw":
+                    need(f, 3, "withdraw <session> <amount> [key]");
+                    return result(line, command, account, service.withdrawWithResult(account, amount(f[2]), key(f, 3)));
+                case "transfer":
+                    need(f, 4, "transfer <session> <to account> <amount> [key]");
+                    return result(line, command, account,
+                            service.transferWithResult(account, account(f[2]), amount(f[3]), key(f, 4)));
+                case "history":
+                    return history(line, account, f);
+                default:
+                    return error(line, command, "unknown command");
+            }
+        } catch (IllegalArgumentException e) {
+            return error(line, command, e.getMessage());
+        } catch (BankingException e) {
+            return row(line, command, e.getReason().name(), 0, "", e.getMessage());
+        } catch (RuntimeException e) {
+            e.printStackTrace(); // one broken command doesn't stop the script
+            return row(line, command, "FAILED", 0, "", String.valueOf(e.getMessage()));
+        }
+    }
+
+    private String register(long line, String[] f) {
+        need(f, 5, "register <session> <pin> <email> <full name...>");
+        String name = String.join(" ", Arrays.copyOfRange(f, 4, f.length));
+        int account = service.registerAccount(name, f[3], f[2]);
+        if (account == -1) {
+            return row(line, "register", "FAILED", 0, "", "not registered, see stderr");
+        }
+        sessions.put(f[1], new User(account, name, f[3], 0));
+        return row(line, "register", "SUCCESS", account, "", name);
+    }
+
+    private String history(long line, int account, String[] f) {
+        int limit = f.length > 2 ? Integer.parseInt(f[2]) : 10;
+        if (limit < 1 || limit > MAX_HISTORY_LIMIT) {
+            throw new IllegalArgumentException("limit must be 1-" + MAX_HISTORY_LIMIT);
+        }
+        HistoryPage page = service.getTransactionHistory(account, null, limit);
+        if (page == null) {
+            return row(line, "history", "FAILED", account, "", "history unavailable");
+        }
+        StringBuilder sb = new StringBuilder(row(line, "history", "SUCCESS", account,
+                Integer.toString(page.getRecords().size()), ""));
+        for (TransactionRecord record : page.getRecords()) {
+            sb.append(line).append("\ttransaction\t").append(record.getTransactionId())
+                    .append('\t').append(record.getTransactionType())
+                    .append('\t').append(Money.format(record.getAmountPaise()))
+                    .append('\t').append(record.getTransactionDate()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private String result(long line, String command, int account, TransactionResult result) {
+        synchronized (outcomes) {
+            outcomes.merge(result.getStatus(), 1, Integer::sum);
+        }
+        return row(line, command, result.getStatus().name(), account,
+                result.isSuccess() ? Money.format(result.getNewBalancePaise()) : "", "");
+    }
+
+    private String error(long line, String command, String message) {
+        synchronized (outcomes) {
+            errors++;
+        }
+        return row(line, command, "ERROR", 0, "", message);
+    }
+
+    private static String row(long line, String command, String status, int account, String value, String message) {
+        return line + "\t" + command + "\t" + status + "\t" + (account > 0 ? account : "") + "\t" + value + "\t"
+                + message.replace('\t', ' ').replace('\n', ' ') + "\n";
+    }
+
+    // PARSING
+
+    private static String[] fields(String text) {
+        int comment = text.indexOf('#');
+        String trimmed = (comment >= 0 ? text.substring(0, comment) : text).trim();
+        return trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+");
+    }
+
+    private static void need(String[] f, int count, String usage) {
+        if (f.length < count) {
+            throw new IllegalArgumentException("usage: " + usage);
+        }
+    }
+
+    private static int account(String text) {
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not an account number: " + text);
+        }
+    }
+
+    private static long amount(String text) {
+        long paise = Money.parse(text);
+        if (paise == Money.INVALID) {
+            throw new IllegalArgumentException("not an amount: " + text);
+        }
+        return paise;
+    }
+
+    private static String key(String[] f, int index) {
+        return f.length > index ? f[index] : null;
+    }
+
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (outcomes) {
+            outcomes.forEach((status, count) -> sb.append(status).append('=').append(count).append(' '));
+            sb.append("ERROR=").append(errors);
+        }
+        return sb.toString();
+    }
+
+    // BankingApp --batch [FILE|-] [--out FILE] [--threads N]
+    static void run(BankingStorage service, String[] args) throws IOException {
+        String input = "-";
+        String output = null;
+        int threads = 1;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--out": output = args[++i]; break;
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                default: input = args[i];
+            }
+        }
+
+        // the results go to the real stdout; BankingApp already sent System.out (the engines' messages) to stderr
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                input.equals("-") ? new FileInputStream(FileDescriptor.in) : Files.newInputStream(Path.of(input)),
+                StandardCharsets.UTF_8), 1 << 16);
+             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+                     output == null ? new FileOutputStream(FileDescriptor.out) : Files.newOutputStream(Path.of(output)),
+                     StandardCharsets.UTF_8), 1 << 16)) {
+            BatchRunner runner = new BatchRunner(service);
+            long start = System.nanoTime();
+            long lines = runner.run(in, out, threads);
+            System.err.printf("Batch: %d line(s) in %.1f s, %s%n", lines, (System.nanoTime() - start) / 1e9, runner.getSummary());
+        }
+    }
+}
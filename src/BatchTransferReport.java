@@ -0,0 +1,59 @@
+import java.util.Collections;
+import java.util.List;
+
+// What transferBatch() hands back: one result per request (same order as the input) plus timing
+public class BatchTransferReport {
+    private final List<TransactionResult> results;
+    private final int succeeded;
+    private final int chunksCommitted;
+    private final int chunksRolledBack;
+    private final long elapsedNanos;
+
+    public BatchTransferReport(List<TransactionResult> results, int chunksCommitted, int chunksRolledBack, long elapsedNanos) {
+        this.results = Collections.unmodifiableList(results);
+        int ok = 0;
+        for (TransactionResult result : results) {
+            if (result.isSuccess()) {
+                ok++;
+            }
+        }
+        this.succeeded = ok;
+        this.chunksCommitted = chunksCommitted;
+        this.chunksRolledBack = chunksRolledBack;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    //Getters
+    public List<TransactionResult> getResults() {
+        return results;
+    }
+    public TransactionResult getResult(int index) {
+        return results.get(index);
+    }
+    public int getSucceeded() {
+        return succeeded;
+    }
+    public int getFailed() {
+        return results.size() - succeeded;
+    }
+    public int getChunksCommitted() {
+        return chunksCommitted;
+    }
+    public int getChunksRolledBack() {
+        return chunksRolledBack;
+    }
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    // settled transfers per second over the whole run
+    public double getTransfersPerSecond() {
+        return elapsedNanos == 0 ? 0 : succeeded / (elapsedNanos / 1_000_000_000.0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d transfers settled in %.1f ms (%.0f transfers/s), %d chunk(s) committed, %d rolled back",
+                succeeded, results.size(), elapsedNanos / 1_000_000.0, getTransfersPerSecond(), chunksCommitted, chunksRolledBack);
+    }
+}
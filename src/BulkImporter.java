@@ -0,0 +1,411 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Bulk onboarding: reads a CSV or TSV file of customers and creates all their accounts, `batchSize` rows per transaction.
+//
+//   java BulkImporter customers.csv [--result customers.csv.result.tsv] [--batch 1000]
+//
+// Input columns: full_name, email, pin, opening_balance (a header line is skipped, the balance may be empty).
+// CSV fields may be "quoted", files ending in .tsv are split on tabs.
+//
+// The file is streamed, only one batch is held in memory at a time. Per batch:
+//   - rows are validated, emails repeated in the file or already in the database are reported as DUPLICATE
+//   - the PINs of the rows left are hashed (PinHasher, in parallel: this is where most of the time goes)
+//   - the users go out as one batched INSERT on a connection of its own with rewriteBatchedStatements,
+//     so the driver sends multi-row INSERTs instead of one round trip per row
+//   - account numbers are looked up by email (unique), which stays right even when the server
+//     hands out non-consecutive auto-increment values under concurrent inserts
+//   - accounts with an opening balance get their DEPOSIT row, then the batch commits
+// With -Dbank.db.shards each shard gets the rows whose email hashes to it, as a transaction of its own.
+// If a batch fails anyway (someone registered the same email in between), it is rolled back and its rows
+// are tried again one by one, so one bad row never takes the rest with it.
+// The result file has one line per input row: line, status, account number, message.
+public class BulkImporter {
+
+    private static final String INSERT_USER_SQL = "INSERT INTO users (full_name, email, security_pin, balance) VALUES (?, ?, ?, ?)";
+    private static final String INSERT_DEPOSIT_SQL = "INSERT INTO transactions (account_number, transaction_type, amount) VALUES (?, 'DEPOSIT', ?)";
+
+    private static final int MAX_NAME = 100;
+    private static final int MAX_EMAIL = 100;
+    private static final int MAX_PIN = 10;
+
+    private final int batchSize;
+
+    public BulkImporter(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+        this.batchSize = batchSize;
+    }
+
+    enum Status { OK, DUPLICATE, INVALID, FAILED }
+
+    // one input line on its way through the import
+    private static class Row {
+        final long line;
+        String fullName;
+        String email;
+        String pin; // hashed just before the insert
+        long openingPaise;
+        Status status;
+        int accountNumber = -1;
+        String message = "";
+
+        Row(long line) {
+            this.line = line;
+        }
+
+        void fail(Status status, String message) {
+            this.status = status;
+            this.message = message;
+        }
+    }
+
+    public static class Report {
+        long rows;
+        long imported;
+        long duplicates;
+        long invalid;
+        long failed;
+        long batches;
+        long elapsedNanos;
+
+        public long getImported() {
+            return imported;
+        }
+
+        public double getRowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : rows / (elapsedNanos / 1_000_000_000.0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("rows=%d imported=%d duplicates=%d invalid=%d failed=%d batches=%d in %.1fs (%.0f rows/s)",
+                    rows, imported, duplicates, invalid, failed, batches, elapsedNanos / 1_000_000_000.0, getRowsPerSecond());
+        }
+    }
+
+    public Report importFile(Path input, Path resultFile) throws IOException, SQLException {
+        char delimiter = input.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".tsv") ? '\t' : ',';
+        Report report = new Report();
+        long start = System.nanoTime();
+
+        Connection[] connections = new Connection[DatabaseConnection.shardCount()];
+        try (BufferedReader in = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+             BufferedWriter out = Files.newBufferedWriter(resultFile, StandardCharsets.UTF_8)) {
+            for (int shard = 0; shard < connections.length; shard++) {
+                connections[shard] = DatabaseConnection.openBulkConnection(shard);
+                connections[shard].setAutoCommit(false);
+            }
+            out.write("line\tstatus\taccount_number\tmessage");
+            out.newLine();
+
+            List<Row> batch = new ArrayList<>(batchSize);
+            List<String> fields = new ArrayList<>(4);
+            boolean first = true;
+            long lineNumber = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                split(line, delimiter, fields);
+                if (first) {
+                    first = false;
+                    if (fields.get(0).trim().equalsIgnoreCase("full_name")) {
+                        continue; // header
+                    }
+                }
+                batch.add(parse(lineNumber, fields));
+                if (batch.size() == batchSize) {
+                    flush(connections, batch, out, report);
+                }
+            }
+            if (!batch.isEmpty()) {
+                flush(connections, batch, out, report);
+            }
+        } finally {
+            for (Connection conn : connections) {
+                if (conn != null) {
+                    conn.close();
+                }
+            }
+        }
+        report.elapsedNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    private static Row parse(long lineNumber, List<String> fields) {
+        Row row = new Row(lineNumber);
+        if (fields.size() < 3 || fields.size() > 4) {
+            row.fail(Status.INVALID, "expected 3 or 4 columns, found " + fields.size());
+            return row;
+        }
+        row.fullName = fields.get(0).trim();
+        row.email = fields.get(1).trim();
+        row.pin = fields.get(2).trim();
+        String opening = fields.size() == 4 ? fields.get(3).trim() : "";
+        row.openingPaise = opening.isEmpty() ? 0 : Money.parse(opening);
+
+        // the same rules registerAccount() applies, plus the column sizes
+        if (row.fullName.isEmpty() || row.fullName.length() > MAX_NAME) {
+            row.fail(Status.INVALID, "full name must be 1-" + MAX_NAME + " characters");
+        } else if (row.email.length() > MAX_EMAIL || row.email.indexOf('@') < 1) {
+            row.fail(Status.INVALID, "not an email address");
+        } else if (row.pin.length() < 4 || row.pin.length() > MAX_PIN) {
+            row.fail(Status.INVALID, "PIN must be 4-" + MAX_PIN + " digits");
+        } else if (row.openingPaise == Money.INVALID) {
+            row.fail(Status.INVALID, "opening balance is not an amount: " + opening);
+        }
+        return row;
+    }
+
+    // Imports the valid rows of the batch, writes one result line per row (in input order) and clears the batch
+    private void flush(Connection[] connections, List<Row> batch, BufferedWriter out, Report report) throws IOException, SQLException {
+        report.batches++;
+        List<Row> pending = new ArrayList<>(batch.size());
+        Map<String, Row> byEmail = new HashMap<>();
+        for (Row row : batch) {
+            if (row.status != null) {
+                continue;
+            }
+            // emails compare case-insensitively in MySQL, so they do here as well
+            Row earlier = byEmail.putIfAbsent(row.email.toLowerCase(Locale.ROOT), row);
+            if (earlier != null) {
+                row.fail(Status.DUPLICATE, "email repeated from line " + earlier.line);
+            } else {
+                pending.add(row);
+            }
+        }
+
+        // with shards every row goes where registerAccount() would put it, one transaction per shard
+        Map<Integer, List<Row>> byShard = new TreeMap<>();
+        for (Row row : pending) {
+            byShard.computeIfAbsent(DatabaseConnection.shardForEmail(row.email), k -> new ArrayList<>()).add(row);
+        }
+        for (Map.Entry<Integer, List<Row>> shard : byShard.entrySet()) {
+            importRows(connections[shard.getKey()], shard.getValue());
+        }
+
+        for (Row row : batch) {
+            if (row.status == null) {
+                row.status = Status.OK;
+            }
+            switch (row.status) {
+                case OK: report.imported++; break;
+                case DUPLICATE: report.duplicates++; break;
+                case INVALID: report.invalid++; break;
+                default: report.failed++;
+            }
+            report.rows++;
+            out.write(Long.toString(row.line));
+            out.write('\t');
+            out.write(row.status.name());
+            out.write('\t');
+            out.write(row.status == Status.OK ? Integer.toString(row.accountNumber) : "");
+            out.write('\t');
+            out.write(row.message.replace('\t', ' '));
+            out.newLine();
+        }
+        batch.clear();
+    }
+
+    // The rows of one shard: duplicates against the database, PIN hashes, then the batched insert
+    private static void importRows(Connection conn, List<Row> pending) throws SQLException {
+        if (!pending.isEmpty()) {
+            Set<String> existing = existingEmails(conn, pending);
+            pending.removeIf(row -> {
+                if (existing.contains(row.email.toLowerCase(Locale.ROOT))) {
+                    row.fail(Status.DUPLICATE, "email already exists");
+                    return true;
+                }
+                return false;
+            });
+        }
+
+        if (!pending.isEmpty()) {
+            // only rows that will really be inserted pay for a hash, spread over all cores
+            pending.parallelStream().forEach(row -> row.pin = PinHasher.hashNow(row.pin));
+            try {
+                insert(conn, pending);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                if (pending.size() == 1) {
+                    failRow(pending.get(0), e);
+                } else {
+                    // one row spoiled the batch, find it by giving every row its own transaction
+                    for (Row row : pending) {
+                        row.accountNumber = -1;
+                        try {
+                            insert(conn, List.of(row));
+                            conn.commit();
+                        } catch (SQLException single) {
+                            conn.rollback();
+                            failRow(row, single);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void failRow(Row row, SQLException e) {
+        row.accountNumber = -1;
+        if (e.getErrorCode() == 1062 || (e.getMessage() != null && e.getMessage().contains("Duplicate entry"))) {
+            row.fail(Status.DUPLICATE, "email already exists");
+        } else {
+            row.fail(Status.FAILED, e.getMessage());
+        }
+    }
+
+    // the users, their account numbers and the opening deposits, all inside the caller's transaction
+    private static void insert(Connection conn, List<Row> rows) throws SQLException {
+        try (PreparedStatement user = conn.prepareStatement(INSERT_USER_SQL)) {
+            for (Row row : rows) {
+                user.setString(1, row.fullName);
+                user.setString(2, row.email);
+                user.setString(3, row.pin);
+                user.setBigDecimal(4, Money.toBigDecimal(row.openingPaise));
+                user.addBatch();
+            }
+            user.executeBatch();
+        }
+
+        Map<String, Integer> accounts = new HashMap<>();
+        try (PreparedStatement lookup = conn.prepareStatement(inList("SELECT account_number, email FROM users WHERE email IN (", rows.size()))) {
+            for (int i = 0; i < rows.size(); i++) {
+                lookup.setString(i + 1, rows.get(i).email);
+            }
+            try (ResultSet rs = lookup.executeQuery()) {
+                while (rs.next()) {
+                    accounts.put(rs.getString(2).toLowerCase(Locale.ROOT), rs.getInt(1));
+                }
+            }
+        }
+
+        boolean deposits = false;
+        try (PreparedStatement deposit = conn.prepareStatement(INSERT_DEPOSIT_SQL)) {
+            for (Row row : rows) {
+                Integer account = accounts.get(row.email.toLowerCase(Locale.ROOT));
+                if (account == null) {
+                    throw new SQLException("Account for " + row.email + " not found after insert");
+                }
+                row.accountNumber = account;
+                if (row.openingPaise > 0) {
+                    deposit.setInt(1, account);
+                    deposit.setBigDecimal(2, Money.toBigDecimal(row.openingPaise));
+                    deposit.addBatch();
+                    deposits = true;
+                }
+            }
+            if (deposits) {
+                deposit.executeBatch();
+            }
+        }
+    }
+
+    private static Set<String> existingEmails(Connection conn, List<Row> rows) throws SQLException {
+        Set<String> existing = new HashSet<>();
+        try (PreparedStatement pstmt = conn.prepareStatement(inList("SELECT email FROM users WHERE email IN (", rows.size()))) {
+            for (int i = 0; i < rows.size(); i++) {
+                pstmt.setString(i + 1, rows.get(i).email);
+            }
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    existing.add(rs.getString(1).toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        return existing;
+    }
+
+    private static String inList(String prefix, int count) {
+        StringBuilder sql = new StringBuilder(prefix.length() + count * 3);
+        sql.append(prefix);
+        for (int i = 0; i < count; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        return sql.append(')').toString();
+    }
+
+    // Splits one line into `into`; for CSV a field in double quotes may hold the delimiter and "" for a quote
+    static void split(String line, char delimiter, List<String> into) {
+        into.clear();
+        if (delimiter != ',') {
+            int from = 0;
+            int at;
+            while ((at = line.indexOf(delimiter, from)) >= 0) {
+                into.add(line.substring(from, at));
+                from = at + 1;
+            }
+            into.add(line.substring(from));
+            return;
+        }
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == delimiter) {
+                into.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        into.add(field.toString());
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("Usage: java BulkImporter FILE.csv|FILE.tsv [--result RESULT_FILE] [--batch N]");
+            return;
+        }
+        Path input = Path.of(args[0]);
+        Path result = Path.of(args[0] + ".result.tsv");
+        int batch = Integer.getInteger("bank.import.batchSize", 1000);
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--result": result = Path.of(args[++i]); break;
+                case "--batch": batch = Integer.parseInt(args[++i]); break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+
+        SchemaManager.migrate();
+        Report report = new BulkImporter(batch).importFile(input, result);
+        System.out.println("Import finished: " + report);
+        System.out.println("Per-row results: " + result);
+        DatabaseConnection.shutdown();
+    }
+}
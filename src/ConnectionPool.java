@@ -0,0 +1,405 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// A small bounded JDBC connection pool.
+// Callers get a proxy Connection and close() hands the physical connection back instead of closing it,
+// so the existing try-with-resources code in BankingServices keeps working as it is.
+// Each pooled connection also carries its own StatementCache for prepareStatement().
+public class ConnectionPool {
+
+    // connections that sat idle for less than this are trusted without a ping
+    private static final long VALIDATION_BYPASS_MILLIS = 500;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    // looked up once: shared() is synchronized, and every acquire, commit and rollback records into it
+    private static final BankingMetrics METRICS = BankingMetrics.shared();
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long maxWaitMillis;
+    private final long idleTimeoutMillis;
+    private final int statementCacheSize;
+
+    // most recently returned connection sits at the head (LIFO keeps the warm ones busy)
+    private final LinkedBlockingDeque<PooledEntry> idle = new LinkedBlockingDeque<>();
+    // one permit per connection that may be handed out at the same time
+    private final Semaphore permits;
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    private final LongAdder acquireCount = new LongAdder();
+    private final LongAdder acquireNanos = new LongAdder();
+    private final AtomicLong maxAcquireNanos = new AtomicLong();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean shutdown = false;
+
+    public ConnectionPool(String url, String user, String password,
+                          int minSize, int maxSize, long maxWaitMillis, long idleTimeoutMillis,
+                          int statementCacheSize) {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+        }
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.maxWaitMillis = maxWaitMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(maxSize, true);
+
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-pool-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        housekeeper.scheduleWithFixedDelay(this::evictAndFill, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    // Borrowing a connection, waiting at most maxWaitMillis for a free slot
+    public Connection borrow() throws SQLException {
+        if (shutdown) {
+            throw new SQLException("Connection pool is shut down");
+        }
+        long start = System.nanoTime();
+        waiters.incrementAndGet();
+        boolean gotPermit;
+        try {
+            gotPermit = permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        } finally {
+            waiters.decrementAndGet();
+        }
+        if (!gotPermit) {
+            timeouts.increment();
+            throw new SQLException("Timed out after " + maxWaitMillis + " ms waiting for a database connection");
+        }
+
+        try {
+            PooledEntry entry = takeEntry(start);
+            active.incrementAndGet();
+            recordAcquire(System.nanoTime() - start);
+            return entry.newHandle();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private PooledEntry takeEntry(long start) throws SQLException {
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        while (true) {
+            PooledEntry entry = idle.pollFirst();
+            if (entry == null) {
+                if (tryReserveSlot()) {
+                    try {
+                        return openEntry();
+                    } catch (SQLException e) {
+                        total.decrementAndGet();
+                        throw e;
+                    }
+                }
+                // every slot is taken but we hold a permit, so someone is just handing one back
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    timeouts.increment();
+                    throw new SQLException("Timed out after " + maxWaitMillis + " ms waiting for a database connection");
+                }
+                try {
+                    entry = idle.pollFirst(remaining, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for a connection", e);
+                }
+                if (entry == null) {
+                    continue;
+                }
+            }
+            if (isUsable(entry)) {
+                return entry;
+            }
+            destroy(entry);
+        }
+    }
+
+    // validation on borrow, skipped for connections that were in use a moment ago
+    private boolean isUsable(PooledEntry entry) {
+        if (System.currentTimeMillis() - entry.lastUsed < VALIDATION_BYPASS_MILLIS) {
+            return true;
+        }
+        try {
+            return entry.physical.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private boolean tryReserveSlot() {
+        while (true) {
+            int current = total.get();
+            if (current >= maxSize) {
+                return false;
+            }
+            if (total.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private PooledEntry openEntry() throws SQLException {
+        Connection physical = DriverManager.getConnection(url, user, password);
+        created.increment();
+        return new PooledEntry(physical);
+    }
+
+    private void destroy(PooledEntry entry) {
+        total.decrementAndGet();
+        try {
+            entry.physical.close();
+        } catch (SQLException e) {
+            // it is going away anyway
+        }
+    }
+
+    // Called by the proxy when the caller closes its connection
+    private void giveBack(PooledEntry entry) {
+        active.decrementAndGet();
+        entry.statements.releaseAll();
+        try {
+            if (shutdown || entry.broken || !resetState(entry)) {
+                destroy(entry);
+            } else {
+                entry.lastUsed = System.currentTimeMillis();
+                idle.offerFirst(entry);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    // Leaving the connection the way the next borrower expects it: no open transaction, auto-commit on
+    private boolean resetState(PooledEntry entry) {
+        try {
+            Connection c = entry.physical;
+            if (c.isClosed()) {
+                return false;
+            }
+            if (!c.getAutoCommit()) {
+                c.rollback();
+                c.setAutoCommit(true);
+            }
+            c.clearWarnings();
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    // Housekeeping: close connections idle for too long, then top the pool back up to minSize
+    private void evictAndFill() {
+        if (shutdown) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Iterator<PooledEntry> it = idle.descendingIterator(); // oldest first
+        while (it.hasNext() && total.get() > minSize) {
+            PooledEntry entry = it.next();
+            if (now - entry.lastUsed > idleTimeoutMillis && idle.remove(entry)) {
+                evicted.increment();
+                destroy(entry);
+            }
+        }
+        while (total.get() < minSize && tryReserveSlot()) {
+            try {
+                PooledEntry entry = openEntry();
+                idle.offerLast(entry);
+            } catch (SQLException e) {
+                total.decrementAndGet();
+                return; // database is not reachable right now, try again on the next run
+            }
+        }
+    }
+
+    private void recordAcquire(long nanos) {
+        acquireCount.increment();
+        acquireNanos.add(nanos);
+        maxAcquireNanos.accumulateAndGet(nanos, Math::max);
+        METRICS.recordNanos(BankingMetrics.Timer.ACQUIRE, nanos);
+    }
+
+    public Stats getStats() {
+        long count = acquireCount.sum();
+        double avgMillis = count == 0 ? 0 : acquireNanos.sum() / (double) count / 1_000_000.0;
+        return new Stats(active.get(), idle.size(), waiters.get(), total.get(), maxSize,
+                count, avgMillis, maxAcquireNanos.get() / 1_000_000.0,
+                timeouts.sum(), created.sum(), evicted.sum(),
+                StatementCache.getHits(), StatementCache.getMisses());
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        housekeeper.shutdownNow();
+        PooledEntry entry;
+        while ((entry = idle.pollFirst()) != null) {
+            destroy(entry);
+        }
+    }
+
+    // Read-only view of the pool counters
+    public static class Stats {
+        public final int active;
+        public final int idle;
+        public final int waiters;
+        public final int total;
+        public final int maxSize;
+        public final long acquireCount;
+        public final double avgAcquireMillis;
+        public final double maxAcquireMillis;
+        public final long timeouts;
+        public final long created;
+        public final long evicted;
+        public final long statementCacheHits;
+        public final long statementCacheMisses;
+
+        Stats(int active, int idle, int waiters, int total, int maxSize, long acquireCount,
+              double avgAcquireMillis, double maxAcquireMillis, long timeouts, long created, long evicted,
+              long statementCacheHits, long statementCacheMisses) {
+            this.active = active;
+            this.idle = idle;
+            this.waiters = waiters;
+            this.total = total;
+            this.maxSize = maxSize;
+            this.acquireCount = acquireCount;
+            this.avgAcquireMillis = avgAcquireMillis;
+            this.maxAcquireMillis = maxAcquireMillis;
+            this.timeouts = timeouts;
+            this.created = created;
+            this.evicted = evicted;
+            this.statementCacheHits = statementCacheHits;
+            this.statementCacheMisses = statementCacheMisses;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("active=%d idle=%d waiters=%d total=%d/%d acquires=%d avgAcquire=%.3fms maxAcquire=%.3fms timeouts=%d created=%d evicted=%d stmtCacheHits=%d stmtCacheMisses=%d",
+                    active, idle, waiters, total, maxSize, acquireCount, avgAcquireMillis, maxAcquireMillis, timeouts, created, evicted,
+                    statementCacheHits, statementCacheMisses);
+        }
+    }
+
+    // One physical connection owned by the pool
+    private class PooledEntry {
+        final Connection physical;
+        final StatementCache statements;
+        volatile long lastUsed = System.currentTimeMillis();
+        volatile boolean broken = false;
+
+        PooledEntry(Connection physical) {
+            this.physical = physical;
+            this.statements = new StatementCache(physical, statementCacheSize);
+        }
+
+        Connection newHandle() {
+            return (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class},
+                    new Handle(this));
+        }
+    }
+
+    // The Connection the caller actually sees; close() returns the entry to the pool exactly once
+    private class Handle implements InvocationHandler {
+        private final PooledEntry entry;
+        private boolean closed = false;
+
+        Handle(PooledEntry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        giveBack(entry);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || entry.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled[" + entry.physical + "]";
+                default:
+                    break;
+            }
+            if (closed) {
+                throw new SQLException("Connection is already closed");
+            }
+            try {
+                // prepareStatement(sql) and prepareStatement(sql, autoGeneratedKeys) go through the cache
+                if (name.equals("prepareStatement") && args != null && (args.length == 1
+                        || (args.length == 2 && method.getParameterTypes()[1] == int.class))) {
+                    int keys = args.length == 2 ? (Integer) args[1] : Statement.NO_GENERATED_KEYS;
+                    return entry.statements.prepare((Connection) proxy, (String) args[0], keys);
+                }
+                if (name.equals("commit") || name.equals("rollback")) {
+                    return timed(name.equals("commit") ? BankingMetrics.Timer.COMMIT : BankingMetrics.Timer.ROLLBACK, method, args);
+                }
+                return method.invoke(entry.physical, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException && isFatal((SQLException) cause)) {
+                    entry.broken = true;
+                }
+                throw cause;
+            }
+        }
+
+        // commit() / rollback() timed whether they work or not (a failed rollback still counts as one)
+        private Object timed(BankingMetrics.Timer timer, Method method, Object[] args) throws ReflectiveOperationException {
+            long start = METRICS.start();
+            try {
+                return method.invoke(entry.physical, args);
+            } finally {
+                METRICS.record(timer, start);
+            }
+        }
+    }
+
+    // SQLState class 08 means the connection itself is gone
+    private static boolean isFatal(SQLException e) {
+        String state = e.getSQLState();
+        return state != null && state.startsWith("08");
+    }
+}
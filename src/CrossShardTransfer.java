@@ -0,0 +1,395 @@
+import java.math.BigDecimal;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Transfers between accounts on different shards, as one MySQL XA transaction with a branch on each shard.
+//   1. both branches do their work (XA START ... XA END), the lower account number first, so two opposite
+//      transfers wait for each other instead of deadlocking across two databases
+//   2. both branches XA PREPARE: from now on each shard commits if told to, even after a crash
+//   3. the decision goes into xa_decisions on shard 0 and is committed: this is the moment the transfer happened
+//   4. XA COMMIT on both shards, then the decision row is deleted
+// A crash or a lost connection between 2 and 4 leaves prepared branches behind. recover() runs every
+// bank.xa.recoveryMillis and finds them with XA RECOVER: branches of a transaction with a decision are
+// committed, the others are rolled back. Branches younger than bank.xa.recoveryGraceMillis are left alone,
+// their transfer may still be running.
+// Deadlocks and lock wait timeouts come out as SQLExceptions after both branches are rolled back, so
+// TransferEngine retries them like local ones.
+public class CrossShardTransfer {
+
+    private static final String PREFIX = "bank-xa-";
+    private static final long GRACE_MILLIS = Long.getLong("bank.xa.recoveryGraceMillis", 300_000);
+    private static final long RECOVERY_MILLIS = Long.getLong("bank.xa.recoveryMillis", 60_000);
+    // tells the transactions of two JVMs apart
+    private static final String NODE = Long.toString(new SecureRandom().nextLong() & 0xFFFFFFFFL, 36);
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private static final String LOCK_SQL = "SELECT balance FROM users WHERE account_number = ? FOR UPDATE";
+    private static final String DEBIT_SQL = "UPDATE users SET balance = balance - ? WHERE account_number = ?";
+    private static final String CREDIT_SQL = "UPDATE users SET balance = balance + ? WHERE account_number = ?";
+    private static final String LOG_SQL = "INSERT INTO transactions (account_number, transaction_type, amount) VALUES (?, ?, ?)";
+
+    private static ScheduledExecutorService recovery;
+
+    private final BalanceCache balanceCache;
+
+    private static final LongAdder transfers = new LongAdder();
+    private static final LongAdder unfinishedCommits = new LongAdder();
+    private static final LongAdder recoveredCommits = new LongAdder();
+    private static final LongAdder recoveredRollbacks = new LongAdder();
+
+    public CrossShardTransfer(BalanceCache balanceCache) {
+        this.balanceCache = balanceCache;
+        startRecovery(); // once per JVM, the first pass right away
+    }
+
+    // one XA branch: this transaction's work on one shard
+    private static class Branch {
+        final int shard;
+        final String xid;
+        Connection conn;
+        boolean started;
+        boolean ended;
+
+        Branch(String gtrid, int shard) {
+            this.shard = shard;
+            this.xid = "'" + gtrid + "','s" + shard + "'";
+        }
+
+        void start() throws SQLException {
+            conn = DatabaseConnection.getShardConnection(shard);
+            if (conn == null) {
+                throw new SQLException("No database connection for shard " + shard);
+            }
+            xa("START");
+            started = true;
+        }
+
+        void prepare() throws SQLException {
+            xa("END");
+            ended = true;
+            xa("PREPARE");
+        }
+
+        void xa(String command) throws SQLException {
+            try (Statement st = conn.createStatement()) {
+                st.execute("XA " + command + " " + xid);
+            }
+        }
+
+        // Rolling back whatever state the branch is in; a connection we can't clean up is not reused
+        void abort() {
+            if (!started) {
+                return;
+            }
+            try {
+                if (!ended) {
+                    xa("END");
+                }
+                xa("ROLLBACK");
+            } catch (SQLException e) {
+                discard();
+            }
+        }
+
+        // closing the physical connection, the pool sees it closed and drops it (a prepared branch survives that)
+        void discard() {
+            try {
+                conn.abort(Runnable::run);
+            } catch (SQLException ignored) {
+                // already gone
+            }
+        }
+
+        void close() {
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Amount and same-account checks are done by BankingServices, the striped JVM locks by TransferEngine
+    // An idempotency key is recorded in the sender's branch, so it commits or rolls back with the debit
+    public TransactionResult transfer(int fromAccount, int toAccount, long amount, String idempotencyKey) throws SQLException {
+        String gtrid = PREFIX + System.currentTimeMillis() + "-" + NODE + "-" + SEQUENCE.incrementAndGet();
+        Branch debit = new Branch(gtrid, DatabaseConnection.shardOf(fromAccount));
+        Branch credit = new Branch(gtrid, DatabaseConnection.shardOf(toAccount));
+        Branch first = fromAccount < toAccount ? debit : credit;
+        Branch second = first == debit ? credit : debit;
+        long stamp = balanceCache.beginWrite(fromAccount);
+        boolean decided = false;
+        try {
+            // Step 1: the work of both branches, lower account first
+            long senderBalance = 0;
+            TransactionStatus status = TransactionStatus.SUCCESS;
+            for (Branch branch : List.of(first, second)) {
+                branch.start();
+                if (branch == debit) {
+                    senderBalance = debit(branch.conn, fromAccount, amount);
+                    if (senderBalance == -1) {
+                        status = TransactionStatus.ACCOUNT_NOT_FOUND;
+                    } else if (senderBalance == -2) {
+                        status = TransactionStatus.INSUFFICIENT_FUNDS;
+                    } else if (idempotencyKey != null) {
+                        IdempotencyStore.record(branch.conn, fromAccount, idempotencyKey,
+                                IdempotencyStore.request("TRANSFER", amount, toAccount), senderBalance - amount);
+                    }
+                } else if (!credit(branch.conn, toAccount, amount)) {
+                    status = TransactionStatus.RECEIVER_NOT_FOUND;
+                }
+                if (status != TransactionStatus.SUCCESS) {
+                    debit.abort();
+                    credit.abort();
+                    balanceCache.invalidate(fromAccount);
+                    return TransactionResult.of(status);
+                }
+            }
+
+            // Step 2: both shards promise to commit
+            first.prepare();
+            second.prepare();
+
+            // Step 3: the decision, after this the transfer has happened whatever fails next
+            recordDecision(gtrid);
+            decided = true;
+            transfers.increment();
+
+            // Step 4: telling the shards; one that doesn't hear it now is committed by recover()
+            boolean finished = true;
+            for (Branch branch : List.of(first, second)) {
+                try {
+                    branch.xa("COMMIT");
+                } catch (SQLException e) {
+                    finished = false;
+                    unfinishedCommits.increment();
+                    branch.discard();
+                    System.out.println(" [!] XA commit of " + gtrid + " on shard " + branch.shard
+                            + " failed, recovery will finish it: " + e.getMessage());
+                }
+            }
+            if (finished) {
+                forgetDecision(gtrid);
+            }
+            DatabaseConnection.wrote(fromAccount);
+            DatabaseConnection.wrote(toAccount);
+            // the sender row was locked since step 1, so this is exactly what got committed
+            long newBalance = senderBalance - amount;
+            if (finished) {
+                balanceCache.complete(fromAccount, stamp, newBalance);
+            } else {
+                balanceCache.invalidate(fromAccount);
+            }
+            balanceCache.invalidate(toAccount);
+            return new TransactionResult(TransactionStatus.SUCCESS, newBalance);
+
+        } catch (SQLException e) {
+            balanceCache.invalidate(fromAccount);
+            if (!decided) {
+                debit.abort();
+                credit.abort();
+            }
+            throw e;
+        } finally {
+            debit.close();
+            credit.close();
+        }
+    }
+
+    // The sender's balance before the debit, -1 if there is no such account, -2 if it can't cover the amount
+    private static long debit(Connection conn, int account, long amount) throws SQLException {
+        long balance;
+        try (PreparedStatement pstmt = conn.prepareStatement(LOCK_SQL)) {
+            pstmt.setInt(1, account);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    return -1;
+                }
+                balance = Money.fromBigDecimal(rs.getBigDecimal(1));
+            }
+        }
+        if (balance < amount) {
+            return -2;
+        }
+        BigDecimal amountDecimal = Money.toBigDecimal(amount);
+        try (PreparedStatement pstmt = conn.prepareStatement(DEBIT_SQL)) {
+            pstmt.setBigDecimal(1, amountDecimal);
+            pstmt.setInt(2, account);
+            pstmt.executeUpdate();
+        }
+        log(conn, account, "TRANSFER_OUT", amountDecimal);
+        return balance;
+    }
+
+    // false if there is no such account
+    private static boolean credit(Connection conn, int account, long amount) throws SQLException {
+        BigDecimal amountDecimal = Money.toBigDecimal(amount);
+        try (PreparedStatement pstmt = conn.prepareStatement(CREDIT_SQL)) {
+            pstmt.setBigDecimal(1, amountDecimal);
+            pstmt.setInt(2, account);
+            if (pstmt.executeUpdate() == 0) {
+                return false;
+            }
+        }
+        log(conn, account, "TRANSFER_IN", amountDecimal);
+        return true;
+    }
+
+    private static void log(Connection conn, int account, String type, BigDecimal amount) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(LOG_SQL)) {
+            pstmt.setInt(1, account);
+            pstmt.setString(2, type);
+            pstmt.setBigDecimal(3, amount);
+            pstmt.executeUpdate();
+        }
+    }
+
+    // COORDINATOR LOG (xa_decisions on shard 0, auto-commit)
+
+    private static void recordDecision(String gtrid) throws SQLException {
+        try (Connection conn = DatabaseConnection.getShardConnection(0)) {
+            if (conn == null) {
+                throw new SQLException("No database connection for the XA decision log");
+            }
+            try (PreparedStatement pstmt = conn.prepareStatement("INSERT INTO xa_decisions (gtrid) VALUES (?)")) {
+                pstmt.setString(1, gtrid);
+                pstmt.executeUpdate();
+            }
+        }
+    }
+
+    private static void forgetDecision(String gtrid) {
+        try (Connection conn = DatabaseConnection.getShardConnection(0);
+             PreparedStatement pstmt = conn.prepareStatement("DELETE FROM xa_decisions WHERE gtrid = ?")) {
+            pstmt.setString(1, gtrid);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            e.printStackTrace(); // recover() deletes it once no shard has a branch of it left
+        }
+    }
+
+    // RECOVERY
+
+    private static synchronized void startRecovery() {
+        if (recovery != null) {
+            return;
+        }
+        recovery = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "xa-recovery");
+            t.setDaemon(true);
+            return t;
+        });
+        recovery.scheduleWithFixedDelay(CrossShardTransfer::recover, 0, RECOVERY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Finishing the in-doubt branches older than the grace period; returns how many were committed or rolled back.
+    // Balances changed here may sit in another JVM's BalanceCache until its entries expire.
+    public static int recover() {
+        return recover(GRACE_MILLIS);
+    }
+
+    public static int recover(long graceMillis) {
+        // branches first, decisions second: a decision that exists by then covers every branch seen before
+        List<String[]> branches = new ArrayList<>(); // shard, gtrid, bqual
+        for (int shard = 0; shard < DatabaseConnection.shardCount(); shard++) {
+            try (Connection conn = DatabaseConnection.getShardConnection(shard);
+                 Statement st = conn.createStatement();
+                 ResultSet rs = st.executeQuery("XA RECOVER")) {
+                while (rs.next()) {
+                    int gtridLength = rs.getInt("gtrid_length");
+                    String data = rs.getString("data");
+                    String gtrid = data.substring(0, gtridLength);
+                    String bqual = data.substring(gtridLength);
+                    if (gtrid.startsWith(PREFIX) && gtrid.matches("[a-z0-9-]+") && bqual.matches("s\\d+")) {
+                        branches.add(new String[] { Integer.toString(shard), gtrid, bqual });
+                    }
+                }
+            } catch (SQLException | RuntimeException e) {
+                System.out.println(" [!] XA recovery can't read shard " + shard + ": " + e.getMessage());
+            }
+        }
+
+        Set<String> decided = new HashSet<>();
+        try (Connection conn = DatabaseConnection.getShardConnection(0);
+             Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT gtrid FROM xa_decisions")) {
+            while (rs.next()) {
+                decided.add(rs.getString(1));
+            }
+        } catch (SQLException | RuntimeException e) {
+            System.out.println(" [!] XA recovery can't read the decision log, trying again later: " + e.getMessage());
+            return 0;
+        }
+
+        long now = System.currentTimeMillis();
+        int resolved = 0;
+        Set<String> inDoubt = new HashSet<>();
+        for (String[] branch : branches) {
+            String gtrid = branch[1];
+            inDoubt.add(gtrid);
+            if (now - startedAt(gtrid) < graceMillis) {
+                continue; // may still be on its way to the decision
+            }
+            boolean commit = decided.contains(gtrid);
+            try (Connection conn = DatabaseConnection.getShardConnection(Integer.parseInt(branch[0]));
+                 Statement st = conn.createStatement()) {
+                st.execute("XA " + (commit ? "COMMIT" : "ROLLBACK") + " '" + gtrid + "','" + branch[2] + "'");
+                (commit ? recoveredCommits : recoveredRollbacks).increment();
+                resolved++;
+                System.out.println("XA recovery: " + (commit ? "committed " : "rolled back ") + gtrid + " on shard " + branch[0]);
+            } catch (SQLException | RuntimeException e) {
+                System.out.println(" [!] XA recovery of " + gtrid + " on shard " + branch[0] + " failed: " + e.getMessage());
+            }
+        }
+
+        // decisions with no branch left anywhere are done
+        for (String gtrid : decided) {
+            if (!inDoubt.contains(gtrid) && now - startedAt(gtrid) >= graceMillis) {
+                forgetDecision(gtrid);
+            }
+        }
+        return resolved;
+    }
+
+    private static long startedAt(String gtrid) {
+        try {
+            return Long.parseLong(gtrid.substring(PREFIX.length(), gtrid.indexOf('-', PREFIX.length())));
+        } catch (RuntimeException e) {
+            return 0; // not one of ours after all, old enough to resolve
+        }
+    }
+
+    public static String getStats() {
+        return "xa transfers=" + transfers.sum() + " unfinished commits=" + unfinishedCommits.sum()
+                + " recovered commits=" + recoveredCommits.sum() + " recovered rollbacks=" + recoveredRollbacks.sum();
+    }
+
+    // java CrossShardTransfer [--grace SECONDS]  -> one recovery pass now, e.g. after a crash.
+    // --grace 0 resolves everything in doubt; only do that while no other instance is running transfers.
+    public static void main(String[] args) {
+        long graceMillis = GRACE_MILLIS;
+        if (args.length == 2 && args[0].equals("--grace")) {
+            graceMillis = Long.parseLong(args[1]) * 1000;
+        } else if (args.length > 0) {
+            System.out.println("Usage: java CrossShardTransfer [--grace SECONDS]");
+            return;
+        }
+        System.out.println("Shards: " + DatabaseConnection.shardCount() + ", resolved " + recover(graceMillis) + " in-doubt branch(es)");
+        DatabaseConnection.shutdown();
+    }
+}
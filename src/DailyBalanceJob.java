@@ -0,0 +1,336 @@
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Keeps daily_balances up to date: one closing balance per account for every day it had activity.
+// Each run folds only the transactions past the checkpoint (last folded transaction_id), chunk by chunk,
+// and moves the checkpoint in the same commit, so a crash in the middle never folds a row twice.
+//
+// Rows younger than settleSeconds are left for the next run: auto-increment ids are handed out before commit,
+// so a slow transaction can still commit a lower id after a faster one. Every write path here commits within
+// seconds (lock waits time out long before the default 60 s), so anything older than that is final.
+//
+// balanceAsOf() then answers "balance at instant X" from the last snapshot before X's day plus the rows of that
+// day, and the few rows the job hasn't folded yet, instead of summing the account's whole history.
+//
+//   java DailyBalanceJob               -> fold once
+//   java DailyBalanceJob --every 300   -> fold every 5 minutes until stopped
+public class DailyBalanceJob implements AutoCloseable {
+
+    private static final String SIGNED_AMOUNT = "CASE WHEN transaction_type IN ('DEPOSIT', 'TRANSFER_IN') THEN amount ELSE -amount END";
+
+    private static final String CHECKPOINT_SQL = "SELECT last_transaction_id, folded_until FROM daily_balance_checkpoint WHERE id = 1";
+    private static final String HIGH_WATER_SQL = "SELECT MAX(transaction_id) FROM transactions "
+            + "WHERE transaction_id > ? AND transaction_date < NOW() - INTERVAL ? SECOND";
+    private static final String DELTAS_SQL = "SELECT account_number, DATE(transaction_date), SUM(" + SIGNED_AMOUNT + "), "
+            + "MAX(transaction_id), MAX(transaction_date), COUNT(*) FROM transactions WHERE transaction_id > ? AND transaction_id <= ? "
+            + "GROUP BY account_number, DATE(transaction_date) ORDER BY 1, 2";
+    private static final String ADD_TO_DAY_SQL = "UPDATE daily_balances SET closing_balance = closing_balance + ?, "
+            + "last_transaction_id = GREATEST(last_transaction_id, ?) WHERE account_number = ? AND balance_date = ?";
+    private static final String PREVIOUS_CLOSE_SQL = "SELECT closing_balance FROM daily_balances "
+            + "WHERE account_number = ? AND balance_date < ? ORDER BY balance_date DESC LIMIT 1";
+    private static final String INSERT_DAY_SQL = "INSERT INTO daily_balances (account_number, balance_date, closing_balance, last_transaction_id) "
+            + "VALUES (?, ?, ?, ?)";
+    // a late row for an older day also moves every later closing balance
+    private static final String ADD_TO_LATER_DAYS_SQL = "UPDATE daily_balances SET closing_balance = closing_balance + ? "
+            + "WHERE account_number = ? AND balance_date > ?";
+    private static final String MOVE_CHECKPOINT_SQL = "UPDATE daily_balance_checkpoint SET last_transaction_id = ?, "
+            + "folded_until = COALESCE(GREATEST(folded_until, ?), ?, folded_until) WHERE id = 1";
+
+    private static final String DAY_ROWS_SQL = "SELECT COALESCE(SUM(" + SIGNED_AMOUNT + "), 0) FROM transactions "
+            + "WHERE account_number = ? AND transaction_date >= ? AND transaction_date <= ?";
+    private static final String UNFOLDED_ROWS_SQL = "SELECT COALESCE(SUM(" + SIGNED_AMOUNT + "), 0) FROM transactions "
+            + "WHERE account_number = ? AND transaction_date >= ? AND transaction_date < ? AND transaction_id > ?";
+
+    private static final long SETTLE_SECONDS = Long.getLong("bank.dailyBalances.settleSeconds", 60);
+
+    private final int chunkRows;
+    private final LongAdder foldedRows = new LongAdder();
+    private final LongAdder runs = new LongAdder();
+    private ScheduledExecutorService scheduler;
+
+    public DailyBalanceJob() {
+        this(Integer.getInteger("bank.dailyBalances.chunkSize", 10_000));
+    }
+
+    public DailyBalanceJob(int chunkRows) {
+        if (chunkRows < 1) {
+            throw new IllegalArgumentException("chunkRows must be at least 1");
+        }
+        this.chunkRows = chunkRows;
+    }
+
+    // Folds every settled transaction past the checkpoint; returns how many transaction rows that was.
+    // Every shard has its own transactions, snapshots and checkpoint, and is folded on its own.
+    public long runOnce() throws SQLException {
+        runs.increment();
+        long before = foldedRows.sum();
+        for (int shard = 0; shard < DatabaseConnection.shardCount(); shard++) {
+            while (foldChunk(shard)) {
+                // one commit per chunk keeps the transactions small on a first run over years of history
+            }
+        }
+        return foldedRows.sum() - before;
+    }
+
+    // One chunk of ids in one transaction; false once there is nothing settled left past the checkpoint
+    private boolean foldChunk(int shard) throws SQLException {
+        try (Connection conn = DatabaseConnection.getShardConnection(shard)) {
+            if (conn == null) {
+                throw new SQLException("No database connection available");
+            }
+            conn.setAutoCommit(false);
+            try {
+                long checkpoint;
+                // FOR UPDATE: a second job running at the same time waits here instead of folding the same rows
+                try (PreparedStatement pstmt = conn.prepareStatement(CHECKPOINT_SQL + " FOR UPDATE");
+                     ResultSet rs = pstmt.executeQuery()) {
+                    if (!rs.next()) {
+                        throw new SQLException("daily_balance_checkpoint is empty, run SchemaManager first");
+                    }
+                    checkpoint = rs.getLong(1);
+                }
+
+                long highWater;
+                try (PreparedStatement pstmt = conn.prepareStatement(HIGH_WATER_SQL)) {
+                    pstmt.setLong(1, checkpoint);
+                    pstmt.setLong(2, SETTLE_SECONDS);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        rs.next();
+                        highWater = rs.getLong(1); // 0 (NULL) when nothing is settled
+                    }
+                }
+                if (highWater <= checkpoint) {
+                    conn.rollback();
+                    return false;
+                }
+                long upper = Math.min(highWater, checkpoint + chunkRows);
+
+                List<DayDelta> deltas = new ArrayList<>();
+                try (PreparedStatement pstmt = conn.prepareStatement(DELTAS_SQL)) {
+                    pstmt.setLong(1, checkpoint);
+                    pstmt.setLong(2, upper);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            deltas.add(new DayDelta(rs.getInt(1), rs.getDate(2), rs.getBigDecimal(3),
+                                    rs.getLong(4), rs.getTimestamp(5), rs.getLong(6)));
+                        }
+                    }
+                }
+
+                Timestamp foldedUntil = null;
+                long rows = 0;
+                for (DayDelta delta : deltas) {
+                    fold(conn, delta);
+                    rows += delta.rows;
+                    if (foldedUntil == null || delta.latest.after(foldedUntil)) {
+                        foldedUntil = delta.latest;
+                    }
+                }
+                try (PreparedStatement pstmt = conn.prepareStatement(MOVE_CHECKPOINT_SQL)) {
+                    pstmt.setLong(1, upper);
+                    pstmt.setTimestamp(2, foldedUntil);
+                    pstmt.setTimestamp(3, foldedUntil);
+                    pstmt.executeUpdate();
+                }
+                conn.commit();
+                foldedRows.add(rows);
+                return true;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    private static void fold(Connection conn, DayDelta delta) throws SQLException {
+        int updated;
+        try (PreparedStatement pstmt = conn.prepareStatement(ADD_TO_DAY_SQL)) {
+            pstmt.setBigDecimal(1, delta.amount);
+            pstmt.setLong(2, delta.lastTransactionId);
+            pstmt.setInt(3, delta.accountNumber);
+            pstmt.setDate(4, delta.day);
+            updated = pstmt.executeUpdate();
+        }
+        if (updated == 0) {
+            // first activity of the day: start from the closing balance of the last active day before it
+            long previous = 0;
+            try (PreparedStatement pstmt = conn.prepareStatement(PREVIOUS_CLOSE_SQL)) {
+                pstmt.setInt(1, delta.accountNumber);
+                pstmt.setDate(2, delta.day);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next()) {
+                        previous = Money.fromBigDecimal(rs.getBigDecimal(1));
+                    }
+                }
+            }
+            try (PreparedStatement pstmt = conn.prepareStatement(INSERT_DAY_SQL)) {
+                pstmt.setInt(1, delta.accountNumber);
+                pstmt.setDate(2, delta.day);
+                pstmt.setBigDecimal(3, Money.toBigDecimal(previous + Money.fromBigDecimal(delta.amount)));
+                pstmt.setLong(4, delta.lastTransactionId);
+                pstmt.executeUpdate();
+            }
+        }
+        try (PreparedStatement pstmt = conn.prepareStatement(ADD_TO_LATER_DAYS_SQL)) {
+            pstmt.setBigDecimal(1, delta.amount);
+            pstmt.setInt(2, delta.accountNumber);
+            pstmt.setDate(3, delta.day);
+            pstmt.executeUpdate();
+        }
+    }
+
+    // BALANCE AS OF AN INSTANT
+
+    // Balance in paise right after `instant`, read on the caller's connection.
+    //   closing balance of the last active day before the instant's day    (one index seek)
+    // + the rows of that day up to the instant                             (one day of the account)
+    // + rows from earlier days the job hasn't folded yet                   (only the last few seconds/minutes)
+    // Days are calendar days in the JVM's time zone, the same as MySQL's DATE() when both run on local time.
+    static long balanceAsOf(Connection conn, int accountNumber, Instant instant) throws SQLException {
+        LocalDate day = LocalDate.ofInstant(instant, ZoneId.systemDefault());
+        Date dayDate = Date.valueOf(day);
+        Timestamp startOfDay = Timestamp.valueOf(day.atStartOfDay());
+        Timestamp at = Timestamp.from(instant);
+
+        long balance = 0;
+        try (PreparedStatement pstmt = conn.prepareStatement(PREVIOUS_CLOSE_SQL)) {
+            pstmt.setInt(1, accountNumber);
+            pstmt.setDate(2, dayDate);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    balance = Money.fromBigDecimal(rs.getBigDecimal(1));
+                }
+            }
+        }
+
+        long checkpoint = 0;
+        Timestamp unfoldedFrom = new Timestamp(0); // job never ran: everything before the day counts
+        try (PreparedStatement pstmt = conn.prepareStatement(CHECKPOINT_SQL);
+             ResultSet rs = pstmt.executeQuery()) {
+            if (rs.next()) {
+                checkpoint = rs.getLong(1);
+                Timestamp foldedUntil = rs.getTimestamp(2);
+                if (foldedUntil != null) {
+                    // rows past the checkpoint can carry a slightly older date (their statement started earlier)
+                    unfoldedFrom = new Timestamp(foldedUntil.getTime() - TimeUnit.SECONDS.toMillis(SETTLE_SECONDS));
+                }
+            }
+        }
+
+        try (PreparedStatement pstmt = conn.prepareStatement(DAY_ROWS_SQL)) {
+            pstmt.setInt(1, accountNumber);
+            pstmt.setTimestamp(2, startOfDay);
+            pstmt.setTimestamp(3, at);
+            balance += sum(pstmt);
+        }
+        if (unfoldedFrom.before(startOfDay)) {
+            try (PreparedStatement pstmt = conn.prepareStatement(UNFOLDED_ROWS_SQL)) {
+                pstmt.setInt(1, accountNumber);
+                pstmt.setTimestamp(2, unfoldedFrom);
+                pstmt.setTimestamp(3, startOfDay);
+                pstmt.setLong(4, checkpoint);
+                balance += sum(pstmt);
+            }
+        }
+        return balance;
+    }
+
+    private static long sum(PreparedStatement pstmt) throws SQLException {
+        try (ResultSet rs = pstmt.executeQuery()) {
+            return rs.next() ? Money.fromBigDecimal(rs.getBigDecimal(1)) : 0;
+        }
+    }
+
+    // SCHEDULING
+
+    public synchronized void start(long periodSeconds) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "daily-balance-job");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                runOnce();
+            } catch (SQLException e) {
+                e.printStackTrace(); // tried again on the next run, the checkpoint didn't move
+            }
+        }, 0, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            scheduler = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "runs=" + runs.sum() + " foldedRows=" + foldedRows.sum();
+    }
+
+    // one (account, day) group of a chunk
+    private static class DayDelta {
+        final int accountNumber;
+        final Date day;
+        final BigDecimal amount;
+        final long lastTransactionId;
+        final Timestamp latest;
+        final long rows;
+
+        DayDelta(int accountNumber, Date day, BigDecimal amount, long lastTransactionId, Timestamp latest, long rows) {
+            this.accountNumber = accountNumber;
+            this.day = day;
+            this.amount = amount;
+            this.lastTransactionId = lastTransactionId;
+            this.latest = latest;
+            this.rows = rows;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        long every = 0;
+        if (args.length == 2 && args[0].equals("--every")) {
+            every = Long.parseLong(args[1]);
+        } else if (args.length != 0) {
+            System.out.println("Usage: java DailyBalanceJob [--every SECONDS]");
+            return;
+        }
+        SchemaManager.migrate();
+        DailyBalanceJob job = new DailyBalanceJob();
+        if (every <= 0) {
+            long start = System.nanoTime();
+            long rows = job.runOnce();
+            System.out.printf("Folded %d transaction(s) into daily_balances in %.1f ms%n", rows, (System.nanoTime() - start) / 1e6);
+            DatabaseConnection.shutdown();
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(job::close, "daily-balance-job-stop"));
+        job.start(every);
+        Thread.currentThread().join(); // runs until Ctrl+C
+    }
+}
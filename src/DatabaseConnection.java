@@ -1,17 +1,135 @@
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 
 public class DatabaseConnection {
-    private static final String URL = "jdbc:mysql://localhost:3306/bank_system";
+    // where writes go, and the read replicas as host:port,host:port (-Dbank.db.replicas=..., none by default)
+    private static final String PRIMARY = System.getProperty("bank.db.primary", "localhost:3306");
+    private static final String REPLICAS = System.getProperty("bank.db.replicas", "");
+    // Sharding: -Dbank.db.shards=host:port/schema,host:port/schema,... replaces the primary with N databases.
+    // Account n lives on shard (n - 1) % N: every shard hands out only its own numbers through
+    // auto_increment_increment = N and auto_increment_offset = shard + 1 on its connections.
+    // Start from empty shards, the accounts of an existing database are not moved.
+    private static final String[] SHARDS = shardEndpoints(System.getProperty("bank.db.shards", ""));
+    // server-side prepared statements, the pool caches them per connection (the driver's own cache is off)
+    // useCursorFetch: statements with a fetch size (history streaming) read through a server-side cursor
+    private static final String OPTIONS = "?useServerPrepStmts=true&cachePrepStmts=false&useCursorFetch=true";
+    // bulk jobs: client-side statements, so the driver can rewrite a batch of INSERTs into multi-row INSERTs
+    private static final String BULK_OPTIONS = "?rewriteBatchedStatements=true";
     private static final String USER = "root";
     private static final String PASSWORD = "mysql_password";
 
+    // Pool limits, can be overridden with -Dbank.pool.min=... etc.
+    private static final int POOL_MIN = Integer.getInteger("bank.pool.min", 2);
+    private static final int POOL_MAX = Integer.getInteger("bank.pool.max", 10);
+    private static final long POOL_MAX_WAIT_MS = Long.getLong("bank.pool.maxWaitMillis", 5000);
+    private static final long POOL_IDLE_TIMEOUT_MS = Long.getLong("bank.pool.idleTimeoutMillis", 300_000);
+    private static final int STATEMENT_CACHE_SIZE = Integer.getInteger("bank.pool.statementCacheSize", 64);
+    private static final int REPLICA_POOL_MAX = Integer.getInteger("bank.db.replicaPoolMax", POOL_MAX);
+
+    // Replica routing, see ReadRouter
+    private static final long MAX_LAG_SECONDS = Long.getLong("bank.db.maxLagSeconds", 2);
+    private static final long HEALTH_CHECK_MS = Long.getLong("bank.db.healthCheckMillis", 1000);
+    // after an account's own write its reads stay on the primary this long; by default a replica at the
+    // edge of the lag tolerance has caught up by then, with two health checks to spare
+    private static final long STICKY_MS = Long.getLong("bank.db.stickyMillis", MAX_LAG_SECONDS * 1000 + 2 * HEALTH_CHECK_MS);
+
+    // the pools are only built the first time someone asks for a connection, one per shard
+    private static class PoolHolder {
+        static final ConnectionPool[] POOLS = new ConnectionPool[SHARDS.length];
+
+        static {
+            for (int shard = 0; shard < SHARDS.length; shard++) {
+                POOLS[shard] = new ConnectionPool(shardUrl(shard, OPTIONS), USER, PASSWORD,
+                        POOL_MIN, POOL_MAX, POOL_MAX_WAIT_MS, POOL_IDLE_TIMEOUT_MS, STATEMENT_CACHE_SIZE);
+            }
+        }
+    }
+
+    private static class RouterHolder {
+        static final ReadRouter ROUTER = createRouter();
+    }
+
+    private static ReadRouter createRouter() {
+        List<ReadRouter.Replica> replicas = new ArrayList<>();
+        if (isSharded() && !REPLICAS.isBlank()) {
+            System.out.println(" [!] bank.db.replicas is ignored with bank.db.shards, reads go to the shards");
+            return new ReadRouter(replicas, MAX_LAG_SECONDS, HEALTH_CHECK_MS, STICKY_MS);
+        }
+        for (String endpoint : REPLICAS.split(",")) {
+            if (!endpoint.isBlank()) {
+                replicas.add(new ReadRouter.Replica(endpoint.trim(), new ConnectionPool(url(endpoint.trim()) + OPTIONS,
+                        USER, PASSWORD, POOL_MIN, REPLICA_POOL_MAX, POOL_MAX_WAIT_MS, POOL_IDLE_TIMEOUT_MS, STATEMENT_CACHE_SIZE)));
+            }
+        }
+        return new ReadRouter(replicas, MAX_LAG_SECONDS, HEALTH_CHECK_MS, STICKY_MS);
+    }
+
+    private static String url(String endpoint) {
+        return "jdbc:mysql://" + endpoint + "/bank_system";
+    }
+
+    private static String[] shardEndpoints(String property) {
+        List<String> endpoints = new ArrayList<>();
+        for (String endpoint : property.split(",")) {
+            if (!endpoint.isBlank()) {
+                endpoints.add(endpoint.trim());
+            }
+        }
+        return endpoints.isEmpty() ? new String[] { PRIMARY + "/bank_system" } : endpoints.toArray(new String[0]);
+    }
+
+    private static String shardUrl(int shard, String options) {
+        String url = "jdbc:mysql://" + SHARDS[shard] + options;
+        if (isSharded()) {
+            url += "&sessionVariables=auto_increment_increment=" + SHARDS.length + ",auto_increment_offset=" + (shard + 1);
+        }
+        return url;
+    }
+
+    // SHARDS
+
+    public static int shardCount() {
+        return SHARDS.length;
+    }
+
+    public static boolean isSharded() {
+        return SHARDS.length > 1;
+    }
+
+    public static int shardOf(int accountNumber) {
+        return Math.floorMod(accountNumber - 1, SHARDS.length);
+    }
+
+    // Where a new account goes: by email, so the same email always lands on the same shard and the
+    // UNIQUE index on users.email still catches duplicates
+    public static int shardForEmail(String email) {
+        return Math.floorMod(email.trim().toLowerCase(Locale.ROOT).hashCode(), SHARDS.length);
+    }
+
+    public static String shardName(int shard) {
+        return SHARDS[shard];
+    }
+
     /* By Static it can be direcly get called by its class itself and not by the object
-       Also it will be same for every object if its being called by an object */
+       Also it will be same for every object if its being called by an object
+       The connection comes from the pool now, so closing it just hands it back
+       Without sharding this is the only database; with it, shard 0 (schema changes, the XA decision log) */
     public static Connection getConnection() {
+        return getShardConnection(0);
+    }
+
+    // The database that holds this account; everything that touches one account goes through here
+    public static Connection getConnection(int accountNumber) {
+        return getShardConnection(shardOf(accountNumber));
+    }
+
+    public static Connection getShardConnection(int shard) {
         try {
-            return DriverManager.getConnection(URL, USER, PASSWORD);
+            return PoolHolder.POOLS[shard].borrow();
         } catch (SQLException e) {
             System.out.println("Connection Failed! Wrong MySQL credentials.");
             e.printStackTrace();
@@ -19,11 +137,77 @@ public class DatabaseConnection {
         }
     }
 
+    // For queries that only read: a replica if one is healthy and close enough behind, else the primary.
+    // Reads of an account this JVM has just written go to the primary (read-your-writes).
+    // Don't write through it, and don't use it for reads that decide a write (those belong in the write's transaction).
+    public static Connection getReadConnection(int accountNumber) {
+        if (isSharded()) {
+            return getConnection(accountNumber);
+        }
+        ReadRouter router = RouterHolder.ROUTER;
+        ReadRouter.Replica replica = router.pick(accountNumber);
+        if (replica != null) {
+            try {
+                return replica.pool.borrow();
+            } catch (SQLException e) {
+                router.failed(replica, e);
+            }
+        }
+        if (router.hasReplicas()) {
+            router.countPrimaryRead();
+        }
+        return getConnection();
+    }
+
+    // reads that aren't about one account (exports, reports)
+    public static Connection getReadConnection() {
+        return getReadConnection(0);
+    }
+
+    // Writers call this after their commit, so the account's next reads see it (no-op without replicas)
+    public static void wrote(int accountNumber) {
+        RouterHolder.ROUTER.wrote(accountNumber);
+    }
+
+    // A connection of its own, outside the pool, for long bulk jobs (BulkImporter). The caller closes it.
+    public static Connection openBulkConnection() throws SQLException {
+        return openBulkConnection(0);
+    }
+
+    public static Connection openBulkConnection(int shard) throws SQLException {
+        return DriverManager.getConnection(shardUrl(shard, BULK_OPTIONS), USER, PASSWORD);
+    }
+
+    // active / idle / waiters / acquire latency of the pool, plus statement cache hits and misses
+    public static ConnectionPool.Stats getPoolStats() {
+        return getPoolStats(0);
+    }
+
+    public static ConnectionPool.Stats getPoolStats(int shard) {
+        return PoolHolder.POOLS[shard].getStats();
+    }
+
+    // where the reads went, per replica, and how far behind each one was at its last check
+    public static String getReadRoutingStats() {
+        return RouterHolder.ROUTER.toString();
+    }
+
+    public static void shutdown() {
+        if (!REPLICAS.isBlank()) {
+            RouterHolder.ROUTER.shutdown();
+        }
+        for (ConnectionPool pool : PoolHolder.POOLS) {
+            pool.shutdown();
+        }
+    }
+
     // Testing it
-    public static void main(String[] args) {
+    public static void main(String[] args) throws SQLException {
         Connection conn = getConnection();
         if (conn != null) {
             System.out.println("Connection Successful!");
+            conn.close();
+            System.out.println("Pool: " + getPoolStats());
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,447 @@
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Group commit for deposits and withdrawals.
+// Callers queue their money movement and wait on a future; one writer thread collects whatever arrives within
+// maxDelayMillis (or until maxBatch items) and applies all of it in a single transaction:
+//   - one batched signed UPDATE, whose per-row update count tells each item whether it went through
+//   - one batched INSERT into the transactions log for the items that did
+//   - one commit, i.e. one redo log flush for the whole group instead of one per operation
+// Futures are completed only after that commit. If the batch fails as a whole, every item of it is
+// tried again alone, so one bad item can't take the others down with it. That is only done for failures before
+// the commit: a commit that fails (lost connection) may still have gone through on the server, so its items
+// complete exceptionally with BankingException UNAVAILABLE (outcome unknown, retry with the idempotency key)
+// and are never applied a second time.
+// The UPDATEs of a group run in account order, the lock order TransferEngine uses, so a group never deadlocks
+// against a transfer.
+// At most maxQueued items wait; past that callers block in submit, so a slow database pushes back on them
+// instead of piling items up on the heap.
+// With shards the batch is split and every shard gets its own group transaction.
+// Items sent with an idempotency key get their idempotency_keys row in the group transaction too; a key that
+// is already taken fails the group, and alone that item gets the stored result of its first call.
+public class GroupCommitter implements AutoCloseable {
+
+    // amount > 0 credits, amount < 0 debits; the debit only happens if it leaves the balance at 0 or above
+    private static final String APPLY_SQL = "UPDATE users SET balance = balance + ? WHERE account_number = ? AND balance + ? >= 0";
+    private static final String LOG_SQL = "INSERT INTO transactions (account_number, transaction_type, amount) VALUES (?, ?, ?)";
+
+    private static GroupCommitter shared;
+
+    private final BalanceCache balanceCache;
+    private final long maxDelayNanos;
+    private final int maxBatch;
+
+    private final LinkedBlockingQueue<Item> queue;
+    private final Thread writer;
+    private volatile boolean closed = false;
+    // submit() enqueues under the read lock, close() sets closed under the write lock: nothing is added after
+    // close() has decided the queue is done
+    private final ReentrantReadWriteLock closing = new ReentrantReadWriteLock();
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder items = new LongAdder();
+    private final LongAdder failedBatches = new LongAdder();
+    private final LongAdder retriedAlone = new LongAdder();
+    private final LongAdder unknownOutcomes = new LongAdder();
+
+    public GroupCommitter(BalanceCache balanceCache) {
+        this(balanceCache,
+                Long.getLong("bank.groupCommit.maxDelayMillis", 2),
+                Integer.getInteger("bank.groupCommit.maxBatch", 256));
+    }
+
+    public GroupCommitter(BalanceCache balanceCache, long maxDelayMillis, int maxBatch) {
+        this(balanceCache, maxDelayMillis, maxBatch, Integer.getInteger("bank.groupCommit.maxQueued", 16 * maxBatch));
+    }
+
+    public GroupCommitter(BalanceCache balanceCache, long maxDelayMillis, int maxBatch, int maxQueued) {
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("maxBatch must be at least 1");
+        }
+        if (maxQueued < 1) {
+            throw new IllegalArgumentException("maxQueued must be at least 1");
+        }
+        this.queue = new LinkedBlockingQueue<>(maxQueued);
+        this.balanceCache = balanceCache;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.maxBatch = maxBatch;
+        this.writer = new Thread(this::writeLoop, "group-committer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // The committer every default BankingServices uses when -Dbank.groupCommit.enabled=true, null otherwise
+    public static synchronized GroupCommitter sharedIfEnabled() {
+        if (!Boolean.getBoolean("bank.groupCommit.enabled")) {
+            return null;
+        }
+        if (shared == null) {
+            shared = new GroupCommitter(BalanceCache.shared());
+        }
+        return shared;
+    }
+
+    public CompletableFuture<TransactionResult> deposit(int accountNumber, long amountPaise) {
+        return deposit(accountNumber, amountPaise, null);
+    }
+
+    public CompletableFuture<TransactionResult> deposit(int accountNumber, long amountPaise, String idempotencyKey) {
+        if (amountPaise <= 0) {
+            return CompletableFuture.completedFuture(TransactionResult.of(TransactionStatus.INVALID_AMOUNT));
+        }
+        return submit(new Item(accountNumber, amountPaise, "DEPOSIT", idempotencyKey));
+    }
+
+    public CompletableFuture<TransactionResult> withdraw(int accountNumber, long amountPaise) {
+        return withdraw(accountNumber, amountPaise, null);
+    }
+
+    public CompletableFuture<TransactionResult> withdraw(int accountNumber, long amountPaise, String idempotencyKey) {
+        if (amountPaise <= 0) { // a negative withdrawal would be a credit logged as WITHDRAWAL
+            return CompletableFuture.completedFuture(TransactionResult.of(TransactionStatus.INVALID_AMOUNT));
+        }
+        return submit(new Item(accountNumber, -amountPaise, "WITHDRAWAL", idempotencyKey));
+    }
+
+    private CompletableFuture<TransactionResult> submit(Item item) {
+        closing.readLock().lock();
+        try {
+            if (closed) {
+                item.result.complete(TransactionResult.of(TransactionStatus.FAILED));
+                return item.result;
+            }
+            queue.put(item); // blocks while the queue is full; the writer keeps draining, close() waits for us
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            item.result.complete(TransactionResult.of(TransactionStatus.FAILED)); // never queued, nothing happened
+        } finally {
+            closing.readLock().unlock();
+        }
+        return item.result;
+    }
+
+    // WRITER THREAD
+
+    private void writeLoop() {
+        List<Item> batch = new ArrayList<>(maxBatch);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Item first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // the window starts with the first item, whatever arrives until it closes rides along
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatch) {
+                    long left = deadline - System.nanoTime();
+                    Item next = left > 0 ? queue.poll(left, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                for (List<Item> group : byShard(batch)) {
+                    commitGroup(group);
+                }
+            } catch (InterruptedException e) {
+                closed = true;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                for (Item item : batch) {
+                    item.result.complete(TransactionResult.of(TransactionStatus.FAILED));
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    // one group per shard database (just the batch itself without sharding), a transaction never spans two
+    private static List<List<Item>> byShard(List<Item> batch) {
+        if (!DatabaseConnection.isSharded()) {
+            return List.of(batch);
+        }
+        Map<Integer, List<Item>> groups = new TreeMap<>();
+        for (Item item : batch) {
+            groups.computeIfAbsent(DatabaseConnection.shardOf(item.accountNumber), k -> new ArrayList<>()).add(item);
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+    private void commitGroup(List<Item> batch) {
+        batches.increment();
+        items.add(batch.size());
+        try {
+            apply(batch);
+            return;
+        } catch (SQLException e) {
+            if (batch.size() == 1) {
+                failed(batch.get(0), e);
+                return;
+            }
+            failedBatches.increment();
+        }
+
+        // the group didn't make it: every item gets its own transaction, so only the bad one fails
+        for (Item item : batch) {
+            retriedAlone.increment();
+            try {
+                apply(List.of(item));
+            } catch (SQLException e) {
+                failed(item, e);
+            }
+        }
+    }
+
+    // an item that failed alone; if it was its idempotency key, the key's first call already went through
+    private static void failed(Item item, SQLException e) {
+        if (item.idempotencyKey != null && IdempotencyStore.isDuplicate(e)) {
+            item.result.complete(IdempotencyStore.replay(item.accountNumber, item.idempotencyKey, item.request()));
+            return;
+        }
+        e.printStackTrace();
+        item.result.complete(TransactionResult.of(TransactionStatus.FAILED));
+    }
+
+    // One transaction for the whole list; futures are completed only once it is committed.
+    // Throws only for failures before the commit, when nothing of the list can have been applied.
+    private void apply(List<Item> arrived) throws SQLException {
+        // row locks in account order; the sort is stable, so the items of one account keep their order
+        List<Item> batch = new ArrayList<>(arrived);
+        batch.sort(Comparator.comparingInt(item -> item.accountNumber));
+        Set<Integer> accounts = new LinkedHashSet<>();
+        for (Item item : batch) {
+            accounts.add(item.accountNumber);
+        }
+        for (int account : accounts) {
+            balanceCache.beginWrite(account); // cached readers of these accounts must not store what they read now
+        }
+
+        Connection conn = DatabaseConnection.getConnection(batch.get(0).accountNumber); // all on one shard
+        if (conn == null) {
+            throw new SQLException("No database connection");
+        }
+        try {
+            conn.setAutoCommit(false);
+
+            int[] counts;
+            try (PreparedStatement pstmt = conn.prepareStatement(APPLY_SQL)) {
+                for (Item item : batch) {
+                    BigDecimal amount = Money.toBigDecimal(item.amount);
+                    pstmt.setBigDecimal(1, amount);
+                    pstmt.setInt(2, item.accountNumber);
+                    pstmt.setBigDecimal(3, amount);
+                    pstmt.addBatch();
+                }
+                counts = pstmt.executeBatch();
+            }
+
+            List<Item> applied = new ArrayList<>(batch.size());
+            try (PreparedStatement pstmt = conn.prepareStatement(LOG_SQL)) {
+                for (int i = 0; i < batch.size(); i++) {
+                    if (counts[i] == Statement.SUCCESS_NO_INFO) {
+                        throw new SQLException("Driver did not report per-row update counts");
+                    }
+                    if (counts[i] > 0) {
+                        Item item = batch.get(i);
+                        applied.add(item);
+                        pstmt.setInt(1, item.accountNumber);
+                        pstmt.setString(2, item.type);
+                        pstmt.setBigDecimal(3, Money.toBigDecimal(Math.abs(item.amount)));
+                        pstmt.addBatch();
+                    }
+                }
+                if (!applied.isEmpty()) {
+                    pstmt.executeBatch();
+                }
+            }
+
+            // our UPDATEs hold the row locks, so these are the balances that get committed
+            Map<Integer, Long> finalBalances = readBalances(conn, accounts);
+
+            // walking back from the final balance gives every item the balance right after it
+            TransactionResult[] results = new TransactionResult[batch.size()];
+            Map<Integer, Long> running = new HashMap<>(finalBalances);
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                Item item = batch.get(i);
+                Long balance = running.get(item.accountNumber);
+                if (balance == null) {
+                    results[i] = TransactionResult.of(TransactionStatus.ACCOUNT_NOT_FOUND);
+                } else if (counts[i] == 0) {
+                    results[i] = TransactionResult.of(TransactionStatus.INSUFFICIENT_FUNDS);
+                } else {
+                    results[i] = new TransactionResult(TransactionStatus.SUCCESS, balance);
+                    running.put(item.accountNumber, balance - item.amount);
+                }
+            }
+            recordKeys(conn, batch, results);
+            try {
+                conn.commit();
+            } catch (SQLException e) {
+                // maybe committed, maybe not: FAILED would say nothing happened, so the callers get an exception,
+                // and no retry here, that could post twice
+                unknownOutcomes.add(batch.size());
+                for (int account : accounts) {
+                    balanceCache.invalidate(account);
+                }
+                System.out.println(" [!] Group commit of " + batch.size() + " item(s) failed, outcome unknown: " + e.getMessage());
+                BankingException unknown = new BankingException(BankingException.Reason.UNAVAILABLE,
+                        "Group commit failed, outcome unknown", e);
+                for (Item item : batch) {
+                    item.result.completeExceptionally(unknown);
+                }
+                return;
+            }
+
+            for (int account : accounts) {
+                DatabaseConnection.wrote(account);
+                balanceCache.invalidate(account);
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result.complete(results[i]);
+            }
+        } catch (SQLException e) {
+            try {
+                conn.rollback();
+            } catch (SQLException ex) {
+                ex.printStackTrace();
+            }
+            for (int account : accounts) {
+                balanceCache.invalidate(account);
+            }
+            throw e;
+        } finally {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // one batched INSERT of the idempotency keys of the items that went through
+    private static void recordKeys(Connection conn, List<Item> batch, TransactionResult[] results) throws SQLException {
+        PreparedStatement pstmt = null;
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                Item item = batch.get(i);
+                if (item.idempotencyKey == null || !results[i].isSuccess()) {
+                    continue;
+                }
+                if (pstmt == null) {
+                    pstmt = conn.prepareStatement(IdempotencyStore.RECORD_SQL);
+                }
+                pstmt.setInt(1, item.accountNumber);
+                pstmt.setString(2, item.idempotencyKey);
+                pstmt.setString(3, item.request());
+                pstmt.setBigDecimal(4, Money.toBigDecimal(results[i].getNewBalancePaise()));
+                pstmt.addBatch();
+            }
+            if (pstmt != null) {
+                pstmt.executeBatch();
+            }
+        } finally {
+            if (pstmt != null) {
+                pstmt.close();
+            }
+        }
+    }
+
+    private static Map<Integer, Long> readBalances(Connection conn, Set<Integer> accounts) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT account_number, balance FROM users WHERE account_number IN (");
+        for (int i = 0; i < accounts.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(')');
+
+        Map<Integer, Long> balances = new HashMap<>();
+        try (PreparedStatement pstmt = conn.prepareStatement(sql.toString())) {
+            int index = 1;
+            for (int account : accounts) {
+                pstmt.setInt(index++, account);
+            }
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    balances.put(rs.getInt(1), Money.fromBigDecimal(rs.getBigDecimal(2)));
+                }
+            }
+        }
+        return balances;
+    }
+
+    // Stops taking new work, commits what is already queued and waits for the writer to finish
+    @Override
+    public void close() {
+        closing.writeLock().lock(); // waits for submits that are still putting their item in
+        try {
+            closed = true; // the writer notices within one poll, no interrupt in the middle of a JDBC call
+        } finally {
+            closing.writeLock().unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Item left;
+        while ((left = queue.poll()) != null) {
+            left.result.complete(TransactionResult.of(TransactionStatus.FAILED));
+        }
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public long getItems() {
+        return items.sum();
+    }
+
+    public double getAverageBatchSize() {
+        long b = batches.sum();
+        return b == 0 ? 0 : (double) items.sum() / b;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("batches=%d items=%d avgBatch=%.1f failedBatches=%d retriedAlone=%d unknownOutcomes=%d queued=%d",
+                getBatches(), getItems(), getAverageBatchSize(), failedBatches.sum(), retriedAlone.sum(), unknownOutcomes.sum(), queue.size());
+    }
+
+    private static class Item {
+        final int accountNumber;
+        final long amount; // signed paise
+        final String type;
+        final String idempotencyKey; // null for none
+        final CompletableFuture<TransactionResult> result = new CompletableFuture<>();
+
+        Item(int accountNumber, long amount, String type, String idempotencyKey) {
+            this.accountNumber = accountNumber;
+            this.amount = amount;
+            this.type = type;
+            this.idempotencyKey = idempotencyKey;
+        }
+
+        String request() {
+            return IdempotencyStore.request(type, Math.abs(amount), 0);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.List;
+
+// One page of transaction history, newest first, plus where the next page starts
+public class HistoryPage {
+    private final List<TransactionRecord> records;
+    private final Cursor nextCursor;
+
+    public HistoryPage(List<TransactionRecord> records, Cursor nextCursor) {
+        this.records = Collections.unmodifiableList(records);
+        this.nextCursor = nextCursor;
+    }
+
+    //Getters
+    public List<TransactionRecord> getRecords() {
+        return records;
+    }
+    public boolean isEmpty() {
+        return records.isEmpty();
+    }
+    public boolean hasMore() {
+        return nextCursor != null;
+    }
+    // pass this to getTransactionHistory() for the next (older) page, null when there is none
+    public Cursor getNextCursor() {
+        return nextCursor;
+    }
+
+    // Position in the history: (transaction_date, transaction_id) of the last row already seen.
+    // Seeking from here instead of using OFFSET means page 1000 costs the same as page 1.
+    public static class Cursor {
+        private final Timestamp transactionDate;
+        private final long transactionId;
+
+        public Cursor(Timestamp transactionDate, long transactionId) {
+            this.transactionDate = transactionDate;
+            this.transactionId = transactionId;
+        }
+
+        public static Cursor after(TransactionRecord record) {
+            return new Cursor(record.getTransactionDate(), record.getTransactionId());
+        }
+
+        public Timestamp getTransactionDate() {
+            return transactionDate;
+        }
+        public long getTransactionId() {
+            return transactionId;
+        }
+
+        @Override
+        public String toString() {
+            return transactionDate + "/" + transactionId;
+        }
+    }
+}
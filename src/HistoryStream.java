@@ -0,0 +1,67 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Walks over an account's whole history (oldest first) through a server-side cursor.
+// Only fetchSize rows are held in memory at a time, so a full statement of a busy account runs in constant memory.
+// It keeps its connection until close(), so always use it in try-with-resources.
+public class HistoryStream implements Iterator<TransactionRecord>, AutoCloseable {
+    private final Connection conn;
+    private final PreparedStatement pstmt;
+    private final ResultSet rs;
+    private boolean hasNext;
+    private boolean closed = false;
+
+    HistoryStream(Connection conn, PreparedStatement pstmt, ResultSet rs) throws SQLException {
+        this.conn = conn;
+        this.pstmt = pstmt;
+        this.rs = rs;
+        this.hasNext = rs.next();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return hasNext && !closed;
+    }
+
+    @Override
+    public TransactionRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        try {
+            TransactionRecord record = BankingServices.toRecord(rs);
+            hasNext = rs.next();
+            if (!hasNext) {
+                close();
+            }
+            return record;
+        } catch (SQLException e) {
+            close();
+            throw new IllegalStateException("Unable to read transaction history", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            rs.close();
+            pstmt.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
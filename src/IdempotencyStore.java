@@ -0,0 +1,261 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Idempotency keys for deposits, withdrawals and transfers: a client that timed out retries with the same key
+// and gets the first call's result instead of moving the money a second time.
+//
+// Two layers:
+//   - in memory (this object): the recent keys of each account and their results, at most maxEntries for ttlMillis.
+//     A retry of a finished call is answered from here without touching the database; a retry that arrives
+//     while the first call is still running waits for that call instead of starting a second one.
+//   - in MySQL: idempotency_keys, one row per successful call, written in the same transaction as its
+//     transactions rows. It catches what memory can't: another JVM, a restart, an evicted entry.
+//     The primary key (account_number, idem_key) makes the second transaction fail, and its caller gets the
+//     stored result (replay()).
+// Only successes are remembered. A declined or failed call moved no money, so its retry simply runs again.
+// Reusing a key for a different request (another amount, another receiver) gives KEY_REUSED.
+public class IdempotencyStore {
+
+    public static final int MAX_KEY_LENGTH = 64;
+
+    static final String RECORD_SQL =
+            "INSERT INTO idempotency_keys (account_number, idem_key, request, new_balance) VALUES (?, ?, ?, ?)";
+    private static final String LOOKUP_SQL =
+            "SELECT request, new_balance FROM idempotency_keys WHERE account_number = ? AND idem_key = ?";
+    private static final int ER_DUP_ENTRY = 1062;
+
+    private static final IdempotencyStore SHARED = new IdempotencyStore(
+            Long.getLong("bank.idempotency.ttlMillis", 10 * 60 * 1000),
+            Integer.getInteger("bank.idempotency.maxEntries", 100_000));
+
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final LinkedHashMap<String, Entry> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder joined = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static class Entry {
+        final String request;
+        final CompletableFuture<TransactionResult> result = new CompletableFuture<>();
+        volatile long expiresAt = Long.MAX_VALUE; // set when the call finishes
+
+        Entry(String request) {
+            this.request = request;
+        }
+    }
+
+    public IdempotencyStore(long ttlMillis, int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > IdempotencyStore.this.maxEntries) {
+                    evictions.increment(); // even a running one: the database still stops its duplicate
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // the one both storage engines use, so the server, the async front and the app share it
+    public static IdempotencyStore shared() {
+        return SHARED;
+    }
+
+    // What a key stands for; a retry has to send exactly the same
+    public static String request(String operation, long amountPaise, int toAccount) {
+        return toAccount > 0 ? operation + " " + amountPaise + " to " + toAccount : operation + " " + amountPaise;
+    }
+
+    // 1-64 printable ASCII characters
+    public static boolean isValidKey(String key) {
+        if (key == null || key.isEmpty() || key.length() > MAX_KEY_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c < 0x21 || c > 0x7e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Runs the call once per (account, key): repeats get its result, or wait for it while it is still running.
+    // A null key just runs the call.
+    public TransactionResult execute(int accountNumber, String key, String request, Supplier<TransactionResult> call) {
+        if (key == null) {
+            return call.get();
+        }
+        if (!isValidKey(key)) {
+            throw new IllegalArgumentException("Idempotency key must be 1-" + MAX_KEY_LENGTH + " printable ASCII characters");
+        }
+        String id = accountNumber + ":" + key;
+        Entry entry;
+        boolean owner = false;
+        synchronized (this) {
+            entry = entries.get(id);
+            if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+                entries.remove(id);
+                entry = null;
+            }
+            if (entry == null) {
+                entry = new Entry(request);
+                entries.put(id, entry);
+                owner = true;
+            }
+        }
+
+        if (!owner) {
+            if (!entry.request.equals(request)) {
+                return TransactionResult.of(TransactionStatus.KEY_REUSED);
+            }
+            (entry.result.isDone() ? hits : joined).increment();
+            return await(entry);
+        }
+
+        misses.increment();
+        TransactionResult result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            // outcome unknown (e.g. the journal's fsync failed): the ones waiting get the same exception, not FAILED
+            forget(id, entry);
+            entry.result.completeExceptionally(e);
+            throw e;
+        }
+        if (result.isSuccess()) {
+            entry.expiresAt = System.currentTimeMillis() + ttlMillis;
+        } else {
+            forget(id, entry); // nothing happened, the next try runs for real
+        }
+        entry.result.complete(result);
+        return result;
+    }
+
+    private synchronized void forget(String id, Entry entry) {
+        entries.remove(id, entry);
+    }
+
+    // waiting for the first call of this key; an interrupted wait (async cancel or timeout) gives up right away
+    private static TransactionResult await(Entry entry) {
+        try {
+            return entry.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BankingException(BankingException.Reason.CANCELLED, "Waiting for the first call with this key was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // THE DATABASE SIDE
+
+    // Inside the caller's transaction, after the money moved: the row that makes this call happen only once
+    static void record(Connection conn, int accountNumber, String key, String request, long newBalancePaise) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(RECORD_SQL)) {
+            pstmt.setInt(1, accountNumber);
+            pstmt.setString(2, key);
+            pstmt.setString(3, request);
+            pstmt.setBigDecimal(4, Money.toBigDecimal(newBalancePaise));
+            pstmt.executeUpdate();
+        }
+    }
+
+    // true when record() failed because the key is already taken (the caller's transaction is rolled back)
+    static boolean isDuplicate(SQLException e) {
+        for (SQLException current = e; current != null; current = current.getNextException()) {
+            if (current.getErrorCode() == ER_DUP_ENTRY) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The stored result of an earlier call with this key, on its own connection to the account's primary.
+    // FAILED if the row is gone again (the other transaction rolled back after all): the client just retries.
+    static TransactionResult replay(int accountNumber, String key, String request) {
+        try (Connection conn = DatabaseConnection.getConnection(accountNumber)) {
+            if (conn == null) {
+                return TransactionResult.of(TransactionStatus.FAILED);
+            }
+            try (PreparedStatement pstmt = conn.prepareStatement(LOOKUP_SQL)) {
+                pstmt.setInt(1, accountNumber);
+                pstmt.setString(2, key);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (!rs.next()) {
+                        return TransactionResult.of(TransactionStatus.FAILED);
+                    }
+                    if (!rs.getString("request").equals(request)) {
+                        return TransactionResult.of(TransactionStatus.KEY_REUSED);
+                    }
+                    return new TransactionResult(TransactionStatus.SUCCESS, Money.fromBigDecimal(rs.getBigDecimal("new_balance")));
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return TransactionResult.of(TransactionStatus.FAILED);
+        }
+    }
+
+    // Deleting keys older than retentionHours on every shard; past that a retry counts as a new request
+    public static int purge(int retentionHours) throws SQLException {
+        Timestamp cutoff = new Timestamp(System.currentTimeMillis() - retentionHours * 3_600_000L);
+        int removed = 0;
+        for (int shard = 0; shard < DatabaseConnection.shardCount(); shard++) {
+            try (Connection conn = DatabaseConnection.getShardConnection(shard)) {
+                if (conn == null) {
+                    throw new SQLException("No database connection for shard " + shard);
+                }
+                try (PreparedStatement pstmt = conn.prepareStatement(
+                        "DELETE FROM idempotency_keys WHERE created_at < ? LIMIT 10000")) {
+                    pstmt.setTimestamp(1, cutoff);
+                    int deleted;
+                    do {
+                        deleted = pstmt.executeUpdate(); // in slices, so no single statement holds locks for long
+                        removed += deleted;
+                    } while (deleted > 0);
+                }
+            }
+        }
+        return removed;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "idempotency hits=" + hits.sum() + " joined=" + joined.sum() + " misses=" + misses.sum()
+                + " evictions=" + evictions.sum() + " size=" + size();
+    }
+
+    // java IdempotencyStore purge [HOURS]  -> delete stored keys older than HOURS (default bank.idempotency.retentionHours = 24)
+    public static void main(String[] args) throws SQLException {
+        if (args.length == 0 || !args[0].equals("purge") || args.length > 2) {
+            System.out.println("Usage: java IdempotencyStore purge [HOURS]");
+            return;
+        }
+        int hours = args.length == 2 ? Integer.parseInt(args[1]) : Integer.getInteger("bank.idempotency.retentionHours", 24);
+        System.out.println("Deleted " + purge(hours) + " idempotency key(s) older than " + hours + " h");
+        DatabaseConnection.shutdown();
+    }
+}
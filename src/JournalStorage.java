@@ -0,0 +1,698 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+// Storage engine without MySQL: balances live in memory and every money movement is appended to a journal
+// of memory-mapped segment files (journal-00000001.seg, ...). On startup the journal is replayed to get the
+// balances back. Balances and holders are kept in an AccountStore; the holders (name, email, PIN hash) also go
+// to a small sidecar file, accounts.tsv, since the journal only has account numbers.
+//
+// Every record is RECORD_SIZE bytes:
+//   0  long  sequence (also the transaction id)
+//   8  long  time (epoch millis)
+//   16 long  amount in paise
+//   24 int   account number
+//   28 int   other account (transfers), 0 otherwise
+//   32 long  position of the same account's previous record, -1 for its first (history walks these back)
+//   40 byte  type (DEPOSIT, WITHDRAWAL, TRANSFER_OUT, TRANSFER_IN), 0 = nothing written here yet
+//   44 int   CRC32C of bytes 0..43
+// A record's transaction id is its position in the journal + 1, so a history cursor points right at it.
+// A transfer is a TRANSFER_OUT immediately followed by its TRANSFER_IN; a lone TRANSFER_OUT at the end of
+// the journal (crash between the two) is dropped on replay.
+//
+// When an operation returns depends on the fsync policy (-Dbank.journal.fsync=...):
+//   PER_OP    the record is forced to disk before the call returns (one fsync per operation)
+//   PER_BATCH the caller waits until its record is on disk, but one fsync covers everyone waiting (default)
+//   INTERVAL  a background thread forces the journal every fsyncIntervalMillis; a crash can lose that window
+// A failed fsync stops the engine from taking writes: the balances in memory may be ahead of the disk, so from
+// then on every money movement throws BankingException UNAVAILABLE with the I/O error, and the operation
+// that was waiting for that fsync does too (it was applied in memory, whether it is on disk is unknown).
+public class JournalStorage implements BankingStorage, AutoCloseable {
+
+    public enum FsyncPolicy { PER_OP, PER_BATCH, INTERVAL }
+
+    static final int RECORD_SIZE = 48;
+    private static final int TYPE_OFFSET = 40;
+    private static final int CRC_OFFSET = 44;
+
+    static final byte DEPOSIT = 1;
+    static final byte WITHDRAWAL = 2;
+    static final byte TRANSFER_OUT = 3;
+    static final byte TRANSFER_IN = 4;
+    private static final String[] TYPE_NAMES = { null, "DEPOSIT", "WITHDRAWAL", "TRANSFER_OUT", "TRANSFER_IN" };
+
+    private final Path directory;
+    private final FsyncPolicy fsyncPolicy;
+    private int slotsPerSegment; // taken from the existing segments when there are any
+
+    private final AccountStore store = new AccountStore();
+    // newest journal position per account, the start of its history
+    private final AccountStore.LongPages lastRecord = new AccountStore.LongPages(-1);
+    private final FileChannel sidecar;
+    private final LoginThrottle throttle = LoginThrottle.shared();
+
+    // appends (and the balance changes that go with them) happen one at a time under this lock
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>(); // read by the fsync side without the lock
+    private final byte[] scratch = new byte[RECORD_SIZE];
+    private final ByteBuffer scratchBuffer = ByteBuffer.wrap(scratch).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32C crc = new CRC32C();
+    private MappedByteBuffer current;
+    private int nextSlot;
+    private long nextSequence = 1;
+    private volatile long written = 0;   // global slot index after the last appended record
+
+    // everything below this global slot index is on disk
+    private final Object syncMonitor = new Object();
+    private long durable = 0;
+    // the first fsync error; once set the journal takes no more writes
+    private volatile RuntimeException fsyncFailure;
+
+    private final ScheduledExecutorService flusher;
+    private final long replayedRecords;
+    private final long replayNanos;
+
+    public JournalStorage(Path directory) throws IOException {
+        this(directory,
+                FsyncPolicy.valueOf(System.getProperty("bank.journal.fsync", "PER_BATCH")),
+                Integer.getInteger("bank.journal.segmentMegabytes", 64),
+                Long.getLong("bank.journal.fsyncIntervalMillis", 10));
+    }
+
+    public JournalStorage(Path directory, FsyncPolicy fsyncPolicy, int segmentMegabytes, long fsyncIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+        if (segmentMegabytes < 1 || segmentMegabytes > 2047) {
+            throw new IllegalArgumentException("Segment size must be 1..2047 MB (one mapping each)");
+        }
+        this.slotsPerSegment = segmentMegabytes * 1024 * 1024 / RECORD_SIZE;
+        Files.createDirectories(directory);
+
+        loadAccounts();
+        this.sidecar = FileChannel.open(directory.resolve("accounts.tsv"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        long start = System.nanoTime();
+        this.replayedRecords = replay();
+        this.replayNanos = System.nanoTime() - start;
+
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "journal-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(() -> syncUpTo(written), fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    // REGISTRATION
+    public int registerAccount(String fullName, String email, String pin) {
+        if (fullName.trim().isEmpty() || email.trim().isEmpty() || pin.length() < 4) {
+            System.out.println("Invalid credentials!! PIN must be at least 4 digits.");
+            return -1;
+        }
+        return registerHashedAccount(fullName, email, PinHasher.hash(pin));
+    }
+
+    // for seeding many accounts with one precomputed hash (TestAccounts.pinHash())
+    int registerHashedAccount(String fullName, String email, String pinHash) {
+        int accountNumber;
+        synchronized (sidecar) {
+            if (store.findByEmail(email) > 0) {
+                System.out.println("Email already exists! Please use a different email.");
+                return -1;
+            }
+            accountNumber = store.getHighestAccount() + 1;
+            try {
+                // the holder is on disk before anyone can move money into the account
+                writeHolder(accountNumber, fullName, email, pinHash);
+            } catch (IOException e) {
+                System.out.println("Registration failed. Please try again later.");
+                e.printStackTrace();
+                return -1;
+            }
+        }
+        BankingServices.printAccountCreated(fullName, email, accountNumber);
+        return accountNumber;
+    }
+
+    // LOGIN
+    public User login(int accountNumber, String pin) {
+        long retryAfter = throttle.retryAfterMillis(accountNumber);
+        if (retryAfter > 0) {
+            System.out.println("Too many wrong PINs! Try again in " + (retryAfter + 999) / 1000 + " seconds.");
+            return null;
+        }
+        String stored = store.pin(accountNumber);
+        if (!PinHasher.verify(pin, stored)) {
+            throttle.recordFailure(accountNumber);
+            return null;
+        }
+        throttle.recordSuccess(accountNumber);
+        String fullName = store.fullName(accountNumber);
+        String email = store.email(accountNumber);
+        if (PinHasher.needsRehash(stored)) {
+            // a later line for the same account wins when the sidecar is loaded
+            String pinHash = PinHasher.hash(pin);
+            synchronized (sidecar) {
+                if (stored.equals(store.pin(accountNumber))) {
+                    try {
+                        writeHolder(accountNumber, fullName, email, pinHash);
+                    } catch (IOException e) {
+                        e.printStackTrace(); // the old PIN still works, we'll try again at the next login
+                    }
+                }
+            }
+        }
+        return new User(accountNumber, fullName, email, store.balance(accountNumber));
+    }
+
+    // one line in accounts.tsv, forced to disk, then the holder in the store; caller holds the sidecar lock
+    private void writeHolder(int accountNumber, String fullName, String email, String pinHash) throws IOException {
+        String line = accountNumber + "\t" + clean(fullName) + "\t" + clean(email) + "\t" + clean(pinHash) + "\n";
+        ByteBuffer bytes = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            sidecar.write(bytes);
+        }
+        sidecar.force(false);
+        store.put(accountNumber, clean(fullName), clean(email), clean(pinHash));
+    }
+
+    public TransactionResult getBalanceWithResult(int accountNumber) {
+        long balance = store.balance(accountNumber);
+        if (balance == AccountStore.NO_ACCOUNT) {
+            return TransactionResult.of(TransactionStatus.ACCOUNT_NOT_FOUND);
+        }
+        return new TransactionResult(TransactionStatus.SUCCESS, balance);
+    }
+
+    // MONEY MOVEMENTS
+    public TransactionResult depositWithResult(int accountNumber, long paise) {
+        if (paise <= 0) {
+            return TransactionResult.of(TransactionStatus.INVALID_AMOUNT);
+        }
+        if (!store.exists(accountNumber)) {
+            return TransactionResult.of(TransactionStatus.ACCOUNT_NOT_FOUND);
+        }
+
+        long newBalance;
+        long position;
+        appendLock.lock();
+        try {
+            checkWritable();
+            if (!ensureRoom(1)) {
+                return TransactionResult.of(TransactionStatus.FAILED);
+            }
+            position = append(DEPOSIT, accountNumber, 0, paise, System.currentTimeMillis());
+            newBalance = store.deposit(accountNumber, paise);
+            afterAppend(position);
+        } finally {
+            appendLock.unlock();
+        }
+        awaitDurable(position);
+        return new TransactionResult(TransactionStatus.SUCCESS, newBalance);
+    }
+
+    public TransactionResult withdrawWithResult(int accountNumber, long paise) {
+        if (paise <= 0) {
+            return TransactionResult.of(TransactionStatus.INVALID_AMOUNT);
+        }
+        if (!store.exists(accountNumber)) {
+            return TransactionResult.of(TransactionStatus.ACCOUNT_NOT_FOUND);
+        }
+
+        long newBalance;
+        long position;
+        appendLock.lock(); // balances only change under this lock, so the check below still holds at the append
+        try {
+            if (store.balance(accountNumber) < paise) {
+                return TransactionResult.of(TransactionStatus.INSUFFICIENT_FUNDS);
+            }
+            checkWritable();
+            if (!ensureRoom(1)) {
+                return TransactionResult.of(TransactionStatus.FAILED);
+            }
+            position = append(WITHDRAWAL, accountNumber, 0, paise, System.currentTimeMillis());
+            newBalance = store.withdraw(accountNumber, paise);
+            afterAppend(position);
+        } finally {
+            appendLock.unlock();
+        }
+        awaitDurable(position);
+        return new TransactionResult(TransactionStatus.SUCCESS, newBalance);
+    }
+
+    public TransactionResult transferWithResult(int senderAccount, int receiverAccount, long paise) {
+        if (paise <= 0) {
+            return TransactionResult.of(TransactionStatus.INVALID_AMOUNT);
+        }
+        if (senderAccount == receiverAccount) {
+            return TransactionResult.of(TransactionStatus.SAME_ACCOUNT);
+        }
+        if (!store.exists(senderAccount)) {
+            return TransactionResult.of(TransactionStatus.ACCOUNT_NOT_FOUND);
+        }
+        if (!store.exists(receiverAccount)) {
+            return TransactionResult.of(TransactionStatus.RECEIVER_NOT_FOUND);
+        }
+
+        long newBalance;
+        long position;
+        appendLock.lock();
+        try {
+            if (store.balance(senderAccount) < paise) {
+                return TransactionResult.of(TransactionStatus.INSUFFICIENT_FUNDS);
+            }
+            checkWritable();
+            if (!ensureRoom(2)) { // both halves go into the same segment
+                return TransactionResult.of(TransactionStatus.FAILED);
+            }
+            long now = System.currentTimeMillis();
+            append(TRANSFER_OUT, senderAccount, receiverAccount, paise, now);
+            position = append(TRANSFER_IN, receiverAccount, senderAccount, paise, now);
+            newBalance = store.transfer(senderAccount, receiverAccount, paise);
+            afterAppend(position);
+        } finally {
+            appendLock.unlock();
+        }
+        awaitDurable(position);
+        return new TransactionResult(TransactionStatus.SUCCESS, newBalance);
+    }
+
+    // HISTORY, read straight from the mapped segments
+    public HistoryPage getTransactionHistory(int accountNumber, HistoryPage.Cursor after, int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be at least 1");
+        }
+        List<TransactionRecord> records = new ArrayList<>(limit + 1);
+        // the cursor's transaction id is the position of the last record seen, its predecessor comes next
+        long position = lastRecord.getAcquire(accountNumber);
+        if (after != null) {
+            long seen = after.getTransactionId() - 1;
+            position = accountAt(seen) == accountNumber ? previousOf(seen) : -1; // someone else's cursor leads nowhere
+        }
+        while (position >= 0 && records.size() < limit + 1) {
+            records.add(readRecord(position));
+            position = previousOf(position);
+        }
+
+        HistoryPage.Cursor next = null;
+        if (records.size() > limit) {
+            records.remove(limit);
+            next = HistoryPage.Cursor.after(records.get(limit - 1));
+        }
+        return new HistoryPage(records, next);
+    }
+
+    // Forces everything appended so far and stops the interval flusher
+    @Override
+    public void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        syncUpTo(written);
+        sidecar.close();
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    public int getAccountCount() {
+        return store.size();
+    }
+
+    // records applied when the journal was opened, and how long it took
+    public long getReplayedRecords() {
+        return replayedRecords;
+    }
+
+    public long getReplayNanos() {
+        return replayNanos;
+    }
+
+    // APPENDING (caller holds appendLock)
+
+    // Rolls to a new segment if the current one can't take `records` more
+    private boolean ensureRoom(int records) {
+        if (current != null && nextSlot + records <= slotsPerSegment) {
+            return true;
+        }
+        try {
+            if (current != null) {
+                try {
+                    current.force(); // an old segment is always complete on disk, only the last one can have a torn tail
+                } catch (RuntimeException e) {
+                    fsyncFailed(e);
+                    return false; // nothing of this operation is applied yet
+                }
+                synchronized (syncMonitor) {
+                    durable = Math.max(durable, (long) segments.size() * slotsPerSegment);
+                }
+            }
+            current = mapSegment(segments.size() + 1);
+            segments.add(current);
+            nextSlot = 0;
+            written = (long) (segments.size() - 1) * slotsPerSegment;
+            return true;
+        } catch (IOException e) {
+            System.out.println("Journal: could not start a new segment: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Writes one record and returns its global position (segment * slotsPerSegment + slot)
+    private long append(byte type, int accountNumber, int otherAccount, long paise, long timeMillis) {
+        lastRecord.ensure(accountNumber);
+        scratchBuffer.putLong(0, nextSequence++);
+        scratchBuffer.putLong(8, timeMillis);
+        scratchBuffer.putLong(16, paise);
+        scratchBuffer.putInt(24, accountNumber);
+        scratchBuffer.putInt(28, otherAccount);
+        scratchBuffer.putLong(32, lastRecord.getAcquire(accountNumber));
+        scratchBuffer.putInt(TYPE_OFFSET, type); // type plus three zero bytes of padding
+        crc.reset();
+        crc.update(scratch, 0, CRC_OFFSET);
+        scratchBuffer.putInt(CRC_OFFSET, (int) crc.getValue());
+
+        current.put(nextSlot * RECORD_SIZE, scratch, 0, RECORD_SIZE);
+        long position = (long) (segments.size() - 1) * slotsPerSegment + nextSlot;
+        nextSlot++;
+        written = position + 1;
+        lastRecord.setRelease(accountNumber, position); // history readers see the record only once it is written
+        return position;
+    }
+
+    private void afterAppend(long position) {
+        if (fsyncPolicy == FsyncPolicy.PER_OP) {
+            syncUpTo(position + 1);
+        }
+    }
+
+    // Before anything is appended or changed: no more writes once an fsync has failed
+    private void checkWritable() {
+        RuntimeException failure = fsyncFailure;
+        if (failure != null) {
+            throw new BankingException(BankingException.Reason.UNAVAILABLE,
+                    "Journal takes no more writes after a failed fsync: " + failure.getMessage(), failure);
+        }
+    }
+
+    // PER_BATCH callers wait here after letting go of the append lock, so the others can append meanwhile.
+    // The operation is already applied in memory, so a failed fsync can't be reported as FAILED: it throws,
+    // outcome unknown (the record may still reach the disk later).
+    private void awaitDurable(long position) {
+        if (fsyncPolicy == FsyncPolicy.PER_BATCH) {
+            syncUpTo(position + 1);
+        }
+        RuntimeException failure = fsyncFailure;
+        if (failure != null) {
+            throw new BankingException(BankingException.Reason.UNAVAILABLE,
+                    "Journal fsync failed after the operation was applied, its outcome is unknown: " + failure.getMessage(), failure);
+        }
+    }
+
+    private void fsyncFailed(RuntimeException e) {
+        if (fsyncFailure == null) {
+            fsyncFailure = e;
+            System.out.println("Journal: fsync failed, no more writes are accepted: " + e.getMessage());
+        }
+    }
+
+    // Whoever gets the monitor first forces everything written so far; the ones queued behind find their
+    // record already on disk and return without another fsync
+    private boolean syncUpTo(long target) {
+        synchronized (syncMonitor) {
+            if (durable >= target) {
+                return true;
+            }
+            if (fsyncFailure != null) {
+                return false; // what the failed fsync didn't cover may never get to disk
+            }
+            long upTo = written;
+            int segmentIndex = (int) ((upTo - 1) / slotsPerSegment);
+            long segmentStart = (long) segmentIndex * slotsPerSegment;
+            MappedByteBuffer segment = segments.get(segmentIndex);
+            int from = (int) (Math.max(durable, segmentStart) - segmentStart) * RECORD_SIZE;
+            int to = (int) (upTo - segmentStart) * RECORD_SIZE;
+            try {
+                segment.force(from, to - from);
+            } catch (RuntimeException e) { // force() reports I/O errors as UncheckedIOException
+                fsyncFailed(e);
+                return false;
+            }
+            durable = upTo;
+            return true;
+        }
+    }
+
+    private MappedByteBuffer mapSegment(int number) throws IOException {
+        Path file = directory.resolve(String.format("journal-%08d.seg", number));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) slotsPerSegment * RECORD_SIZE);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer; // the mapping stays valid after the channel is closed
+        }
+    }
+
+    // RECOVERY
+
+    // Maps every segment, checks each record and applies it; stops at the first empty or broken slot,
+    // which may only happen in the last segment. Returns the number of records applied.
+    private long replay() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(p -> p.getFileName().toString().matches("journal-\\d{8}\\.seg")).sorted().toList();
+        }
+
+        if (!files.isEmpty()) {
+            long size = Files.size(files.get(0));
+            if (size % RECORD_SIZE != 0) {
+                throw new IOException("Journal segment " + files.get(0) + " has an odd size of " + size + " bytes");
+            }
+            slotsPerSegment = (int) (size / RECORD_SIZE); // the journal keeps the segment size it was started with
+        }
+
+        long applied = 0;
+        long pendingOut = -1; // position of a TRANSFER_OUT still waiting for its TRANSFER_IN
+        int pendingAccount = 0;
+        long pendingPaise = 0;
+        for (int f = 0; f < files.size(); f++) {
+            if (!files.get(f).getFileName().toString().equals(String.format("journal-%08d.seg", f + 1))) {
+                throw new IOException("Journal segment missing before " + files.get(f));
+            }
+            if (Files.size(files.get(f)) != (long) slotsPerSegment * RECORD_SIZE) {
+                throw new IOException("Journal segment " + files.get(f) + " doesn't have the size of the others");
+            }
+            MappedByteBuffer segment = mapSegment(f + 1);
+            segments.add(segment);
+            boolean last = f == files.size() - 1;
+
+            int slot = 0;
+            for (; slot < slotsPerSegment; slot++) {
+                segment.get(slot * RECORD_SIZE, scratch, 0, RECORD_SIZE);
+                byte type = scratch[TYPE_OFFSET];
+                if (type == 0) {
+                    break; // never written
+                }
+                crc.reset();
+                crc.update(scratch, 0, CRC_OFFSET);
+                if ((int) crc.getValue() != scratchBuffer.getInt(CRC_OFFSET)
+                        || scratchBuffer.getLong(0) != nextSequence || type > TRANSFER_IN) {
+                    break; // torn write or leftovers of an older run
+                }
+                if (type == TRANSFER_IN ? pendingOut < 0 : pendingOut >= 0) {
+                    break; // a TRANSFER_OUT must be followed by its TRANSFER_IN and nothing else
+                }
+                long position = (long) f * slotsPerSegment + slot;
+                int accountNumber = scratchBuffer.getInt(24);
+                long paise = scratchBuffer.getLong(16);
+                nextSequence++;
+
+                if (type == TRANSFER_OUT) {
+                    pendingOut = position;
+                    pendingAccount = accountNumber;
+                    pendingPaise = paise;
+                    continue;
+                }
+                if (type == TRANSFER_IN) {
+                    applyRecord(TRANSFER_OUT, pendingAccount, pendingPaise, pendingOut);
+                    pendingOut = -1;
+                    applied++;
+                }
+                applyRecord(type, accountNumber, paise, position);
+                applied++;
+            }
+
+            // a segment is only left behind once it is forced, so anything but an unused last slot is damage
+            if (!last && slot < slotsPerSegment
+                    && (slot < slotsPerSegment - 1 || !isEmptyFrom(segment, slot) || pendingOut >= 0)) {
+                throw new IOException("Journal segment " + files.get(f) + " is damaged at record " + slot);
+            }
+            if (last) {
+                if (pendingOut >= 0) {
+                    // the crash came between the two halves of a transfer: it never happened
+                    slot = (int) (pendingOut % slotsPerSegment);
+                    nextSequence--;
+                }
+                // wipe whatever torn bytes follow, so a later replay can't trip over them
+                byte[] zeros = new byte[RECORD_SIZE];
+                for (int s = slot; s < slotsPerSegment && !isEmptyFrom(segment, s); s++) {
+                    segment.put(s * RECORD_SIZE, zeros, 0, RECORD_SIZE);
+                }
+                segment.force();
+                current = segment;
+                nextSlot = slot;
+                written = (long) f * slotsPerSegment + slot;
+            }
+        }
+        durable = written;
+        return applied;
+    }
+
+    private static boolean isEmptyFrom(MappedByteBuffer segment, int slot) {
+        return segment.get(slot * RECORD_SIZE + TYPE_OFFSET) == 0;
+    }
+
+    private void applyRecord(byte type, int accountNumber, long paise, long position) {
+        if (!store.exists(accountNumber)) {
+            // money for a holder the sidecar doesn't know (it was lost), keep the balance under a placeholder
+            store.put(accountNumber, "Unknown holder", "unknown-" + accountNumber + "@journal", "");
+        }
+        store.adjust(accountNumber, type == DEPOSIT || type == TRANSFER_IN ? paise : -paise);
+        lastRecord.ensure(accountNumber);
+        lastRecord.setRelease(accountNumber, position);
+    }
+
+    private long previousOf(long position) {
+        if (position < 0 || position >= written) {
+            return -1;
+        }
+        return segments.get((int) (position / slotsPerSegment)).getLong((int) (position % slotsPerSegment) * RECORD_SIZE + 32);
+    }
+
+    private int accountAt(long position) {
+        if (position < 0 || position >= written) {
+            return -1;
+        }
+        return segments.get((int) (position / slotsPerSegment)).getInt((int) (position % slotsPerSegment) * RECORD_SIZE + 24);
+    }
+
+    private TransactionRecord readRecord(long position) {
+        MappedByteBuffer segment = segments.get((int) (position / slotsPerSegment));
+        int offset = (int) (position % slotsPerSegment) * RECORD_SIZE;
+        return new TransactionRecord(position + 1, segment.getInt(offset + 24), TYPE_NAMES[segment.get(offset + TYPE_OFFSET)],
+                segment.getLong(offset + 16), new Timestamp(segment.getLong(offset + 8)));
+    }
+
+    private void loadAccounts() throws IOException {
+        Path file = directory.resolve("accounts.tsv");
+        if (!Files.exists(file)) {
+            return;
+        }
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] parts = line.split("\t", -1);
+            if (parts.length != 4) {
+                continue; // a registration cut off by a crash, it never got an account number back
+            }
+            store.put(Integer.parseInt(parts[0]), parts[1], parts[2], parts[3]);
+        }
+    }
+
+    private static String clean(String value) {
+        return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    // Quick check of the engine on this machine, no MySQL needed:
+    //   java JournalStorage --dir /tmp/ledger --fsync PER_BATCH --threads 8 --accounts 1000 --ops 1000000
+    // Runs deposits / withdrawals / transfers, prints their latency, then reopens the journal and times the replay.
+    public static void main(String[] args) throws Exception {
+        Path dir = null;
+        FsyncPolicy policy = FsyncPolicy.PER_BATCH;
+        int threads = 4;
+        int accountCount = 1000;
+        long ops = 200_000;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--dir": dir = Path.of(args[++i]); break;
+                case "--fsync": policy = FsyncPolicy.valueOf(args[++i]); break;
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--accounts": accountCount = Integer.parseInt(args[++i]); break;
+                case "--ops": ops = Long.parseLong(args[++i]); break;
+                default:
+                    System.out.println("Usage: java JournalStorage [--dir DIR] [--fsync PER_OP|PER_BATCH|INTERVAL] [--threads N] [--accounts N] [--ops N]");
+                    return;
+            }
+        }
+        if (dir == null) {
+            dir = Files.createTempDirectory("journal");
+        }
+
+        JournalStorage journal = new JournalStorage(dir, policy, 64, 10);
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // registration banners
+        int[] accounts = new int[accountCount];
+        long tag = System.currentTimeMillis();
+        for (int i = 0; i < accountCount; i++) {
+            accounts[i] = journal.registerHashedAccount("Journal User " + i, "journal" + tag + "-" + i + "@test.local", TestAccounts.pinHash());
+            journal.depositWithResult(accounts[i], Money.ofRupees(10_000));
+        }
+        System.setOut(console);
+
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicLong remaining = new AtomicLong(ops);
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newFixedThreadPool(threads)) {
+            for (int t = 0; t < threads; t++) {
+                executor.submit(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (remaining.getAndDecrement() > 0) {
+                        int account = accounts[random.nextInt(accounts.length)];
+                        long begin = System.nanoTime();
+                        switch (random.nextInt(3)) {
+                            case 0: journal.depositWithResult(account, 100); break;
+                            case 1: journal.withdrawWithResult(account, 100); break;
+                            default: journal.transferWithResult(account, accounts[random.nextInt(accounts.length)], 100);
+                        }
+                        latency.record(System.nanoTime() - begin);
+                    }
+                });
+            }
+        }
+        double elapsed = (System.nanoTime() - start) / 1_000_000_000.0;
+        journal.close();
+        System.out.printf("fsync=%s threads=%d: %.0f ops/s  %s%n", policy, threads, latency.getCount() / elapsed, latency.summary());
+
+        JournalStorage reopened = new JournalStorage(dir, policy, 64, 10);
+        System.out.printf("replay: %d records in %.1f ms (%.2f M records/s), %d accounts%n",
+                reopened.getReplayedRecords(), reopened.getReplayNanos() / 1_000_000.0,
+                reopened.getReplayedRecords() / (reopened.getReplayNanos() / 1000.0), reopened.getAccountCount());
+        reopened.close();
+        System.out.println("journal: " + dir);
+    }
+}
@@ -0,0 +1,252 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Stress tool: N concurrent clients (one virtual thread each) hammer deposits, withdrawals and transfers
+// over M seeded accounts, then we check that no money was created or lost on the way.
+//
+//   java LoadGenerator --clients 200 --accounts 50 --mix deposit=30,withdraw=30,transfer=40 --duration 30
+//
+// Options:
+//   --clients N      concurrent virtual-thread clients (default 100)
+//   --accounts M     seeded accounts (default 100)
+//   --skew S         uniform | zipf | zipf:<exponent> (default uniform)
+//   --mix LIST       operation weights (default deposit=30,withdraw=30,transfer=40)
+//   --duration SEC   run for this many seconds (default 30) ...
+//   --ops COUNT      ... or stop after this many operations in total
+//   --group-commit   deposits and withdrawals go through a GroupCommitter (shared commits)
+//   --keep           leave the seeded accounts in the database
+//
+// At the end:
+//   1. sum(users.balance) == opening balances + successful deposits - successful withdrawals
+//   2. every account's balance == the sum of its transactions log
+public class LoadGenerator {
+
+    private static final long OPENING_BALANCE = Money.ofRupees(10_000);
+    private static final long MAX_AMOUNT = Money.ofRupees(500);
+
+    private enum Op { DEPOSIT, WITHDRAW, TRANSFER }
+
+    // per operation type: latency and outcomes
+    private static class OpStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final Map<TransactionStatus, LongAdder> outcomes = new EnumMap<>(TransactionStatus.class);
+
+        OpStats() {
+            for (TransactionStatus status : TransactionStatus.values()) {
+                outcomes.put(status, new LongAdder());
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = 100;
+        int accountCount = 100;
+        String skew = "uniform";
+        String mix = "deposit=30,withdraw=30,transfer=40";
+        long durationSeconds = 30;
+        long opLimit = -1;
+        boolean keep = false;
+        boolean groupCommit = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--clients": clients = Integer.parseInt(args[++i]); break;
+                case "--accounts": accountCount = Integer.parseInt(args[++i]); break;
+                case "--skew": skew = args[++i]; break;
+                case "--mix": mix = args[++i]; break;
+                case "--duration": durationSeconds = Long.parseLong(args[++i]); break;
+                case "--ops": opLimit = Long.parseLong(args[++i]); break;
+                case "--keep": keep = true; break;
+                case "--group-commit": groupCommit = true; break;
+                default:
+                    System.out.println("Unknown option " + args[i] + ", see the comment at the top of LoadGenerator.java");
+                    return;
+            }
+        }
+
+        // cumulative weights for picking the next operation
+        int[] weights = new int[Op.values().length];
+        for (String part : mix.split(",")) {
+            String[] kv = part.split("=");
+            weights[Op.valueOf(kv[0].trim().toUpperCase()).ordinal()] = Integer.parseInt(kv[1].trim());
+        }
+        int totalWeight = 0;
+        for (int i = 0; i < weights.length; i++) {
+            totalWeight += weights[i];
+            weights[i] = totalWeight;
+        }
+        if (totalWeight <= 0) {
+            System.out.println("The mix needs at least one positive weight");
+            return;
+        }
+
+        String tag = "load" + System.currentTimeMillis();
+        System.out.println("Seeding " + accountCount + " accounts (" + tag + ")...");
+        int[] accounts = TestAccounts.seed(tag, accountCount, OPENING_BALANCE);
+        AccountPicker picker = AccountPicker.of(skew, accounts);
+        GroupCommitter committer = groupCommit ? new GroupCommitter(BalanceCache.shared()) : null;
+        BankingServices service = new BankingServices(BalanceCache.shared(), committer);
+
+        Map<Op, OpStats> stats = new EnumMap<>(Op.class);
+        for (Op op : Op.values()) {
+            stats.put(op, new OpStats());
+        }
+        LongAdder depositedPaise = new LongAdder();
+        LongAdder withdrawnPaise = new LongAdder();
+        LongAdder exceptions = new LongAdder();
+        AtomicLong remaining = new AtomicLong(opLimit < 0 ? Long.MAX_VALUE : opLimit);
+        long deadline = opLimit < 0 ? System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds) : Long.MAX_VALUE;
+        int[] cumulative = weights;
+        int weightSum = totalWeight;
+
+        System.out.printf("clients=%d accounts=%d skew=%s mix=%s %s%s%n", clients, accountCount, skew, mix,
+                opLimit < 0 ? "duration=" + durationSeconds + "s" : "ops=" + opLimit, groupCommit ? " group-commit" : "");
+
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < clients; c++) {
+                executor.submit(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (System.nanoTime() < deadline && remaining.getAndDecrement() > 0) {
+                        int roll = random.nextInt(weightSum);
+                        Op op = roll < cumulative[0] ? Op.DEPOSIT : roll < cumulative[1] ? Op.WITHDRAW : Op.TRANSFER;
+                        long amount = random.nextLong(Money.ofRupees(1), MAX_AMOUNT);
+                        int account = picker.next();
+
+                        long begin = System.nanoTime();
+                        TransactionResult result;
+                        try {
+                            switch (op) {
+                                case DEPOSIT:
+                                    result = service.depositWithResult(account, amount);
+                                    break;
+                                case WITHDRAW:
+                                    result = service.withdrawWithResult(account, amount);
+                                    break;
+                                default:
+                                    result = service.transferWithResult(account, picker.nextOtherThan(account), amount);
+                            }
+                        } catch (RuntimeException e) {
+                            exceptions.increment();
+                            continue;
+                        }
+                        OpStats opStats = stats.get(op);
+                        opStats.latency.record(System.nanoTime() - begin);
+                        opStats.outcomes.get(result.getStatus()).increment();
+
+                        if (result.isSuccess() && op == Op.DEPOSIT) {
+                            depositedPaise.add(amount);
+                        } else if (result.isSuccess() && op == Op.WITHDRAW) {
+                            withdrawnPaise.add(amount);
+                        }
+                    }
+                });
+            }
+        } // close() waits for every client to finish
+        if (committer != null) {
+            committer.close();
+        }
+        double elapsed = (System.nanoTime() - start) / 1_000_000_000.0;
+
+        // REPORT
+        long totalOps = 0;
+        System.out.println("\n──────────── results ────────────");
+        for (Op op : Op.values()) {
+            OpStats opStats = stats.get(op);
+            totalOps += opStats.latency.getCount();
+            StringBuilder outcomes = new StringBuilder();
+            for (Map.Entry<TransactionStatus, LongAdder> entry : opStats.outcomes.entrySet()) {
+                if (entry.getValue().sum() > 0) {
+                    outcomes.append(' ').append(entry.getKey()).append('=').append(entry.getValue().sum());
+                }
+            }
+            System.out.printf("%-9s %9.1f ops/s  %s%n          %s%n", op, opStats.latency.getCount() / elapsed,
+                    opStats.latency.summary(), outcomes.toString().trim());
+        }
+        System.out.printf("TOTAL     %9.1f ops/s  (%d ops in %.1fs, %d exceptions)%n", totalOps / elapsed, totalOps, elapsed, exceptions.sum());
+        System.out.println("Transfers: " + service.getTransferEngine());
+        if (committer != null) {
+            System.out.println("Group commit: " + committer);
+        }
+        System.out.println("Pool: " + DatabaseConnection.getPoolStats());
+        System.out.println("Reads: " + DatabaseConnection.getReadRoutingStats());
+
+        // INVARIANTS
+        boolean ok;
+        try {
+            ok = checkInvariants(tag, accountCount, depositedPaise.sum(), withdrawnPaise.sum());
+        } finally {
+            if (!keep) {
+                TestAccounts.remove(tag);
+            }
+            DatabaseConnection.shutdown();
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean checkInvariants(String tag, int accountCount, long depositedPaise, long withdrawnPaise) throws Exception {
+        String pattern = tag + "-%@test.local";
+        long openingPaise = OPENING_BALANCE * accountCount;
+        long expectedPaise = openingPaise + depositedPaise - withdrawnPaise;
+        boolean ok = true;
+
+        System.out.println("\n──────────── invariants ────────────");
+        // summed over every shard (the one database without sharding)
+        long actualPaise = 0;
+        int mismatches = 0;
+        for (int shard = 0; shard < DatabaseConnection.shardCount(); shard++) {
+            try (Connection conn = DatabaseConnection.getShardConnection(shard)) {
+                try (PreparedStatement pstmt = conn.prepareStatement(
+                        "SELECT COALESCE(SUM(balance), 0) FROM users WHERE email LIKE ?")) {
+                    pstmt.setString(1, pattern);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        rs.next();
+                        actualPaise += Money.fromBigDecimal(rs.getBigDecimal(1));
+                    }
+                }
+
+                try (PreparedStatement pstmt = conn.prepareStatement(
+                        "SELECT u.account_number, u.balance, "
+                                + "COALESCE(SUM(CASE WHEN t.transaction_type IN ('DEPOSIT', 'TRANSFER_IN') THEN t.amount ELSE -t.amount END), 0) AS ledger "
+                                + "FROM users u LEFT JOIN transactions t ON t.account_number = u.account_number "
+                                + "WHERE u.email LIKE ? GROUP BY u.account_number, u.balance HAVING u.balance <> ledger")) {
+                    pstmt.setString(1, pattern);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            mismatches++;
+                            if (mismatches <= 10) {
+                                System.out.printf("[FAIL] account %d balance %s but log says %s%n",
+                                        rs.getInt(1), rs.getBigDecimal(2), rs.getBigDecimal(3));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        if (actualPaise == expectedPaise) {
+            System.out.printf("[OK]   total balance %s == opening %s + deposits %s - withdrawals %s%n",
+                    Money.format(actualPaise), Money.format(openingPaise), Money.format(depositedPaise), Money.format(withdrawnPaise));
+        } else {
+            ok = false;
+            System.out.printf("[FAIL] total balance %s, expected %s (off by %s)%n",
+                    Money.format(actualPaise), Money.format(expectedPaise), Money.format(actualPaise - expectedPaise));
+        }
+        if (mismatches == 0) {
+            System.out.println("[OK]   every account balance matches its transactions log");
+        } else {
+            ok = false;
+            System.out.println("[FAIL] " + mismatches + " account(s) don't match their transactions log");
+        }
+        return ok;
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Failed-login counter per account, kept in memory so guessing PINs is cut off before it costs a hash or a query.
+// After maxFailures wrong PINs in a row the account is locked for lockoutMillis; every further lock doubles that
+// (up to an hour). A correct PIN clears the account's record.
+// Only accounts with recent failures are tracked; past maxEntries the ones that have cooled down are dropped.
+public class LoginThrottle {
+
+    private static final long MAX_LOCKOUT_MILLIS = 60 * 60 * 1000;
+
+    private static final LoginThrottle SHARED = new LoginThrottle(
+            Integer.getInteger("bank.login.maxFailures", 5),
+            Long.getLong("bank.login.lockoutMillis", 30_000),
+            Integer.getInteger("bank.login.maxEntries", 100_000));
+
+    private final int maxFailures;
+    private final long lockoutMillis;
+    private final int maxEntries;
+    private final Map<Integer, Entry> entries = new ConcurrentHashMap<>();
+
+    private static class Entry {
+        int failures;
+        int lockouts;
+        long lockedUntil;
+        long lastFailure;
+    }
+
+    public LoginThrottle(int maxFailures, long lockoutMillis, int maxEntries) {
+        this.maxFailures = maxFailures;
+        this.lockoutMillis = lockoutMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    // the one both storage engines use, so the console, the server and the async paths share the count
+    public static LoginThrottle shared() {
+        return SHARED;
+    }
+
+    // How long this account still has to wait before trying again, 0 if it may log in now
+    public long retryAfterMillis(int accountNumber) {
+        Entry entry = entries.get(accountNumber);
+        if (entry == null) {
+            return 0;
+        }
+        synchronized (entry) {
+            return Math.max(0, entry.lockedUntil - System.currentTimeMillis());
+        }
+    }
+
+    public void recordFailure(int accountNumber) {
+        if (entries.size() >= maxEntries) {
+            purge(MAX_LOCKOUT_MILLIS);
+            if (entries.size() >= maxEntries) {
+                purge(0); // still full: keep only the accounts that are locked right now
+            }
+        }
+        Entry entry = entries.computeIfAbsent(accountNumber, k -> new Entry());
+        synchronized (entry) {
+            long now = System.currentTimeMillis();
+            entry.lastFailure = now;
+            if (++entry.failures >= maxFailures) {
+                entry.failures = 0;
+                long lockout = Math.min(MAX_LOCKOUT_MILLIS, lockoutMillis << Math.min(entry.lockouts, 20));
+                entry.lockouts++;
+                entry.lockedUntil = now + lockout;
+            }
+        }
+    }
+
+    public void recordSuccess(int accountNumber) {
+        entries.remove(accountNumber);
+    }
+
+    // forgetting accounts that aren't locked and haven't failed for idleMillis
+    private void purge(long idleMillis) {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            synchronized (entry) {
+                if (entry.lockedUntil <= now && now - entry.lastFailure >= idleMillis) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,105 @@
+import java.math.BigDecimal;
+
+// Money is a long number of paise (1/100 rupee) everywhere in the app; this class holds the conversions.
+// BigDecimal only shows up where JDBC binds or reads a DECIMAL(15,2) column.
+// format() and parse() work on StringBuilder / CharSequence without creating any objects of their own,
+// so printing or reading an amount doesn't leave garbage behind.
+public final class Money {
+
+    // parse() result for anything that isn't an amount
+    public static final long INVALID = Long.MIN_VALUE;
+    // DECIMAL(15,2) holds up to 9,999,999,999,999.99
+    public static final long MAX_PAISE = 999_999_999_999_999L;
+
+    private Money() {
+    }
+
+    public static long ofRupees(long rupees) {
+        return rupees * 100;
+    }
+
+    // JDBC BOUNDARY
+
+    public static BigDecimal toBigDecimal(long paise) {
+        return BigDecimal.valueOf(paise, 2);
+    }
+
+    public static long fromBigDecimal(BigDecimal amount) {
+        return amount == null ? 0 : amount.movePointRight(2).longValueExact();
+    }
+
+    // FORMATTING
+
+    // Appends "1234.50" (no currency sign, always two decimals)
+    public static StringBuilder format(long paise, StringBuilder out) {
+        if (paise < 0) {
+            out.append('-');
+            paise = -paise;
+        }
+        long fraction = paise % 100;
+        out.append(paise / 100).append('.');
+        if (fraction < 10) {
+            out.append('0');
+        }
+        return out.append(fraction);
+    }
+
+    // Convenience for places that need a String anyway (messages, JSON)
+    public static String format(long paise) {
+        return format(paise, new StringBuilder(24)).toString();
+    }
+
+    // PARSING
+
+    // "250", "250.5", "₹1,250.75" -> paise; INVALID for anything else (more than two decimals, signs,
+    // letters, empty, above MAX_PAISE). No exceptions, so bad input costs nothing either.
+    public static long parse(CharSequence text) {
+        int i = 0;
+        int end = text.length();
+        while (i < end && text.charAt(i) == ' ') {
+            i++;
+        }
+        while (end > i && text.charAt(end - 1) == ' ') {
+            end--;
+        }
+        if (i < end && text.charAt(i) == '₹') {
+            i++;
+        }
+        long rupees = 0;
+        int digits = 0;
+        for (; i < end && text.charAt(i) != '.'; i++) {
+            char c = text.charAt(i);
+            if (c == ',' && digits > 0) {
+                continue; // grouping commas are fine
+            }
+            if (c < '0' || c > '9') {
+                return INVALID;
+            }
+            rupees = rupees * 10 + (c - '0');
+            digits++;
+            if (rupees > MAX_PAISE / 100) {
+                return INVALID;
+            }
+        }
+        long fraction = 0;
+        int decimals = 0;
+        if (i < end) {
+            i++; // the '.'
+            for (; i < end; i++) {
+                char c = text.charAt(i);
+                if (c < '0' || c > '9' || decimals == 2) {
+                    return INVALID;
+                }
+                fraction = fraction * 10 + (c - '0');
+                decimals++;
+            }
+        }
+        if (digits == 0 && decimals == 0) {
+            return INVALID;
+        }
+        if (decimals == 1) {
+            fraction *= 10;
+        }
+        return rupees * 100 + fraction;
+    }
+}
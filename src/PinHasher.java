@@ -0,0 +1,151 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+// Salted, slow PIN hashes: PBKDF2-HMAC-SHA256, stored in security_pin as
+//   pbkdf2$<iterations>$<salt, Base64>$<hash, Base64>
+// The cost is -Dbank.pin.iterations (default 210000). Raising it later is fine: older hashes still verify
+// and needsRehash() tells login to store a new one.
+// Anything without the prefix is a PIN from before hashing; it still verifies (in constant time) and gets
+// upgraded the first time its owner logs in.
+//
+// hash() and verify() run on a small bounded pool (-Dbank.pin.threads, default one per core, with a queue of
+// -Dbank.pin.queue) so a burst of logins queues up there instead of taking every core away from the requests
+// already in flight. When the queue is full the login is rejected straight away (BankingException REJECTED).
+public final class PinHasher {
+
+    static final String PREFIX = "pbkdf2$";
+    public static final int ITERATIONS = Integer.getInteger("bank.pin.iterations", 210_000);
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadPoolExecutor POOL;
+
+    static {
+        int threads = Integer.getInteger("bank.pin.threads", Runtime.getRuntime().availableProcessors());
+        AtomicInteger n = new AtomicInteger();
+        POOL = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Integer.getInteger("bank.pin.queue", 256)), r -> {
+            Thread t = new Thread(r, "pin-hasher-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private PinHasher() {
+    }
+
+    // A new salted hash of this PIN, ready for security_pin
+    public static String hash(String pin) {
+        return onPool(() -> hashNow(pin));
+    }
+
+    // Whether the PIN matches what is stored (a hash, or a plaintext PIN not upgraded yet)
+    public static boolean verify(String pin, String stored) {
+        if (stored == null || stored.isEmpty()) {
+            return false; // an empty PIN means nobody can log in
+        }
+        if (!stored.startsWith(PREFIX)) {
+            return MessageDigest.isEqual(pin.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+        }
+        return onPool(() -> verifyNow(pin, stored));
+    }
+
+    // true for plaintext PINs and for hashes made with fewer iterations than we use now
+    public static boolean needsRehash(String stored) {
+        if (stored == null || !stored.startsWith(PREFIX)) {
+            return true;
+        }
+        String[] parts = stored.split("\\$");
+        try {
+            return parts.length != 4 || Integer.parseInt(parts[1]) < ITERATIONS;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    // The same work on the calling thread, for batch jobs that bring their own threads (BulkImporter)
+    static String hashNow(String pin) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + ITERATIONS + '$' + base64.encodeToString(salt) + '$'
+                + base64.encodeToString(pbkdf2(pin, salt, ITERATIONS));
+    }
+
+    static boolean verifyNow(String pin, String stored) {
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4) {
+            return false;
+        }
+        try {
+            int iterations = Integer.parseInt(parts[1]);
+            byte[] salt = Base64.getDecoder().decode(parts[2]);
+            byte[] expected = Base64.getDecoder().decode(parts[3]);
+            return MessageDigest.isEqual(pbkdf2(pin, salt, iterations), expected);
+        } catch (IllegalArgumentException e) {
+            return false; // a mangled hash matches nothing
+        }
+    }
+
+    private static byte[] pbkdf2(String pin, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(pin.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2WithHmacSHA256 is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    // Running the hash on the pool and waiting for it; the caller (often a virtual thread) just parks meanwhile
+    private static <T> T onPool(Callable<T> work) {
+        Future<T> future;
+        try {
+            future = POOL.submit(work);
+        } catch (RejectedExecutionException e) {
+            throw new BankingException(BankingException.Reason.REJECTED, "Too many PIN checks in progress, try again", e);
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new BankingException(BankingException.Reason.CANCELLED, "PIN check interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // java PinHasher [PIN]  -> prints a hash and how long one takes here (to pick bank.pin.iterations)
+    public static void main(String[] args) {
+        String pin = args.length > 0 ? args[0] : "1234";
+        hashNow(pin); // warm-up
+        long start = System.nanoTime();
+        String hash = hash(pin);
+        long hashNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        boolean ok = verify(pin, hash);
+        long verifyNanos = System.nanoTime() - start;
+        System.out.println(hash);
+        System.out.printf("iterations=%d hash=%.1f ms verify=%.1f ms (%s)%n",
+                ITERATIONS, hashNanos / 1e6, verifyNanos / 1e6, ok ? "matches" : "MISMATCH");
+    }
+}
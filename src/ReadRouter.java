@@ -0,0 +1,193 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Picks where a read-only query goes: one of the replicas (round robin) or the primary.
+// Used by DatabaseConnection.getReadConnection(); writes and transactions always use getConnection().
+//
+// A replica gets reads only while its last health check passed: it answered SHOW REPLICA STATUS, replication
+// is running, and it is at most maxLagSeconds behind. Checks run every healthCheckMillis;
+// a replica that fails a borrow is taken out right away and comes back when a check passes again.
+// With no replica fit for reads everything goes to the primary.
+//
+// Read-your-writes: after this JVM commits a write for an account (wrote()), reads of that account go to
+// the primary for stickyMillis, long enough for a replica within the lag tolerance to have caught up.
+public class ReadRouter {
+
+    private static final int CHECK_TIMEOUT_SECONDS = 2;
+
+    public static class Replica {
+        final String endpoint;
+        final ConnectionPool pool;
+        volatile boolean healthy = false; // until the first check says otherwise
+        volatile long lagSeconds = -1;
+        final LongAdder reads = new LongAdder();
+
+        Replica(String endpoint, ConnectionPool pool) {
+            this.endpoint = endpoint;
+            this.pool = pool;
+        }
+    }
+
+    private final List<Replica> replicas;
+    private final long maxLagSeconds;
+    private final long stickyMillis;
+    private final Map<Integer, Long> stickyUntil = new ConcurrentHashMap<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final ScheduledExecutorService checker;
+
+    private final LongAdder primaryReads = new LongAdder();
+    private final LongAdder stickyReads = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+
+    public ReadRouter(List<Replica> replicas, long maxLagSeconds, long healthCheckMillis, long stickyMillis) {
+        this.replicas = new ArrayList<>(replicas);
+        this.maxLagSeconds = maxLagSeconds;
+        this.stickyMillis = stickyMillis;
+        if (replicas.isEmpty()) {
+            checker = null;
+            return;
+        }
+        checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replica-health-check");
+            t.setDaemon(true);
+            return t;
+        });
+        checker.scheduleWithFixedDelay(this::checkAll, 0, healthCheckMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean hasReplicas() {
+        return !replicas.isEmpty();
+    }
+
+    // A replica fit to read this account from, or null for the primary (accountNumber 0: no account to stick to)
+    public Replica pick(int accountNumber) {
+        if (replicas.isEmpty()) {
+            return null;
+        }
+        if (accountNumber > 0) {
+            Long until = stickyUntil.get(accountNumber);
+            if (until != null && until > System.currentTimeMillis()) {
+                stickyReads.increment();
+                return null;
+            }
+        }
+        int start = Math.floorMod(next.getAndIncrement(), replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get((start + i) % replicas.size());
+            if (replica.healthy) {
+                replica.reads.increment();
+                return replica;
+            }
+        }
+        fallbacks.increment();
+        return null;
+    }
+
+    // Borrowing from the replica failed: no more reads for it until a health check passes
+    public void failed(Replica replica, SQLException e) {
+        if (replica.healthy) {
+            replica.healthy = false;
+            System.out.println(" [!] Replica " + replica.endpoint + " is down, reading from the primary: " + e.getMessage());
+        }
+        fallbacks.increment();
+    }
+
+    public void countPrimaryRead() {
+        primaryReads.increment();
+    }
+
+    // Called after a write for this account has committed on the primary
+    public void wrote(int accountNumber) {
+        if (!replicas.isEmpty()) {
+            stickyUntil.put(accountNumber, System.currentTimeMillis() + stickyMillis);
+        }
+    }
+
+    // HEALTH CHECKS
+
+    private void checkAll() {
+        for (Replica replica : replicas) {
+            check(replica);
+        }
+        long now = System.currentTimeMillis();
+        stickyUntil.values().removeIf(until -> until <= now); // accounts whose window has passed
+    }
+
+    private void check(Replica replica) {
+        String problem;
+        try (Connection conn = replica.pool.borrow()) {
+            long lag = replicationLag(conn);
+            replica.lagSeconds = lag;
+            problem = lag < 0 ? "replication is not running"
+                    : lag > maxLagSeconds ? lag + "s behind (tolerance " + maxLagSeconds + "s)"
+                    : null;
+        } catch (SQLException e) {
+            replica.lagSeconds = -1;
+            problem = e.getMessage();
+        }
+        boolean healthy = problem == null;
+        if (healthy != replica.healthy) {
+            System.out.println(healthy
+                    ? " [i] Replica " + replica.endpoint + " is taking reads (lag " + replica.lagSeconds + "s)"
+                    : " [!] Replica " + replica.endpoint + " gets no reads: " + problem);
+        }
+        replica.healthy = healthy;
+    }
+
+    // Seconds behind the source, -1 if this server isn't replicating (not set up, or a thread stopped)
+    private static long replicationLag(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.setQueryTimeout(CHECK_TIMEOUT_SECONDS);
+            ResultSet rs;
+            String lagColumn = "Seconds_Behind_Source";
+            try {
+                rs = st.executeQuery("SHOW REPLICA STATUS");
+            } catch (SQLException e) {
+                rs = st.executeQuery("SHOW SLAVE STATUS"); // MySQL before 8.0.22
+                lagColumn = "Seconds_Behind_Master";
+            }
+            try (ResultSet status = rs) {
+                if (!status.next()) {
+                    return -1;
+                }
+                long lag = status.getLong(lagColumn);
+                return status.wasNull() ? -1 : lag; // NULL while the SQL or IO thread is stopped
+            }
+        }
+    }
+
+    public void shutdown() {
+        if (checker != null) {
+            checker.shutdownNow();
+        }
+        for (Replica replica : replicas) {
+            replica.pool.shutdown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("primary reads=").append(primaryReads.sum())
+                .append(" (sticky=").append(stickyReads.sum())
+                .append(", fallback=").append(fallbacks.sum()).append(')');
+        for (Replica replica : replicas) {
+            sb.append(", ").append(replica.endpoint)
+                    .append(replica.healthy ? " up" : " down")
+                    .append(" lag=").append(replica.lagSeconds < 0 ? "?" : replica.lagSeconds + "s")
+                    .append(" reads=").append(replica.reads.sum());
+        }
+        return sb.toString();
+    }
+}
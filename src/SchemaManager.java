@@ -0,0 +1,383 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+// Creates and upgrades the tables at startup, so nobody has to paste SQL out of the README any more.
+// Every step has a version number; the ones already applied are recorded in schema_version and skipped.
+//
+// Also the tooling for the monthly partitions of transactions:
+//   java SchemaManager migrate          -> apply pending versions (what BankingApp does at startup)
+//   java SchemaManager roll 3           -> make sure partitions exist up to 3 months ahead
+//   java SchemaManager drop 84          -> drop partitions that are entirely older than 84 months
+public class SchemaManager {
+
+    private static final String LOCK_NAME = "bank_system_schema";
+    private static final int LOCK_TIMEOUT_SECONDS = 30;
+    private static final int PARTITIONS_AHEAD = Integer.getInteger("bank.schema.partitionsAhead", 3);
+    private static final DateTimeFormatter PARTITION_NAME = DateTimeFormatter.ofPattern("'p'yyyyMM");
+
+    private interface Step {
+        void apply(Connection conn) throws SQLException;
+    }
+
+    private static class Migration {
+        final int version;
+        final String description;
+        final Step step;
+
+        Migration(int version, String description, Step step) {
+            this.version = version;
+            this.description = description;
+            this.step = step;
+        }
+    }
+
+    // The migrations, in order. Never change one that has shipped, add a new version instead.
+    private static final List<Migration> MIGRATIONS = List.of(
+            new Migration(1, "users and transactions tables", SchemaManager::createTables),
+            new Migration(2, "indexes for history and account lookups", SchemaManager::createIndexes),
+            new Migration(3, "compact ENUM transaction_type, NOT NULL columns", SchemaManager::compactColumns),
+            new Migration(4, "monthly RANGE partitions on transactions.transaction_date", SchemaManager::partitionTransactions),
+            new Migration(5, "daily_balances snapshots and their job checkpoint", SchemaManager::createDailyBalances),
+            new Migration(6, "security_pin wide enough for PBKDF2 hashes", SchemaManager::widenSecurityPin),
+            new Migration(7, "xa_decisions log for cross-shard transfers", SchemaManager::createXaDecisions),
+            new Migration(8, "idempotency_keys for retried money movements", SchemaManager::createIdempotencyKeys),
+            new Migration(9, "case-sensitive idempotency keys", SchemaManager::binaryIdempotencyKeys)
+    );
+
+    // Applies all pending migrations and rolls the partitions forward, on every shard (just the one database
+    // without sharding). Returns the schema version we end up on.
+    public static int migrate() throws SQLException {
+        int version = 0;
+        for (int shard = 0; shard < DatabaseConnection.shardCount(); shard++) {
+            if (DatabaseConnection.isSharded()) {
+                System.out.println("Schema: shard " + shard + " (" + DatabaseConnection.shardName(shard) + ")");
+            }
+            version = migrate(shard);
+        }
+        return version;
+    }
+
+    private static int migrate(int shard) throws SQLException {
+        try (Connection conn = DatabaseConnection.getShardConnection(shard)) {
+            if (conn == null) {
+                throw new SQLException("No database connection available");
+            }
+            // one instance migrates at a time, the others wait and then find nothing left to do
+            if (!acquireLock(conn)) {
+                throw new SQLException("Timed out waiting for the schema lock");
+            }
+            try {
+                execute(conn, "CREATE TABLE IF NOT EXISTS schema_version ("
+                        + "version INT PRIMARY KEY, "
+                        + "description VARCHAR(200) NOT NULL, "
+                        + "applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+
+                int current = currentVersion(conn);
+                for (Migration migration : MIGRATIONS) {
+                    if (migration.version <= current) {
+                        continue;
+                    }
+                    System.out.println("Schema: applying v" + migration.version + " (" + migration.description + ")");
+                    migration.step.apply(conn);
+                    try (PreparedStatement pstmt = conn.prepareStatement(
+                            "INSERT INTO schema_version (version, description) VALUES (?, ?)")) {
+                        pstmt.setInt(1, migration.version);
+                        pstmt.setString(2, migration.description);
+                        pstmt.executeUpdate();
+                    }
+                    current = migration.version;
+                }
+
+                if (isPartitioned(conn)) {
+                    rollPartitionsForward(conn, PARTITIONS_AHEAD);
+                }
+                return current;
+            } finally {
+                releaseLock(conn);
+            }
+        }
+    }
+
+    public static int latestVersion() {
+        return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+    }
+
+    // v1: same tables as the README used to create by hand, so an existing database goes through untouched
+    private static void createTables(Connection conn) throws SQLException {
+        execute(conn, "CREATE TABLE IF NOT EXISTS users ("
+                + "account_number INT PRIMARY KEY AUTO_INCREMENT, "
+                + "full_name VARCHAR(100) NOT NULL, "
+                + "email VARCHAR(100) UNIQUE NOT NULL, "
+                + "balance DECIMAL(15,2) DEFAULT 0.00, "
+                + "security_pin VARCHAR(10) NOT NULL, "
+                + "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+        execute(conn, "CREATE TABLE IF NOT EXISTS transactions ("
+                + "transaction_id INT PRIMARY KEY AUTO_INCREMENT, "
+                + "account_number INT, "
+                + "transaction_type VARCHAR(20), "
+                + "amount DECIMAL(15,2), "
+                + "transaction_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP, "
+                + "FOREIGN KEY (account_number) REFERENCES users(account_number))");
+    }
+
+    // v2: history pages and statements read (account_number, transaction_date) ranges
+    private static void createIndexes(Connection conn) throws SQLException {
+        if (!indexExists(conn, "transactions", "idx_transactions_account_date")) {
+            execute(conn, "CREATE INDEX idx_transactions_account_date ON transactions (account_number, transaction_date)");
+        }
+    }
+
+    // v3: transaction_type becomes a 1-byte ENUM (the code keeps binding the same strings)
+    private static void compactColumns(Connection conn) throws SQLException {
+        execute(conn, "UPDATE users SET balance = 0.00 WHERE balance IS NULL");
+        execute(conn, "ALTER TABLE users MODIFY balance DECIMAL(15,2) NOT NULL DEFAULT 0.00");
+        execute(conn, "ALTER TABLE transactions "
+                + "MODIFY account_number INT NOT NULL, "
+                + "MODIFY transaction_type ENUM('DEPOSIT', 'WITHDRAWAL', 'TRANSFER_OUT', 'TRANSFER_IN') NOT NULL, "
+                + "MODIFY amount DECIMAL(15,2) NOT NULL, "
+                + "MODIFY transaction_date TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP");
+    }
+
+    // v4: one partition per month, so old months can be dropped instantly and date ranges only touch their months.
+    // MySQL wants the partition column in every unique key and does not allow foreign keys on partitioned
+    // tables, so the primary key becomes (transaction_id, transaction_date) and the FK goes away
+    // (every write path already checks the account exists under a row lock).
+    private static void partitionTransactions(Connection conn) throws SQLException {
+        for (String foreignKey : foreignKeys(conn, "transactions")) {
+            execute(conn, "ALTER TABLE transactions DROP FOREIGN KEY " + foreignKey);
+        }
+        execute(conn, "ALTER TABLE transactions DROP PRIMARY KEY, ADD PRIMARY KEY (transaction_id, transaction_date)");
+
+        YearMonth first = YearMonth.now();
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT MIN(transaction_date) FROM transactions")) {
+            if (rs.next() && rs.getTimestamp(1) != null) {
+                first = YearMonth.from(rs.getTimestamp(1).toLocalDateTime());
+            }
+        }
+        YearMonth last = YearMonth.now().plusMonths(PARTITIONS_AHEAD);
+
+        StringBuilder ddl = new StringBuilder("ALTER TABLE transactions PARTITION BY RANGE (UNIX_TIMESTAMP(transaction_date)) (");
+        for (YearMonth month = first; !month.isAfter(last); month = month.plusMonths(1)) {
+            ddl.append(partitionDefinition(month)).append(", ");
+        }
+        ddl.append("PARTITION pmax VALUES LESS THAN MAXVALUE)");
+        execute(conn, ddl.toString());
+    }
+
+    // v5: one closing balance per account and active day, kept up to date by DailyBalanceJob.
+    // The checkpoint is the last transaction_id the job has folded in and the date of that row.
+    private static void createDailyBalances(Connection conn) throws SQLException {
+        execute(conn, "CREATE TABLE IF NOT EXISTS daily_balances ("
+                + "account_number INT NOT NULL, "
+                + "balance_date DATE NOT NULL, "
+                + "closing_balance DECIMAL(15,2) NOT NULL, "
+                + "last_transaction_id INT NOT NULL, "
+                + "PRIMARY KEY (account_number, balance_date))");
+        execute(conn, "CREATE TABLE IF NOT EXISTS daily_balance_checkpoint ("
+                + "id TINYINT PRIMARY KEY, "
+                + "last_transaction_id INT NOT NULL, "
+                + "folded_until TIMESTAMP NULL, "
+                + "updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP)");
+        execute(conn, "INSERT IGNORE INTO daily_balance_checkpoint (id, last_transaction_id) VALUES (1, 0)");
+    }
+
+    // Existing plaintext PINs stay as they are and are replaced by a hash at their owner's next login (PinHasher)
+    private static void widenSecurityPin(Connection conn) throws SQLException {
+        execute(conn, "ALTER TABLE users MODIFY security_pin VARCHAR(128) NOT NULL");
+    }
+
+    // v7: one row per cross-shard transfer between its XA PREPARE and its XA COMMIT (see CrossShardTransfer).
+    // Only shard 0's copy is used, the table is created everywhere to keep the shards alike.
+    private static void createXaDecisions(Connection conn) throws SQLException {
+        execute(conn, "CREATE TABLE IF NOT EXISTS xa_decisions ("
+                + "gtrid VARCHAR(64) PRIMARY KEY, "
+                + "decided_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+    }
+
+    // v8: one row per deposit, withdrawal or transfer sent with an idempotency key, written in its transaction
+    // (see IdempotencyStore). created_at is what `java IdempotencyStore purge` deletes by.
+    private static void createIdempotencyKeys(Connection conn) throws SQLException {
+        execute(conn, "CREATE TABLE IF NOT EXISTS idempotency_keys ("
+                + "account_number INT NOT NULL, "
+                + "idem_key VARCHAR(64) NOT NULL, "
+                + "request VARCHAR(80) NOT NULL, "
+                + "new_balance DECIMAL(15,2) NOT NULL, "
+                + "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, "
+                + "PRIMARY KEY (account_number, idem_key), "
+                + "INDEX idx_idempotency_created (created_at))");
+    }
+
+    // v9: keys are compared byte for byte in IdempotencyStore, so "abcXYZ" and "ABCxyz" must be two rows here too.
+    // With the default case-insensitive collation the second one hit the first one's primary key and was
+    // answered with the first one's result.
+    private static void binaryIdempotencyKeys(Connection conn) throws SQLException {
+        execute(conn, "ALTER TABLE idempotency_keys MODIFY idem_key VARCHAR(64) CHARACTER SET ascii COLLATE ascii_bin NOT NULL");
+    }
+
+    // PARTITION MAINTENANCE
+
+    // Splitting new months off the (empty) pmax partition until monthsAhead months from now exist
+    public static int rollPartitionsForward(Connection conn, int monthsAhead) throws SQLException {
+        TreeSet<YearMonth> existing = existingPartitionMonths(conn);
+        if (existing.isEmpty()) {
+            return 0;
+        }
+        YearMonth last = YearMonth.now().plusMonths(monthsAhead);
+        List<String> definitions = new ArrayList<>();
+        for (YearMonth month = existing.last().plusMonths(1); !month.isAfter(last); month = month.plusMonths(1)) {
+            definitions.add(partitionDefinition(month));
+        }
+        if (definitions.isEmpty()) {
+            return 0;
+        }
+        execute(conn, "ALTER TABLE transactions REORGANIZE PARTITION pmax INTO ("
+                + String.join(", ", definitions) + ", PARTITION pmax VALUES LESS THAN MAXVALUE)");
+        System.out.println("Schema: added " + definitions.size() + " transaction partition(s) up to " + last);
+        return definitions.size();
+    }
+
+    // Dropping every month that ended more than retentionMonths ago. This deletes those transactions for good.
+    public static int dropExpiredPartitions(Connection conn, int retentionMonths) throws SQLException {
+        if (retentionMonths < 1) {
+            throw new IllegalArgumentException("retentionMonths must be at least 1");
+        }
+        YearMonth oldestKept = YearMonth.now().minusMonths(retentionMonths);
+        List<String> expired = new ArrayList<>();
+        for (YearMonth month : existingPartitionMonths(conn)) {
+            if (month.isBefore(oldestKept)) {
+                expired.add(month.format(PARTITION_NAME));
+            }
+        }
+        if (expired.isEmpty()) {
+            return 0;
+        }
+        execute(conn, "ALTER TABLE transactions DROP PARTITION " + String.join(", ", expired));
+        System.out.println("Schema: dropped " + expired.size() + " transaction partition(s) older than " + oldestKept);
+        return expired.size();
+    }
+
+    private static String partitionDefinition(YearMonth month) {
+        LocalDate nextMonth = month.plusMonths(1).atDay(1);
+        return "PARTITION " + month.format(PARTITION_NAME)
+                + " VALUES LESS THAN (UNIX_TIMESTAMP('" + nextMonth + " 00:00:00'))";
+    }
+
+    private static TreeSet<YearMonth> existingPartitionMonths(Connection conn) throws SQLException {
+        TreeSet<YearMonth> months = new TreeSet<>();
+        try (PreparedStatement pstmt = conn.prepareStatement(
+                "SELECT PARTITION_NAME FROM INFORMATION_SCHEMA.PARTITIONS "
+                        + "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'transactions' AND PARTITION_NAME IS NOT NULL");
+             ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                String name = rs.getString(1);
+                if (name.matches("p\\d{6}")) {
+                    months.add(YearMonth.parse(name, PARTITION_NAME));
+                }
+            }
+        }
+        return months;
+    }
+
+    private static boolean isPartitioned(Connection conn) throws SQLException {
+        return !existingPartitionMonths(conn).isEmpty();
+    }
+
+    // HELPERS
+
+    private static int currentVersion(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private static boolean indexExists(Connection conn, String table, String index) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(
+                "SELECT 1 FROM INFORMATION_SCHEMA.STATISTICS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND INDEX_NAME = ? LIMIT 1")) {
+            pstmt.setString(1, table);
+            pstmt.setString(2, index);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    private static List<String> foreignKeys(Connection conn, String table) throws SQLException {
+        List<String> names = new ArrayList<>();
+        try (PreparedStatement pstmt = conn.prepareStatement(
+                "SELECT CONSTRAINT_NAME FROM INFORMATION_SCHEMA.REFERENTIAL_CONSTRAINTS WHERE CONSTRAINT_SCHEMA = DATABASE() AND TABLE_NAME = ?")) {
+            pstmt.setString(1, table);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    names.add(rs.getString(1));
+                }
+            }
+        }
+        return names;
+    }
+
+    private static boolean acquireLock(Connection conn) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT GET_LOCK(?, ?)")) {
+            pstmt.setString(1, LOCK_NAME);
+            pstmt.setInt(2, LOCK_TIMEOUT_SECONDS);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() && rs.getInt(1) == 1;
+            }
+        }
+    }
+
+    private static void releaseLock(Connection conn) {
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+            pstmt.setString(1, LOCK_NAME);
+            pstmt.executeQuery().close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void execute(Connection conn, String sql) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute(sql);
+        }
+    }
+
+    // Running the tooling by hand
+    public static void main(String[] args) throws SQLException {
+        String command = args.length > 0 ? args[0] : "migrate";
+        switch (command) {
+            case "migrate":
+                System.out.println("Schema is at v" + migrate() + " (latest v" + latestVersion() + ")");
+                break;
+            case "roll":
+            case "drop":
+                if (args.length < 2) {
+                    System.out.println("Usage: java SchemaManager " + command + " <months>");
+                    return;
+                }
+                int months = Integer.parseInt(args[1]);
+                for (int shard = 0; shard < DatabaseConnection.shardCount(); shard++) {
+                    try (Connection conn = DatabaseConnection.getShardConnection(shard)) {
+                        if (command.equals("roll")) {
+                            rollPartitionsForward(conn, months);
+                        } else {
+                            dropExpiredPartitions(conn, months);
+                        }
+                    }
+                }
+                break;
+            default:
+                System.out.println("Usage: java SchemaManager [migrate | roll <monthsAhead> | drop <retentionMonths>]");
+        }
+        DatabaseConnection.shutdown();
+    }
+}
@@ -0,0 +1,123 @@
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Logged-in sessions for the server and AsyncBankingService: a random token per login instead of BankingApp's
+// single static currentUser. Only the login pays for the PIN hash; every later request just looks its token up.
+// Sessions expire after ttlMillis without use, and at most maxSessions are kept: past that the least recently
+// used one is dropped (its owner simply logs in again).
+public class SessionStore {
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final long ttlMillis;
+    private final int maxSessions;
+    private final LinkedHashMap<String, Session> sessions;
+    private final LongAdder evictions = new LongAdder();
+
+    public SessionStore(long ttlMillis) {
+        this(ttlMillis, Integer.getInteger("bank.sessions.maxSize", 100_000));
+    }
+
+    public SessionStore(long ttlMillis, int maxSessions) {
+        this.ttlMillis = ttlMillis;
+        this.maxSessions = maxSessions;
+        this.sessions = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+                if (size() > SessionStore.this.maxSessions) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public static class Session {
+        private final String token;
+        private final int accountNumber;
+        private final String fullName;
+        private long expiresAt; // guarded by the store
+
+        Session(String token, int accountNumber, String fullName, long expiresAt) {
+            this.token = token;
+            this.accountNumber = accountNumber;
+            this.fullName = fullName;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getToken() {
+            return token;
+        }
+        public int getAccountNumber() {
+            return accountNumber;
+        }
+        public String getFullName() {
+            return fullName;
+        }
+    }
+
+    public Session create(User user) {
+        byte[] bytes = new byte[24];
+        RANDOM.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        Session session = new Session(token, user.getAccountNumber(), user.getFullName(), System.currentTimeMillis() + ttlMillis);
+        synchronized (this) {
+            sessions.put(token, session);
+        }
+        return session;
+    }
+
+    // The live session for this token (and its expiry is pushed back), or null
+    public Session get(String token) {
+        if (token == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Session session = sessions.get(token); // also makes it the most recently used
+            if (session == null) {
+                return null;
+            }
+            if (session.expiresAt <= now) {
+                sessions.remove(token);
+                return null;
+            }
+            session.expiresAt = now + ttlMillis;
+            return session;
+        }
+    }
+
+    public synchronized void remove(String token) {
+        if (token != null) {
+            sessions.remove(token);
+        }
+    }
+
+    // dropping expired sessions, called now and then so abandoned logins don't pile up
+    public synchronized int purgeExpired() {
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        Iterator<Session> it = sessions.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expiresAt <= now) {
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public synchronized int size() {
+        return sessions.size();
+    }
+
+    // sessions dropped because the store was full
+    public long getEvictions() {
+        return evictions.sum();
+    }
+}
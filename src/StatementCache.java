@@ -0,0 +1,183 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Prepared statements kept open on one pooled connection, keyed by SQL text.
+// With useServerPrepStmts the server parses and plans each statement once per connection,
+// and the calls after that only send the parameters.
+public class StatementCache {
+
+    // shared by every connection of the pool so the totals are easy to read
+    static final LongAdder HITS = new LongAdder();
+    static final LongAdder MISSES = new LongAdder();
+    private static final BankingMetrics METRICS = BankingMetrics.shared();
+
+    private final Connection physical;
+    private final int maxSize;
+    private final LinkedHashMap<String, CachedStatement> statements;
+
+    public StatementCache(Connection physical, int maxSize) {
+        this.physical = physical;
+        this.maxSize = maxSize;
+        // access order = LRU, the eldest entry gets closed once we go over the limit
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                if (size() > StatementCache.this.maxSize && !eldest.getValue().inUse) {
+                    eldest.getValue().closeQuietly();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // Handing out the cached statement for this SQL, or preparing it the first time.
+    // handle is the pooled Connection proxy the caller is holding (returned from getConnection()).
+    public PreparedStatement prepare(Connection handle, String sql, int autoGeneratedKeys) throws SQLException {
+        if (maxSize <= 0) {
+            return physical.prepareStatement(sql, autoGeneratedKeys);
+        }
+        String key = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS ? "K:" + sql : sql;
+        CachedStatement cached = statements.get(key);
+        if (cached != null && !cached.inUse) {
+            HITS.increment();
+        } else if (cached != null) {
+            // same SQL already open by this caller (nested use), so give it a throw-away statement
+            MISSES.increment();
+            return physical.prepareStatement(sql, autoGeneratedKeys);
+        } else {
+            MISSES.increment();
+            cached = new CachedStatement(physical.prepareStatement(sql, autoGeneratedKeys));
+            statements.put(key, cached);
+        }
+        cached.inUse = true;
+        return cached.newHandle(handle);
+    }
+
+    // Called when the connection goes back to the pool: statements the caller forgot to close are freed
+    public void releaseAll() {
+        List<CachedStatement> leftovers = new ArrayList<>();
+        for (CachedStatement cached : statements.values()) {
+            if (cached.inUse) {
+                leftovers.add(cached);
+            }
+        }
+        for (CachedStatement cached : leftovers) {
+            cached.release();
+        }
+    }
+
+    public int size() {
+        return statements.size();
+    }
+
+    public static long getHits() {
+        return HITS.sum();
+    }
+
+    public static long getMisses() {
+        return MISSES.sum();
+    }
+
+    private static class CachedStatement {
+        final PreparedStatement statement;
+        boolean inUse = false;
+        // the handle currently out; an old handle must not release the statement a second time
+        StatementHandle current;
+
+        CachedStatement(PreparedStatement statement) {
+            this.statement = statement;
+        }
+
+        PreparedStatement newHandle(Connection connectionHandle) {
+            current = new StatementHandle(this, connectionHandle);
+            return (PreparedStatement) Proxy.newProxyInstance(
+                    PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class},
+                    current);
+        }
+
+        void release() {
+            if (current != null) {
+                current.closed = true;
+                current = null;
+            }
+            try {
+                statement.clearParameters();
+                statement.clearBatch();
+            } catch (SQLException e) {
+                // the statement is still usable for the next caller after being re-bound
+            }
+            inUse = false;
+        }
+
+        void closeQuietly() {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    // What the caller holds; close() puts the statement back in the cache instead of closing it
+    private static class StatementHandle implements InvocationHandler {
+        private final CachedStatement cached;
+        private final Connection connectionHandle;
+        boolean closed = false;
+
+        StatementHandle(CachedStatement cached, Connection connectionHandle) {
+            this.cached = cached;
+            this.connectionHandle = connectionHandle;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        cached.release();
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || cached.statement.isClosed();
+                case "getConnection":
+                    return connectionHandle;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Cached[" + cached.statement + "]";
+                default:
+                    break;
+            }
+            if (closed) {
+                throw new SQLException("Statement is already closed");
+            }
+            // execute(), executeQuery(), executeUpdate(), executeBatch() ... are timed for BankingMetrics
+            boolean execute = method.getName().startsWith("execute");
+            long start = execute ? METRICS.start() : 0;
+            try {
+                return method.invoke(cached.statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                if (execute) {
+                    METRICS.record(BankingMetrics.Timer.STATEMENT, start);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,376 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Account statements / regulator extracts: every transaction of a set of accounts in a date range, one file per account.
+//
+//   java StatementExporter --accounts 1001,1002,1003 --from 2025-01-01 --to 2025-04-01 --format csv --out statements --workers 4
+//   java StatementExporter --accounts-file accounts.txt --from 2025-01-01 --to 2026-01-01 --format bin --out extract
+//
+// --to is exclusive. Dates are midnight in the JVM's time zone; the files carry UTC instants.
+// Every worker holds one pooled connection, so keep --workers at or below bank.pool.max.
+//
+// Rows come through a server-side cursor (useCursorFetch + fetch size), so the driver holds one fetch at a time.
+// The query hands back only numbers (the ENUM index, paise, epoch seconds), which are encoded straight into a
+// direct ByteBuffer that every worker reuses for all of its accounts and drains into a FileChannel when full.
+// Nothing is kept per row on our side, so an account with millions of rows exports in the same memory as one with ten.
+//
+// Formats:
+//   csv  transaction_id,account_number,type,amount,date_utc
+//   bin  40-byte header, then fixed 25-byte big-endian records (see writeHeader / the BIN_ constants):
+//        long transaction_id, byte type (1 DEPOSIT, 2 WITHDRAWAL, 3 TRANSFER_OUT, 4 TRANSFER_IN),
+//        long amount in paise, long epoch second
+public class StatementExporter {
+
+    // transaction_type + 0 is the ENUM index (see SchemaManager v3), the rest are plain numbers as well
+    private static final String EXPORT_SQL = "SELECT transaction_id, transaction_type + 0, "
+            + "CAST(amount * 100 AS SIGNED), CAST(UNIX_TIMESTAMP(transaction_date) AS SIGNED) "
+            + "FROM transactions WHERE account_number = ? AND transaction_date >= ? AND transaction_date < ? "
+            + "ORDER BY transaction_date, transaction_id";
+
+    private static final int FETCH_SIZE = Integer.getInteger("bank.export.fetchSize", 1000);
+    private static final int BUFFER_SIZE = Integer.getInteger("bank.export.bufferKilobytes", 256) * 1024;
+
+    // index = ENUM index
+    private static final byte[][] TYPE_NAMES = {
+            ascii("UNKNOWN"), ascii("DEPOSIT"), ascii("WITHDRAWAL"), ascii("TRANSFER_OUT"), ascii("TRANSFER_IN")
+    };
+    private static final byte[] CSV_HEADER = ascii("transaction_id,account_number,type,amount,date_utc\n");
+    private static final int CSV_MAX_ROW = 128; // 20 + 11 + 12 + 21 + 20 digits/letters and separators, rounded up
+
+    private static final int BIN_MAGIC = 0x4253544D; // "BSTM"
+    private static final short BIN_VERSION = 1;
+    private static final int BIN_HEADER_SIZE = 40;
+    private static final int BIN_RECORD_SIZE = 25;
+    private static final int BIN_COUNT_OFFSET = 32;
+
+    public enum Format { CSV, BIN }
+
+    private final Format format;
+    private final Path outputDir;
+    private final int workers;
+
+    public StatementExporter(Format format, Path outputDir, int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be at least 1");
+        }
+        this.format = format;
+        this.outputDir = outputDir;
+        this.workers = workers;
+    }
+
+    public static class Report {
+        final LongAdder rows = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder files = new LongAdder();
+        final LongAdder failedAccounts = new LongAdder();
+        long elapsedNanos;
+
+        public long getRows() {
+            return rows.sum();
+        }
+
+        public double getRowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : rows.sum() / (elapsedNanos / 1_000_000_000.0);
+        }
+
+        @Override
+        public String toString() {
+            double seconds = elapsedNanos / 1_000_000_000.0;
+            return String.format("files=%d rows=%d bytes=%d failedAccounts=%d in %.2fs (%.0f rows/s, %.1f MB/s)",
+                    files.sum(), rows.sum(), bytes.sum(), failedAccounts.sum(), seconds,
+                    getRowsPerSecond(), seconds == 0 ? 0 : bytes.sum() / seconds / 1e6);
+        }
+    }
+
+    // Exports every account into outputDir; accounts are handed out to the workers one at a time
+    public Report export(int[] accounts, Timestamp from, Timestamp to) throws IOException, InterruptedException {
+        Files.createDirectories(outputDir);
+        Report report = new Report();
+        AtomicInteger next = new AtomicInteger();
+        long start = System.nanoTime();
+
+        int threads = Math.min(workers, Math.max(1, accounts.length));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> running = new ArrayList<>(threads);
+            for (int w = 0; w < threads; w++) {
+                running.add(executor.submit(() -> {
+                    runWorker(accounts, next, from, to, report);
+                    return null;
+                }));
+            }
+            boolean workerFailed = false;
+            for (Future<?> worker : running) {
+                try {
+                    worker.get();
+                } catch (ExecutionException e) {
+                    workerFailed = true;
+                    e.getCause().printStackTrace();
+                }
+            }
+            if (workerFailed) {
+                // if every worker died, nobody took the rest: those count as failed, not as silently missing files
+                int untaken = accounts.length - Math.min(next.get(), accounts.length);
+                if (untaken > 0) {
+                    report.failedAccounts.add(untaken);
+                    System.out.println("Export: " + untaken + " account(s) not exported, no worker was left to take them");
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        report.elapsedNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    // One worker: one buffer for all the accounts it picks up, and one connection per shard it needs
+    private void runWorker(int[] accounts, AtomicInteger next, Timestamp from, Timestamp to, Report report) throws SQLException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        Connection[] connections = new Connection[DatabaseConnection.shardCount()];
+        try {
+            int index;
+            while ((index = next.getAndIncrement()) < accounts.length) {
+                int account = accounts[index];
+                int shard = DatabaseConnection.shardOf(account);
+                if (connections[shard] == null) {
+                    // a replica when there is one, exports are pure reads
+                    connections[shard] = DatabaseConnection.isSharded()
+                            ? DatabaseConnection.getShardConnection(shard) : DatabaseConnection.getReadConnection();
+                    if (connections[shard] == null) {
+                        report.failedAccounts.increment(); // the one in hand; export() counts the ones nobody took
+                        throw new SQLException("No database connection available for account #" + account);
+                    }
+                }
+                try {
+                    exportAccount(connections[shard], buffer, account, from, to, report);
+                } catch (SQLException | IOException e) {
+                    report.failedAccounts.increment();
+                    System.out.println("Export of account #" + account + " failed: " + e.getMessage());
+                }
+            }
+        } finally {
+            for (Connection conn : connections) {
+                if (conn != null) {
+                    conn.close();
+                }
+            }
+        }
+    }
+
+    private void exportAccount(Connection conn, ByteBuffer buffer, int account, Timestamp from, Timestamp to, Report report)
+            throws SQLException, IOException {
+        String suffix = format == Format.CSV ? ".csv" : ".bin";
+        Path target = outputDir.resolve("statement-" + account + suffix);
+        Path part = outputDir.resolve("statement-" + account + suffix + ".part");
+        long rows = 0;
+        buffer.clear();
+
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             PreparedStatement pstmt = conn.prepareStatement(EXPORT_SQL)) {
+            pstmt.setFetchSize(FETCH_SIZE);
+            pstmt.setInt(1, account);
+            pstmt.setTimestamp(2, from);
+            pstmt.setTimestamp(3, to);
+
+            if (format == Format.CSV) {
+                buffer.put(CSV_HEADER);
+            } else {
+                writeHeader(buffer, account, from.getTime() / 1000, to.getTime() / 1000);
+            }
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    if (buffer.remaining() < CSV_MAX_ROW) {
+                        drain(channel, buffer);
+                    }
+                    long id = rs.getLong(1);
+                    int type = rs.getInt(2);
+                    long paise = rs.getLong(3);
+                    long epochSecond = rs.getLong(4);
+                    if (format == Format.CSV) {
+                        putCsvRow(buffer, id, account, type, paise, epochSecond);
+                    } else {
+                        buffer.putLong(id).put((byte) type).putLong(paise).putLong(epochSecond);
+                    }
+                    rows++;
+                }
+            }
+            drain(channel, buffer);
+
+            if (format == Format.BIN) {
+                // the count is only known now, it goes into its slot in the header
+                buffer.putLong(rows).flip();
+                channel.write(buffer, BIN_COUNT_OFFSET);
+                buffer.clear();
+            }
+            report.bytes.add(channel.size());
+        } catch (SQLException | IOException e) {
+            Files.deleteIfExists(part);
+            throw e;
+        }
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        report.rows.add(rows);
+        report.files.increment();
+    }
+
+    private static void writeHeader(ByteBuffer buffer, int account, long fromEpochSecond, long toEpochSecond) {
+        buffer.putInt(BIN_MAGIC)
+                .putShort(BIN_VERSION)
+                .putShort((short) BIN_RECORD_SIZE)
+                .putInt(account)
+                .putInt(0) // reserved
+                .putLong(fromEpochSecond)
+                .putLong(toEpochSecond)
+                .putLong(0); // record count, filled in at the end
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // CSV ENCODING (straight into the buffer, no Strings)
+
+    private static void putCsvRow(ByteBuffer buffer, long id, int account, int type, long paise, long epochSecond) {
+        putLong(buffer, id);
+        buffer.put((byte) ',');
+        putLong(buffer, account);
+        buffer.put((byte) ',');
+        buffer.put(TYPE_NAMES[type >= 1 && type < TYPE_NAMES.length ? type : 0]);
+        buffer.put((byte) ',');
+        if (paise < 0) {
+            buffer.put((byte) '-');
+            paise = -paise;
+        }
+        putLong(buffer, paise / 100);
+        buffer.put((byte) '.');
+        putDigits(buffer, paise % 100, 2);
+        buffer.put((byte) ',');
+        putDate(buffer, epochSecond);
+        buffer.put((byte) '\n');
+    }
+
+    static void putLong(ByteBuffer buffer, long value) {
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value; rest >= 10; rest /= 10) {
+            digits++;
+        }
+        putDigits(buffer, value, digits);
+    }
+
+    // exactly `digits` digits, zero padded
+    private static void putDigits(ByteBuffer buffer, long value, int digits) {
+        int start = buffer.position();
+        for (int i = start + digits - 1; i >= start; i--) {
+            buffer.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        buffer.position(start + digits);
+    }
+
+    // yyyy-MM-ddTHH:mm:ssZ, the days -> civil date step is the usual proleptic Gregorian conversion
+    static void putDate(ByteBuffer buffer, long epochSecond) {
+        long days = Math.floorDiv(epochSecond, 86_400);
+        long secondOfDay = Math.floorMod(epochSecond, 86_400);
+        long z = days + 719_468;
+        long era = Math.floorDiv(z, 146_097);
+        long dayOfEra = z - era * 146_097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        long day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        putDigits(buffer, year, 4);
+        buffer.put((byte) '-');
+        putDigits(buffer, month, 2);
+        buffer.put((byte) '-');
+        putDigits(buffer, day, 2);
+        buffer.put((byte) 'T');
+        putDigits(buffer, secondOfDay / 3600, 2);
+        buffer.put((byte) ':');
+        putDigits(buffer, secondOfDay / 60 % 60, 2);
+        buffer.put((byte) ':');
+        putDigits(buffer, secondOfDay % 60, 2);
+        buffer.put((byte) 'Z');
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] accounts = null;
+        LocalDate from = null;
+        LocalDate to = null;
+        Format format = Format.CSV;
+        Path out = Path.of("statements");
+        int workers = 4;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--accounts": accounts = parseAccounts(List.of(args[++i].split(","))); break;
+                case "--accounts-file": accounts = parseAccounts(Files.readAllLines(Path.of(args[++i]))); break;
+                case "--from": from = LocalDate.parse(args[++i]); break;
+                case "--to": to = LocalDate.parse(args[++i]); break;
+                case "--format": format = Format.valueOf(args[++i].toUpperCase()); break;
+                case "--out": out = Path.of(args[++i]); break;
+                case "--workers": workers = Integer.parseInt(args[++i]); break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+        if (accounts == null || from == null || to == null || !from.isBefore(to)) {
+            System.out.println("Usage: java StatementExporter --accounts N,N,...|--accounts-file FILE --from YYYY-MM-DD --to YYYY-MM-DD "
+                    + "[--format csv|bin] [--out DIR] [--workers N]");
+            return;
+        }
+
+        StatementExporter exporter = new StatementExporter(format, out, workers);
+        Report report = exporter.export(accounts,
+                Timestamp.valueOf(from.atStartOfDay()), Timestamp.valueOf(to.atStartOfDay()));
+        System.out.println("Export finished: " + report);
+        DatabaseConnection.shutdown();
+    }
+
+    private static int[] parseAccounts(List<String> values) {
+        int[] accounts = new int[values.size()];
+        int count = 0;
+        for (String value : values) {
+            if (!value.isBlank()) {
+                accounts[count++] = Integer.parseInt(value.trim());
+            }
+        }
+        return Arrays.copyOf(accounts, count);
+    }
+}
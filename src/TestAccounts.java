@@ -0,0 +1,118 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+// Creates (and removes) throw-away accounts for the benchmark and the load generator.
+// Every account gets an opening DEPOSIT row, so balances and the transactions log agree from the start.
+public class TestAccounts {
+    public static final String PIN = "1234";
+    // one hash of PIN shared by all seeded accounts, so seeding doesn't pay the PBKDF2 cost per account
+    private static String pinHash;
+
+    private static final int BATCH = 500;
+
+    public static synchronized String pinHash() {
+        if (pinHash == null) {
+            pinHash = PinHasher.hash(PIN);
+        }
+        return pinHash;
+    }
+
+    // Inserts `count` accounts tagged with `tag` (used in their emails) and returns their account numbers
+    public static int[] seed(String tag, int count, long openingPaise) throws SQLException {
+        int[] accounts = new int[count];
+        // with shards each account goes where registerAccount() would put it; accounts[] keeps the input order
+        List<List<Integer>> byShard = new ArrayList<>();
+        for (int shard = 0; shard < DatabaseConnection.shardCount(); shard++) {
+            byShard.add(new ArrayList<>());
+        }
+        for (int i = 0; i < count; i++) {
+            byShard.get(DatabaseConnection.shardForEmail(email(tag, i))).add(i);
+        }
+        for (int shard = 0; shard < byShard.size(); shard++) {
+            if (!byShard.get(shard).isEmpty()) {
+                seedShard(shard, tag, byShard.get(shard), openingPaise, accounts);
+            }
+        }
+        return accounts;
+    }
+
+    private static void seedShard(int shard, String tag, List<Integer> indexes, long openingPaise, int[] accounts) throws SQLException {
+        String pinHash = pinHash();
+        try (Connection conn = DatabaseConnection.getShardConnection(shard)) {
+            if (conn == null) {
+                throw new SQLException("No database connection available");
+            }
+            conn.setAutoCommit(false);
+            try (PreparedStatement user = conn.prepareStatement(
+                    "INSERT INTO users (full_name, email, security_pin, balance) VALUES (?, ?, ?, ?)",
+                    Statement.RETURN_GENERATED_KEYS);
+                 PreparedStatement log = conn.prepareStatement(
+                         "INSERT INTO transactions (account_number, transaction_type, amount) VALUES (?, 'DEPOSIT', ?)")) {
+
+                for (int from = 0; from < indexes.size(); from += BATCH) {
+                    List<Integer> chunk = indexes.subList(from, Math.min(indexes.size(), from + BATCH));
+                    for (int i : chunk) {
+                        user.setString(1, "Test " + tag + " " + i);
+                        user.setString(2, email(tag, i));
+                        user.setString(3, pinHash);
+                        user.setBigDecimal(4, Money.toBigDecimal(openingPaise));
+                        user.addBatch();
+                    }
+                    user.executeBatch();
+                    try (ResultSet keys = user.getGeneratedKeys()) {
+                        for (int i : chunk) {
+                            if (!keys.next()) {
+                                break;
+                            }
+                            accounts[i] = keys.getInt(1);
+                        }
+                    }
+                    if (openingPaise > 0) {
+                        for (int i : chunk) {
+                            log.setInt(1, accounts[i]);
+                            log.setBigDecimal(2, Money.toBigDecimal(openingPaise));
+                            log.addBatch();
+                        }
+                        log.executeBatch();
+                    }
+                    conn.commit();
+                }
+            }
+        }
+    }
+
+    private static String email(String tag, int i) {
+        return tag + "-" + i + "@test.local";
+    }
+
+    // Deletes the accounts created by seed() with this tag, together with their transactions
+    public static int remove(String tag) throws SQLException {
+        int removed = 0;
+        for (int shard = 0; shard < DatabaseConnection.shardCount(); shard++) {
+            removed += remove(shard, tag);
+        }
+        return removed;
+    }
+
+    private static int remove(int shard, String tag) throws SQLException {
+        try (Connection conn = DatabaseConnection.getShardConnection(shard)) {
+            if (conn == null) {
+                throw new SQLException("No database connection available");
+            }
+            String pattern = tag + "-%@test.local";
+            try (PreparedStatement txns = conn.prepareStatement(
+                    "DELETE t FROM transactions t JOIN users u ON u.account_number = t.account_number WHERE u.email LIKE ?");
+                 PreparedStatement users = conn.prepareStatement("DELETE FROM users WHERE email LIKE ?")) {
+                txns.setString(1, pattern);
+                txns.executeUpdate();
+                users.setString(1, pattern);
+                return users.executeUpdate();
+            }
+        }
+    }
+}
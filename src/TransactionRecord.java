@@ -0,0 +1,40 @@
+import java.sql.Timestamp;
+
+// One row of the transactions table
+public class TransactionRecord {
+    private final long transactionId;
+    private final int accountNumber;
+    private final String transactionType;
+    private final long amountPaise;
+    private final Timestamp transactionDate;
+
+    public TransactionRecord(long transactionId, int accountNumber, String transactionType, long amountPaise, Timestamp transactionDate) {
+        this.transactionId = transactionId;
+        this.accountNumber = accountNumber;
+        this.transactionType = transactionType;
+        this.amountPaise = amountPaise;
+        this.transactionDate = transactionDate;
+    }
+
+    //Getters
+    public long getTransactionId() {
+        return transactionId;
+    }
+    public int getAccountNumber() {
+        return accountNumber;
+    }
+    public String getTransactionType() {
+        return transactionType;
+    }
+    public long getAmountPaise() {
+        return amountPaise;
+    }
+    public Timestamp getTransactionDate() {
+        return transactionDate;
+    }
+
+    @Override
+    public String toString() {
+        return "#" + transactionId + " " + transactionType + " " + Money.format(amountPaise) + " at " + transactionDate;
+    }
+}
@@ -0,0 +1,38 @@
+public class TransactionResult {
+    // results without a balance are always the same, so they are shared instead of created per call
+    private static final TransactionResult[] WITHOUT_BALANCE = new TransactionResult[TransactionStatus.values().length];
+
+    static {
+        for (TransactionStatus status : TransactionStatus.values()) {
+            WITHOUT_BALANCE[status.ordinal()] = new TransactionResult(status, -1);
+        }
+    }
+
+    private final TransactionStatus status;
+    private final long newBalancePaise; // balance of the (sending) account after the operation, -1 if unknown
+
+    public TransactionResult(TransactionStatus status, long newBalancePaise) {
+        this.status = status;
+        this.newBalancePaise = newBalancePaise;
+    }
+
+    public static TransactionResult of(TransactionStatus status) {
+        return WITHOUT_BALANCE[status.ordinal()];
+    }
+
+    //Getters
+    public TransactionStatus getStatus() {
+        return status;
+    }
+    public boolean isSuccess() {
+        return status.isSuccess();
+    }
+    public long getNewBalancePaise() {
+        return newBalancePaise;
+    }
+
+    @Override
+    public String toString() {
+        return newBalancePaise < 0 ? status.toString() : status + " (balance " + Money.format(newBalancePaise) + ")";
+    }
+}
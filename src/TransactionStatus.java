@@ -0,0 +1,15 @@
+// Outcome of a money movement, so callers can tell the failures apart instead of just getting false
+public enum TransactionStatus {
+    SUCCESS,
+    INVALID_AMOUNT,
+    SAME_ACCOUNT,
+    INSUFFICIENT_FUNDS,
+    ACCOUNT_NOT_FOUND,
+    RECEIVER_NOT_FOUND,
+    KEY_REUSED, // the idempotency key was already used for a different request
+    FAILED;
+
+    public boolean isSuccess() {
+        return this == SUCCESS;
+    }
+}
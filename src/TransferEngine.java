@@ -0,0 +1,268 @@
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Runs transfers so that many of them at once don't deadlock each other.
+//  1. threads in this JVM first take striped locks for both accounts, always lowest stripe first
+//  2. the two user rows are locked with SELECT ... FOR UPDATE in account-number order, so A->B and B->A
+//     transfers from other processes queue up instead of locking in opposite orders
+//  3. if MySQL still reports a deadlock or lock wait timeout, the whole transaction is retried
+//     a few times with a jittered backoff
+// With shards, accounts on two different shards go through CrossShardTransfer (XA) inside the same
+// locks and retries.
+public class TransferEngine {
+
+    private static final int STRIPES = 256; // power of two
+
+    private static final String LOCK_PAIR_SQL =
+            "SELECT account_number, balance FROM users WHERE account_number IN (?, ?) ORDER BY account_number FOR UPDATE";
+    private static final String DEBIT_SQL = "UPDATE users SET balance = balance - ? WHERE account_number = ?";
+    private static final String CREDIT_SQL = "UPDATE users SET balance = balance + ? WHERE account_number = ?";
+    private static final String LOG_SQL = "INSERT INTO transactions (account_number, transaction_type, amount) VALUES (?, ?, ?)";
+
+    // MySQL error codes worth another try
+    private static final int ER_LOCK_WAIT_TIMEOUT = 1205;
+    private static final int ER_LOCK_DEADLOCK = 1213;
+
+    // shared by every engine in the JVM, so two BankingServices instances still line up behind each other
+    private static final ReentrantLock[] LOCKS = new ReentrantLock[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            LOCKS[i] = new ReentrantLock();
+        }
+    }
+
+    private final BalanceCache balanceCache;
+    // transfers between two shards, null without sharding
+    private final CrossShardTransfer crossShard;
+    private final int maxRetries;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder giveUps = new LongAdder();
+
+    public TransferEngine(BalanceCache balanceCache) {
+        this(balanceCache,
+                Integer.getInteger("bank.transfer.maxRetries", 5),
+                Long.getLong("bank.transfer.baseBackoffMillis", 5),
+                Long.getLong("bank.transfer.maxBackoffMillis", 250));
+    }
+
+    public TransferEngine(BalanceCache balanceCache, int maxRetries, long baseBackoffMillis, long maxBackoffMillis) {
+        this.balanceCache = balanceCache;
+        this.crossShard = DatabaseConnection.isSharded() ? new CrossShardTransfer(balanceCache) : null;
+        this.maxRetries = maxRetries;
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    // Amount and same-account checks are already done by BankingServices
+    public TransactionResult transfer(int fromAccount, int toAccount, long amount) {
+        return transfer(fromAccount, toAccount, amount, null);
+    }
+
+    // With an idempotency key its row goes into the same transaction; if the key is taken, the earlier
+    // transfer's result comes back instead
+    public TransactionResult transfer(int fromAccount, int toAccount, long amount, String idempotencyKey) {
+        int first = stripe(fromAccount);
+        int second = stripe(toAccount);
+        // lowest stripe first, and only once if both accounts share a stripe
+        ReentrantLock lockA = LOCKS[Math.min(first, second)];
+        ReentrantLock lockB = LOCKS[Math.max(first, second)];
+        lockA.lock();
+        if (lockB != lockA) {
+            lockB.lock();
+        }
+        try {
+            for (int attempt = 0; ; attempt++) {
+                attempts.increment();
+                try {
+                    if (crossShard != null && DatabaseConnection.shardOf(fromAccount) != DatabaseConnection.shardOf(toAccount)) {
+                        return crossShard.transfer(fromAccount, toAccount, amount, idempotencyKey);
+                    }
+                    return attemptTransfer(fromAccount, toAccount, amount, idempotencyKey);
+                } catch (SQLException e) {
+                    if (idempotencyKey != null && IdempotencyStore.isDuplicate(e)) {
+                        return IdempotencyStore.replay(fromAccount, idempotencyKey,
+                                IdempotencyStore.request("TRANSFER", amount, toAccount));
+                    }
+                    if (!isRetryable(e)) {
+                        e.printStackTrace();
+                        return TransactionResult.of(TransactionStatus.FAILED);
+                    }
+                    if (attempt >= maxRetries) {
+                        giveUps.increment();
+                        System.out.println("Transfer " + fromAccount + " -> " + toAccount + " gave up after "
+                                + (attempt + 1) + " attempts: " + e.getMessage());
+                        return TransactionResult.of(TransactionStatus.FAILED);
+                    }
+                    retries.increment();
+                    if (!backoff(attempt)) {
+                        return TransactionResult.of(TransactionStatus.FAILED);
+                    }
+                }
+            }
+        } finally {
+            if (lockB != lockA) {
+                lockB.unlock();
+            }
+            lockA.unlock();
+        }
+    }
+
+    // One try of the whole transaction; SQLExceptions come out after the rollback so the caller can retry
+    private TransactionResult attemptTransfer(int fromAccount, int toAccount, long amount, String idempotencyKey) throws SQLException {
+        long stamp = balanceCache.beginWrite(fromAccount);
+        Connection conn = DatabaseConnection.getConnection(fromAccount); // both accounts are on this shard
+        if (conn == null) {
+            return TransactionResult.of(TransactionStatus.FAILED);
+        }
+        try {
+            conn.setAutoCommit(false);
+
+            // Step 1: locking both rows in account order and reading the balances we are going to change
+            long senderBalance = -1;
+            boolean receiverExists = false;
+            try (PreparedStatement pstmt = conn.prepareStatement(LOCK_PAIR_SQL)) {
+                pstmt.setInt(1, fromAccount);
+                pstmt.setInt(2, toAccount);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        int account = rs.getInt("account_number");
+                        if (account == fromAccount) {
+                            senderBalance = Money.fromBigDecimal(rs.getBigDecimal("balance"));
+                        } else {
+                            receiverExists = true;
+                        }
+                    }
+                }
+            }
+
+            BigDecimal amountDecimal = Money.toBigDecimal(amount);
+            TransactionStatus status = TransactionStatus.SUCCESS;
+            if (senderBalance < 0) {
+                status = TransactionStatus.ACCOUNT_NOT_FOUND;
+            } else if (!receiverExists) {
+                status = TransactionStatus.RECEIVER_NOT_FOUND;
+            } else if (senderBalance < amount) {
+                status = TransactionStatus.INSUFFICIENT_FUNDS;
+            }
+            if (status != TransactionStatus.SUCCESS) {
+                conn.rollback();
+                balanceCache.invalidate(fromAccount);
+                return TransactionResult.of(status);
+            }
+
+            // Step 2: moving the money, the rows are ours until commit
+            try (PreparedStatement debit = conn.prepareStatement(DEBIT_SQL)) {
+                debit.setBigDecimal(1, amountDecimal);
+                debit.setInt(2, fromAccount);
+                debit.executeUpdate();
+            }
+            try (PreparedStatement credit = conn.prepareStatement(CREDIT_SQL)) {
+                credit.setBigDecimal(1, amountDecimal);
+                credit.setInt(2, toAccount);
+                credit.executeUpdate();
+            }
+
+            // Step 3: log rows for both sides
+            try (PreparedStatement log = conn.prepareStatement(LOG_SQL)) {
+                log.setInt(1, fromAccount);
+                log.setString(2, "TRANSFER_OUT");
+                log.setBigDecimal(3, amountDecimal);
+                log.executeUpdate();
+
+                log.setInt(1, toAccount);
+                log.setString(2, "TRANSFER_IN");
+                log.setBigDecimal(3, amountDecimal);
+                log.executeUpdate();
+            }
+
+            // the sender row was locked since step 1, so this is exactly what gets committed
+            long newBalance = senderBalance - amount;
+            if (idempotencyKey != null) {
+                IdempotencyStore.record(conn, fromAccount, idempotencyKey,
+                        IdempotencyStore.request("TRANSFER", amount, toAccount), newBalance);
+            }
+
+            conn.commit();
+            DatabaseConnection.wrote(fromAccount);
+            DatabaseConnection.wrote(toAccount);
+            balanceCache.complete(fromAccount, stamp, newBalance);
+            balanceCache.invalidate(toAccount);
+            return new TransactionResult(TransactionStatus.SUCCESS, newBalance);
+
+        } catch (SQLException e) {
+            balanceCache.invalidate(fromAccount);
+            try {
+                conn.rollback();
+            } catch (SQLException ex) {
+                // the deadlock already rolled the transaction back on the server
+            }
+            throw e;
+        } finally {
+            try {
+                conn.setAutoCommit(true);
+                conn.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Deadlock (40001 / 1213) and lock wait timeout (1205)
+    static boolean isRetryable(SQLException e) {
+        for (SQLException current = e; current != null; current = current.getNextException()) {
+            if ("40001".equals(current.getSQLState())
+                    || current.getErrorCode() == ER_LOCK_DEADLOCK
+                    || current.getErrorCode() == ER_LOCK_WAIT_TIMEOUT) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // exponential backoff with full jitter: random in [0, min(max, base * 2^attempt)]
+    private boolean backoff(int attempt) {
+        long cap = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(attempt, 20));
+        long sleep = ThreadLocalRandom.current().nextLong(cap + 1);
+        try {
+            Thread.sleep(sleep);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static int stripe(int accountNumber) {
+        int h = accountNumber * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    public long getAttempts() {
+        return attempts.sum();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getGiveUps() {
+        return giveUps.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "attempts=" + getAttempts() + " retries=" + getRetries() + " giveUps=" + getGiveUps()
+                + (crossShard != null ? " " + CrossShardTransfer.getStats() : "");
+    }
+}
@@ -0,0 +1,28 @@
+// One line of a batch transfer (payroll, settlement runs...)
+public class TransferRequest {
+    private final int fromAccount;
+    private final int toAccount;
+    private final long amountPaise;
+
+    public TransferRequest(int fromAccount, int toAccount, long amountPaise) {
+        this.fromAccount = fromAccount;
+        this.toAccount = toAccount;
+        this.amountPaise = amountPaise;
+    }
+
+    //Getters
+    public int getFromAccount() {
+        return fromAccount;
+    }
+    public int getToAccount() {
+        return toAccount;
+    }
+    public long getAmountPaise() {
+        return amountPaise;
+    }
+
+    @Override
+    public String toString() {
+        return fromAccount + " -> " + toAccount + " : " + Money.format(amountPaise);
+    }
+}
@@ -2,13 +2,13 @@ public class User {
     private int accountNumber;
     private String fullName;
     private String email;
-    private double balance;
+    private long balancePaise;
 
-    public User(int accountNumber, String fullName ,String email ,double balance){
+    public User(int accountNumber, String fullName ,String email ,long balancePaise){
         this.accountNumber = accountNumber;
         this.fullName = fullName;
         this.email = email;
-        this.balance = balance;
+        this.balancePaise = balancePaise;
     }
 
     //GEtters
@@ -21,10 +21,10 @@ public class User {
     public String getEmail(){
         return email;
     }
-    public double getBalance() {
-        return balance;
+    public long getBalancePaise() {
+        return balancePaise;
     }
-    public void setBalance(double balance){
-        this.balance = balance;
+    public void setBalancePaise(long balancePaise){
+        this.balancePaise = balancePaise;
     }
 }